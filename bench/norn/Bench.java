@@ -0,0 +1,201 @@
+package norn;
+
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * A small micro-benchmark harness in the manner of JMH, for measuring the average time of an operation.
+ *
+ * Each benchmark runs warmup iterations, so the JIT compiler has compiled the code under test, and then
+ * measured iterations; an iteration calls the operation repeatedly for a fixed time, and its score is the
+ * average time per call. Results of the operation are stored in a volatile field, so that the compiler
+ * cannot remove the computation as dead code. The scores of the measured iterations are reported as
+ * their mean and a 99.9% confidence interval, using the quantile of Student's t distribution for the
+ * number of measured iterations, since there are usually too few of them for the normal approximation.
+ */
+class Bench {
+    // results of operations are written here so they are not optimized away
+    private static volatile Object sink;
+    // confidence level of the reported intervals
+    private static final double CONFIDENCE = 0.999;
+
+    private final Pattern filter;
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final long iterationNanos;
+
+    /**
+     * An operation to benchmark.
+     */
+    interface Operation {
+        /**
+         * @return a result of the operation, consumed so the computation is not eliminated
+         * @throws Exception if the operation fails, which aborts the benchmark
+         */
+        Object run() throws Exception;
+    }
+
+    /**
+     * @param filter only benchmarks whose names contain a match of filter are run
+     * @param warmupIterations number of iterations run before measuring, >= 0
+     * @param measurementIterations number of iterations measured, >= 2
+     * @param iterationMillis duration of each iteration in milliseconds, > 0
+     */
+    Bench(Pattern filter, int warmupIterations, int measurementIterations, long iterationMillis) {
+        this.filter = filter;
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationNanos = iterationMillis * 1_000_000;
+    }
+
+    /**
+     * Benchmark an operation and print its score, if its name matches the filter.
+     *
+     * @param name name of the benchmark
+     * @param operation operation to benchmark
+     * @throws Exception if the operation fails, other than by overflowing the stack
+     */
+    void measure(String name, Operation operation) throws Exception {
+        if (!filter.matcher(name).find()) {
+            return;
+        }
+        final double[] scores = new double[measurementIterations];
+        try {
+            for (int i = 0; i < warmupIterations; i++) {
+                iterate(operation);
+            }
+            for (int i = 0; i < measurementIterations; i++) {
+                scores[i] = iterate(operation);
+            }
+        } catch (StackOverflowError e) {
+            // inputs too deep for a recursive code path are reported, and the other benchmarks still run
+            System.out.println(String.format(Locale.ROOT, "%-40s failed: %s", name, e));
+            return;
+        }
+        double mean = 0;
+        for (double score : scores) {
+            mean += score / scores.length;
+        }
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean) / (scores.length - 1);
+        }
+        final double error = studentT(CONFIDENCE, scores.length - 1) * Math.sqrt(variance / scores.length);
+        System.out.println(String.format(Locale.ROOT, "%-40s %14.3f +- %12.3f us/op", name, mean / 1000, error / 1000));
+    }
+
+    /**
+     * @return average time in nanoseconds of the calls to operation made during one iteration
+     */
+    private double iterate(Operation operation) throws Exception {
+        long calls = 0;
+        final long start = System.nanoTime();
+        long elapsed;
+        do {
+            sink = operation.run();
+            calls++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+        return (double) elapsed / calls;
+    }
+
+    /**
+     * @param confidence confidence level of a two-sided interval, in (0, 1)
+     * @param degreesOfFreedom degrees of freedom, >= 1
+     * @return the quantile t of Student's t distribution such that P(-t < T < t) = confidence,
+     *         for example 8.610 for a 99.9% interval with 4 degrees of freedom
+     */
+    static double studentT(double confidence, int degreesOfFreedom) {
+        final double tail = (1 - confidence) / 2;
+        // P(T > t) decreases in t, so bisect until the interval is below the precision of a double
+        double low = 0;
+        double high = 1;
+        while (upperTail(high, degreesOfFreedom) > tail) {
+            high *= 2;
+        }
+        for (int i = 0; i < 200 && high - low > 1e-12 * high; i++) {
+            final double middle = (low + high) / 2;
+            if (upperTail(middle, degreesOfFreedom) > tail) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+        return (low + high) / 2;
+    }
+
+    /**
+     * @param t a value >= 0
+     * @param df degrees of freedom, >= 1
+     * @return P(T > t) for T with Student's t distribution with df degrees of freedom
+     */
+    private static double upperTail(double t, int df) {
+        return incompleteBeta(df / (df + t * t), df / 2.0, 0.5) / 2;
+    }
+
+    /**
+     * @param x a value in [0, 1]
+     * @param a a parameter > 0
+     * @param b a parameter > 0
+     * @return the regularized incomplete beta function I_x(a, b)
+     */
+    private static double incompleteBeta(double x, double a, double b) {
+        if (x <= 0) {
+            return 0;
+        }
+        if (x >= 1) {
+            return 1;
+        }
+        final double front = Math.exp(logGamma(a + b) - logGamma(a) - logGamma(b) + a * Math.log(x) + b * Math.log(1 - x));
+        // the continued fraction converges quickly for x < (a + 1) / (a + b + 2); otherwise use the symmetry
+        if (x < (a + 1) / (a + b + 2)) {
+            return front * betaContinuedFraction(x, a, b) / a;
+        }
+        return 1 - front * betaContinuedFraction(1 - x, b, a) / b;
+    }
+
+    /**
+     * @return the continued fraction of the incomplete beta function at x, a, b, evaluated by
+     *         the modified Lentz method
+     */
+    private static double betaContinuedFraction(double x, double a, double b) {
+        final double tiny = 1e-300;
+        double c = 1;
+        double d = 1 - (a + b) * x / (a + 1);
+        d = 1 / (Math.abs(d) < tiny ? tiny : d);
+        double result = d;
+        for (int m = 1; m <= 300; m++) {
+            final int m2 = 2 * m;
+            for (int step = 0; step < 2; step++) {
+                final double numerator = step == 0
+                        ? m * (b - m) * x / ((a + m2 - 1) * (a + m2))
+                        : -(a + m) * (a + b + m) * x / ((a + m2) * (a + m2 + 1));
+                d = 1 + numerator * d;
+                d = 1 / (Math.abs(d) < tiny ? tiny : d);
+                c = 1 + numerator / c;
+                c = Math.abs(c) < tiny ? tiny : c;
+                result *= d * c;
+                if (step == 1 && Math.abs(d * c - 1) < 1e-15) {
+                    return result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param x a value > 0
+     * @return the natural logarithm of the gamma function at x, by the Lanczos approximation
+     */
+    private static double logGamma(double x) {
+        final double[] coefficients = { 76.18009172947146, -86.50532032941677, 24.01409824083091,
+            -1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5 };
+        double denominator = x;
+        double series = 1.000000000190015;
+        for (double coefficient : coefficients) {
+            series += coefficient / ++denominator;
+        }
+        final double shifted = x + 5.5;
+        return (x + 0.5) * Math.log(shifted) - shifted + Math.log(2.5066282746310005 * series / x);
+    }
+}
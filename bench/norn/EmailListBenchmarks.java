@@ -0,0 +1,127 @@
+package norn;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks of the parse, evaluate and serialize paths of email lists, over synthetic environments
+ * (see EnvironmentGenerator).
+ *
+ * Usage: java norn.EmailListBenchmarks [regex]
+ * runs the benchmarks whose names contain a match of regex, or all of them. Sizes and iterations are
+ * given by system properties: bench.size (addresses in flat and fan-in lists, default 100000),
+ * bench.depth (lists in the deep chain, default 1000), bench.warmup and bench.iterations (default 5),
+ * and bench.millis (duration of an iteration, default 1000).
+ *
+ * Benchmarks named cold evaluate in a fresh copy of the environment, so no recipients are cached;
+ * the others evaluate in the same environment each time, as a server does.
+ */
+public class EmailListBenchmarks {
+
+    private EmailListBenchmarks() {
+        throw new AssertionError("not instantiable");
+    }
+
+    /**
+     * @param args optional regex selecting the benchmarks to run
+     * @throws Exception if a benchmark fails
+     */
+    public static void main(String[] args) throws Exception {
+        final int size = Integer.getInteger("bench.size", 100_000);
+        final int depth = Integer.getInteger("bench.depth", 1000);
+        final Bench bench = new Bench(Pattern.compile(args.length > 0 ? args[0] : ""),
+                Integer.getInteger("bench.warmup", 5), Integer.getInteger("bench.iterations", 5),
+                Long.getLong("bench.millis", 1000));
+
+        final Map<String, Map<String, EmailList>> environments = new LinkedHashMap<>();
+        environments.put("flat", environment(EnvironmentGenerator.flat(size)));
+        environments.put("deep", environment(EnvironmentGenerator.deepChain(depth)));
+        environments.put("fanin", environment(EnvironmentGenerator.wideFanIn(100, Math.max(2, size / 50))));
+        environments.put("overlap", environment(EnvironmentGenerator.highOverlap(size, 0.9)));
+
+        final String flatExpression = EnvironmentGenerator.flatExpression(size);
+        for (EmailList.ParserEngine parser : EmailList.ParserEngine.values()) {
+            bench.measure("evaluate/flat/" + parser.name().toLowerCase(),
+                    () -> EmailList.evaluate(flatExpression, new HashMap<>(), parser));
+        }
+
+        for (Map.Entry<String, Map<String, EmailList>> entry : environments.entrySet()) {
+            final String shape = entry.getKey();
+            final Map<String, EmailList> environment = entry.getValue();
+            final EmailList top = environment.get("top");
+            for (EmailList.EvaluationEngine engine : EmailList.EvaluationEngine.values()) {
+                final String name = engine.name().toLowerCase();
+                // iterate, so the lazy engine evaluates as much as the others
+                bench.measure("recipients/" + shape + "/" + name,
+                        () -> count(engine.recipients(top, environment).iterator()));
+                bench.measure("recipients/" + shape + "/" + name + "/cold",
+                        () -> {
+                            final Map<String, EmailList> copy = new HashMap<>(environment);
+                            return count(engine.recipients(top, copy).iterator());
+                        });
+            }
+            bench.measure("toString/" + shape, () -> top.toString());
+            bench.measure("getReferencedLists/" + shape, () -> top.getReferencedLists(environment));
+
+            final Map<String, EmailList> saved = new HashMap<>(environment);
+            final byte[] snapshot = saveBinary(saved);
+            final String text = saveText(saved);
+            bench.measure("save/binary/" + shape, () -> saveBinary(saved));
+            bench.measure("save/text/" + shape, () -> saveText(saved));
+            bench.measure("load/binary/" + shape, () -> {
+                final Environment loaded = new Environment();
+                EmailListLoader.commit(EmailListSnapshot.read(new ByteArrayInputStream(snapshot)), loaded);
+                return loaded;
+            });
+            bench.measure("load/text/" + shape, () -> EmailListLoader.load(new StringReader(text), new HashMap<>()));
+        }
+    }
+
+    /**
+     * @param assignments list names and their definitions
+     * @return a new Environment with the assignments committed
+     */
+    private static Environment environment(Map<String, EmailList> assignments) {
+        final Environment environment = new Environment();
+        EmailListLoader.commit(assignments, environment);
+        return environment;
+    }
+
+    /**
+     * @return the number of elements of an iterator
+     */
+    private static int count(Iterator<String> iterator) {
+        int count = 0;
+        for (; iterator.hasNext(); iterator.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the environment as written by !save
+     */
+    private static byte[] saveBinary(Map<String, EmailList> environment) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EmailListSnapshot.write(out, environment);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the environment as written by !save -text
+     */
+    private static String saveText(Map<String, EmailList> environment) {
+        final StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, EmailList> entry : environment.entrySet()) {
+            out.append(entry.getKey()).append('=').append(entry.getValue()).append(';');
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,221 @@
+package norn;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A load test of EmailWebServer: starts a server on a generated environment, sends it a mix of
+ * /eval/ reads and assignments for a fixed time, and reports throughput and latency percentiles.
+ *
+ * Usage: java norn.EmailWebServerLoadTest, configured by system properties:
+ * <ul>
+ *  <li>load.mode: closed (default), where each of load.clients clients sends its next request when the
+ *      last one is answered, or open, where requests are sent at load.rate per second whether or not
+ *      earlier ones were answered
+ *  <li>load.clients: concurrent clients, or for open mode, threads sending requests (default 16)
+ *  <li>load.rate: requests per second in open mode (default 1000)
+ *  <li>load.seconds and load.warmup: seconds measured, and seconds run before measuring (default 10 and 2)
+ *  <li>load.writes: fraction of requests that are assignments (default 0.05)
+ *  <li>load.lists and load.size: number of lists in the environment and addresses in each (default 100 and 1000)
+ *  <li>load.executor and load.threads: the server's executor, as for Main's norn.executor and norn.threads
+ *  <li>load.http: the server, httpserver (default) for EmailWebServer or nio for EmailNioServer, as for Main's norn.http
+ *  <li>load.label: name of the run in the report, and load.report: a file to append the report line to
+ * </ul>
+ * In open mode latency is measured from the time each request was due to be sent, not from when a thread
+ * got to send it, so a server that falls behind is charged for the requests queued behind it.
+ */
+public class EmailWebServerLoadTest {
+
+    private EmailWebServerLoadTest() {
+        throw new AssertionError("not instantiable");
+    }
+
+    /**
+     * Latencies and failures of one kind of request.
+     */
+    private static class Results {
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+    }
+
+    /**
+     * @param args unused
+     * @throws Exception if the server cannot be started or the test is interrupted
+     */
+    public static void main(String[] args) throws Exception {
+        final boolean open = System.getProperty("load.mode", "closed").equalsIgnoreCase("open");
+        final int clients = Integer.getInteger("load.clients", 16);
+        final int rate = Integer.getInteger("load.rate", 1000);
+        final long seconds = Long.getLong("load.seconds", 10);
+        final long warmup = Long.getLong("load.warmup", 2);
+        final double writes = Double.parseDouble(System.getProperty("load.writes", "0.05"));
+        final int lists = Integer.getInteger("load.lists", 100);
+        final int size = Integer.getInteger("load.size", 1000);
+        final String label = System.getProperty("load.label", "default");
+
+        final Environment environment = new Environment();
+        final Map<String, EmailList> assignments = new HashMap<>();
+        for (int i = 0; i < lists; i++) {
+            // consecutive lists share half their addresses
+            assignments.put("list" + i, EnvironmentGenerator.addresses("user", i * size / 2, i * size / 2 + size));
+        }
+        EmailListLoader.commit(assignments, environment);
+
+        final int threads = Integer.getInteger("load.threads", Runtime.getRuntime().availableProcessors());
+        final Runnable stop;
+        final String base;
+        if (System.getProperty("load.http", "httpserver").equalsIgnoreCase("nio")) {
+            final EmailNioServer server = new EmailNioServer(threads, EmailWebServer.DEFAULT_BACKLOG);
+            server.startWebServer(environment);
+            stop = server::stop;
+            base = "http://localhost:" + server.SERVER_PORT + "/eval/";
+        } else {
+            final EmailWebServer server = new EmailWebServer(
+                    EmailWebServer.ExecutorMode.valueOf(System.getProperty("load.executor", "fixed").toUpperCase()),
+                    threads, EmailWebServer.DEFAULT_BACKLOG);
+            server.startWebServer(environment);
+            stop = server::stop;
+            base = "http://localhost:" + server.SERVER_PORT + "/eval/";
+        }
+
+        final Results reads = new Results();
+        final Results assigns = new Results();
+        final long start = System.nanoTime();
+        final long measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+        final long end = measureFrom + TimeUnit.SECONDS.toNanos(seconds);
+        final ExecutorService pool = Executors.newFixedThreadPool(clients);
+        try {
+            if (open) {
+                final long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+                for (long due = start; due < end; due += interval) {
+                    final long sleep = due - System.nanoTime();
+                    if (sleep > 0) {
+                        TimeUnit.NANOSECONDS.sleep(sleep);
+                    }
+                    final long scheduled = due;
+                    pool.execute(() -> send(base, lists, writes, scheduled, measureFrom, reads, assigns));
+                }
+            } else {
+                for (int i = 0; i < clients; i++) {
+                    pool.execute(() -> {
+                        while (System.nanoTime() < end) {
+                            send(base, lists, writes, System.nanoTime(), measureFrom, reads, assigns);
+                        }
+                    });
+                }
+            }
+            pool.shutdown();
+            pool.awaitTermination(seconds + warmup + 60, TimeUnit.SECONDS);
+        } finally {
+            pool.shutdownNow();
+            stop.run();
+        }
+        final double measuredSeconds = (System.nanoTime() - measureFrom) / 1e9;
+        report(label, open ? "open" : "closed", clients, measuredSeconds, reads, assigns);
+    }
+
+    /**
+     * Send one request and record its latency and outcome, if it was due after measurement started.
+     *
+     * @param base URL of the /eval/ context
+     * @param lists number of lists in the environment
+     * @param writes fraction of requests that are assignments
+     * @param due time, in System.nanoTime(), at which the request was due to be sent
+     * @param measureFrom time from which requests are measured
+     * @param reads results of read requests
+     * @param assigns results of assignments
+     */
+    private static void send(String base, int lists, double writes, long due, long measureFrom,
+            Results reads, Results assigns) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final boolean write = random.nextDouble() < writes;
+        final int a = random.nextInt(lists);
+        final int b = random.nextInt(lists);
+        final String expression;
+        if (write) {
+            // assign scratch lists, so the lists that are read keep their size
+            expression = "scratch" + random.nextInt(16) + "=list" + a + ",list" + b;
+        } else {
+            expression = random.nextInt(4) == 0 ? "list" + a + "*list" + b + "!list" + random.nextInt(lists) : "list" + a;
+        }
+        final Results results = write ? assigns : reads;
+        boolean failed = false;
+        try {
+            final HttpURLConnection connection = (HttpURLConnection) new URL(base + expression).openConnection();
+            final int status = connection.getResponseCode();
+            failed = status != 200 && status != 404;
+            final InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (body != null) {
+                // read the whole body, so the connection can be kept alive for the next request
+                final byte[] buffer = new byte[64 * 1024];
+                while (body.read(buffer) >= 0) {
+                    // discard
+                }
+                body.close();
+            }
+        } catch (IOException e) {
+            failed = true;
+        }
+        if (due >= measureFrom) {
+            results.latencies.record(System.nanoTime() - due);
+            if (failed) {
+                results.errors.increment();
+            }
+        }
+    }
+
+    /**
+     * Print the report of a run, and append it to the file named by load.report, if any.
+     */
+    private static void report(String label, String mode, int clients, double seconds, Results reads, Results assigns)
+            throws IOException {
+        final LatencyHistogram all = new LatencyHistogram();
+        all.add(reads.latencies);
+        all.add(assigns.latencies);
+        final List<String> lines = new ArrayList<>();
+        lines.add(String.format(Locale.ROOT, "%-8s %10s %8s %12s %10s %10s %10s %10s %10s",
+                "requests", "count", "errors", "rate(/s)", "p50(ms)", "p99(ms)", "p999(ms)", "max(ms)", "mean(ms)"));
+        lines.add(row("reads", reads.latencies, reads.errors.sum(), seconds));
+        lines.add(row("writes", assigns.latencies, assigns.errors.sum(), seconds));
+        lines.add(row("all", all, reads.errors.sum() + assigns.errors.sum(), seconds));
+        System.out.println(String.format(Locale.ROOT, "run %s: %s loop, %d clients, %.1f s measured", label, mode, clients, seconds));
+        lines.forEach(System.out::println);
+
+        // one tab-separated line per run, so runs before and after a change can be compared
+        final String summary = String.join("\t", label, mode, Integer.toString(clients),
+                Long.toString(all.count()), Long.toString(reads.errors.sum() + assigns.errors.sum()),
+                String.format(Locale.ROOT, "%.1f", all.count() / seconds),
+                millis(all.percentile(50)), millis(all.percentile(99)), millis(all.percentile(99.9)), millis(all.max()));
+        final String file = System.getProperty("load.report");
+        if (file != null) {
+            try (PrintWriter out = new PrintWriter(new FileWriter(file, true))) {
+                out.println(summary);
+            }
+        }
+    }
+
+    private static String row(String name, LatencyHistogram latencies, long errors, double seconds) {
+        return String.format(Locale.ROOT, "%-8s %10d %8d %12.1f %10s %10s %10s %10s %10s", name, latencies.count(), errors,
+                latencies.count() / seconds, millis(latencies.percentile(50)), millis(latencies.percentile(99)),
+                millis(latencies.percentile(99.9)), millis(latencies.max()),
+                millis(latencies.count() == 0 ? 0 : latencies.sum() / latencies.count()));
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+}
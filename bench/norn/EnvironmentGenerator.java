@@ -0,0 +1,99 @@
+package norn;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Generators of synthetic environments for benchmarks.
+ *
+ * Every generator returns the assignments that make an environment; the list named "top" is the one
+ * to evaluate. Addresses are numbered so that the sizes of lists and of their overlaps are exact.
+ */
+class EnvironmentGenerator {
+
+    private EnvironmentGenerator() {
+        throw new AssertionError("not instantiable");
+    }
+
+    /**
+     * @param prefix username prefix
+     * @param from first number, inclusive
+     * @param to last number, exclusive
+     * @return the union chain "prefix(from)@bench.test, ..., prefix(to-1)@bench.test", as the parser makes it
+     */
+    static EmailList addresses(String prefix, int from, int to) {
+        EmailList result = EmailList.empty();
+        for (int i = from; i < to; i++) {
+            final EmailList single = EmailList.single(prefix + i + "@bench.test");
+            result = i == from ? single : EmailList.union(result, single);
+        }
+        return result;
+    }
+
+    /**
+     * @param size number of addresses
+     * @return the expression "user0@bench.test, user1@bench.test, ..." of size addresses
+     */
+    static String flatExpression(int size) {
+        final StringBuilder expression = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            expression.append(i == 0 ? "" : ", ").append("user").append(i).append("@bench.test");
+        }
+        return expression.toString();
+    }
+
+    /**
+     * @param size number of addresses
+     * @return top = one flat list of size addresses
+     */
+    static Map<String, EmailList> flat(int size) {
+        final Map<String, EmailList> assignments = new HashMap<>();
+        assignments.put("top", addresses("user", 0, size));
+        return assignments;
+    }
+
+    /**
+     * @param depth number of lists in the chain
+     * @return list0 = one address; list(i) = list(i-1), one more address; top = list(depth-1)
+     */
+    static Map<String, EmailList> deepChain(int depth) {
+        final Map<String, EmailList> assignments = new HashMap<>();
+        assignments.put("list0", EmailList.single("user0@bench.test"));
+        for (int i = 1; i < depth; i++) {
+            assignments.put("list" + i, EmailList.union(EmailList.listName("list" + (i - 1)),
+                    EmailList.single("user" + i + "@bench.test")));
+        }
+        assignments.put("top", EmailList.listName("list" + (depth - 1)));
+        return assignments;
+    }
+
+    /**
+     * @param width number of member lists
+     * @param size number of addresses of each member list, which overlap by half with the next one
+     * @return member(i) = size addresses; top = member0, member1, ...
+     */
+    static Map<String, EmailList> wideFanIn(int width, int size) {
+        final Map<String, EmailList> assignments = new HashMap<>();
+        EmailList top = EmailList.empty();
+        for (int i = 0; i < width; i++) {
+            assignments.put("member" + i, addresses("user", i * size / 2, i * size / 2 + size));
+            top = i == 0 ? EmailList.listName("member0") : EmailList.union(top, EmailList.listName("member" + i));
+        }
+        assignments.put("top", top);
+        return assignments;
+    }
+
+    /**
+     * @param size number of addresses of each operand
+     * @param overlap fraction of the addresses of the operands that they share, between 0 and 1
+     * @return left = size addresses; right = size addresses, overlap of them in left; top = left * right
+     */
+    static Map<String, EmailList> highOverlap(int size, double overlap) {
+        final Map<String, EmailList> assignments = new HashMap<>();
+        final int offset = (int) Math.round(size * (1 - overlap));
+        assignments.put("left", addresses("user", 0, size));
+        assignments.put("right", addresses("user", offset, offset + size));
+        assignments.put("top", EmailList.intersection(EmailList.listName("left"), EmailList.listName("right")));
+        return assignments;
+    }
+}
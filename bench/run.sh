@@ -0,0 +1,23 @@
+#!/bin/sh
+# Compile src/ and bench/ and run a benchmark.
+#
+# Usage: bench/run.sh [EmailListBenchmarks|EmailWebServerLoadTest] [args...]
+# The class defaults to EmailListBenchmarks; JAVA_OPTS passes options such as -Dbench.iterations=10.
+set -e
+
+root=$(cd "$(dirname "$0")/.." && pwd)
+classes=$(mktemp -d)
+trap 'rm -rf "$classes"' EXIT
+classpath="$root/lib/parserlib.jar:$root/lib/httpserver.jar"
+
+main=EmailListBenchmarks
+case "$1" in
+    EmailListBenchmarks|EmailWebServerLoadTest) main=$1; shift ;;
+esac
+
+find "$root/src" "$root/bench" -name '*.java' > "$classes/sources.txt"
+javac -nowarn -cp "$classpath" -d "$classes" @"$classes/sources.txt"
+# the parser reads its grammar from the classpath
+cp "$root/src/norn/EmailList.g" "$classes/norn/"
+
+java $JAVA_OPTS -cp "$classes:$classpath" "norn.$main" "$@"
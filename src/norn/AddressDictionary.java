@@ -0,0 +1,83 @@
+package norn;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Global dictionary of the email addresses of all email lists, numbering every distinct
+ * lowercased address with a dense int id, in the order the addresses are first seen.
+ *
+ * Ids let recipient sets be stored and combined as bitmaps (see RecipientSet) instead of sets of strings.
+ * Ids are never reused, so the dictionary only grows.
+ */
+class AddressDictionary {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final Map<String, Integer> IDS = new ConcurrentHashMap<>();
+    private static volatile String[] addresses = new String[INITIAL_CAPACITY];
+    private static int size = 0;
+
+    // Abstraction function
+    //    AF(IDS, addresses, size) = the numbering mapping addresses[i] to i, for 0 <= i < size
+    // Rep invariant
+    //    IDS.get(addresses[i]) == i for 0 <= i < size, and IDS has no other keys
+    //    size <= addresses.length
+    // Safety from rep exposure
+    //    all fields are private; only strings and ints are returned
+    // Thread safety argument
+    //    ids are only added while holding the lock on IDS, which writes the address into addresses before
+    //    publishing its id in IDS; an id is only ever read after it was published, so reads of
+    //    addresses[id] need no lock. addresses is replaced, never shrunk, when it grows, and is volatile.
+
+    private AddressDictionary() {
+        throw new AssertionError("not instantiable");
+    }
+
+    /**
+     * @param address a lowercased email address
+     * @return the id of address, numbering it if it has no id yet
+     */
+    static int id(String address) {
+        final Integer id = IDS.get(address);
+        if (id != null) {
+            return id;
+        }
+        synchronized (IDS) {
+            final Integer existing = IDS.get(address);
+            if (existing != null) {
+                return existing;
+            }
+            if (size == addresses.length) {
+                addresses = Arrays.copyOf(addresses, size * 2);
+            }
+            addresses[size] = address;
+            IDS.put(address, size);
+            return size++;
+        }
+    }
+
+    /**
+     * @param address a lowercased email address
+     * @return the id of address, or empty if it has none; unlike id(), never numbers address
+     */
+    static OptionalInt lookup(String address) {
+        final Integer id = IDS.get(address);
+        return id == null ? OptionalInt.empty() : OptionalInt.of(id);
+    }
+
+    /**
+     * @param id an id returned by id()
+     * @return the address numbered id
+     */
+    static String address(int id) {
+        final String[] current = addresses;
+        if (id < current.length && current[id] != null) {
+            return current[id];
+        }
+        synchronized (IDS) {
+            return addresses[id];
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package norn;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * A mutable, thread-safe graph of the references between the lists of one environment.
+ *
+ * For every list name the graph keeps the lists its definition refers to directly, and the
+ * reverse edges: the lists whose definitions refer to it directly. Edges are recorded together
+ * with the definition they were computed from, and are recomputed on demand when the environment
+ * holds a different definition, so the graph stays correct even if the environment is modified
+ * without going through the parser.
+ */
+class DependencyGraph {
+    private final Map<String, Node> nodes = new HashMap<>();
+    private final Map<String, Set<String>> referrers = new HashMap<>();
+
+    // Abstraction function
+    //    AF(nodes, referrers) = the directed graph with an edge n -> m for every m in
+    //                           nodes.get(n).references, where nodes.get(n).definition is the
+    //                           definition of n that the edges were computed from.
+    // Rep invariant
+    //    for all n, m: m in nodes.get(n).references iff n in referrers.get(m)
+    // Safety from rep exposure
+    //    all fields are private and final, and methods return fresh or unmodifiable sets.
+    // Thread safety argument
+    //    all methods that access nodes and referrers are synchronized on this graph.
+
+    /**
+     * An immutable definition of a list together with the list names it refers to directly.
+     */
+    private static class Node {
+        private final EmailList definition;
+        private final Set<String> references;
+
+        private Node(EmailList definition, Set<String> references) {
+            this.definition = definition;
+            this.references = references;
+        }
+    }
+
+    /**
+     * Check that the rep invariant is not violated for the edges out of one list.
+     * @param listName the name of the list whose edges are checked
+     */
+    private void checkRep(String listName) {
+        for (String reference : nodes.get(listName).references) {
+            assert referrers.get(reference).contains(listName);
+        }
+    }
+
+    /**
+     * Record a new definition of a list name, replacing the edges of its previous definition.
+     *
+     * @param listName the name of the list
+     * @param definition the email list now assigned to listName, or null if listName is undefined
+     */
+    synchronized void update(String listName, EmailList definition) {
+        final Node old = nodes.remove(listName);
+        if (old != null) {
+            for (String reference : old.references) {
+                final Set<String> referring = referrers.get(reference);
+                referring.remove(listName);
+                if (referring.isEmpty()) {
+                    referrers.remove(reference);
+                }
+            }
+        }
+        final Set<String> references = definition == null
+                ? Collections.<String>emptySet()
+                : Collections.unmodifiableSet(definition.getDirectlyReferencedLists());
+        nodes.put(listName, new Node(definition, references));
+        for (String reference : references) {
+            referrers.computeIfAbsent(reference, name -> new HashSet<>()).add(listName);
+        }
+        checkRep(listName);
+    }
+
+    /**
+     * Get the list names that the definition of a list refers to directly.
+     *
+     * @param listName the name of the list
+     * @param environment the environment in which the value of email lists are stored
+     * @return an unmodifiable set of the list names in the definition of listName in environment,
+     *         or an empty set if listName is undefined
+     */
+    synchronized Set<String> references(String listName, Map<String, EmailList> environment) {
+        final EmailList definition = environment.get(listName);
+        final Node node = nodes.get(listName);
+        if (node == null || node.definition != definition) {
+            update(listName, definition);
+        }
+        return nodes.get(listName).references;
+    }
+
+    /**
+     * Get every list that the definition of a list depends on, directly or indirectly.
+     *
+     * @param listName the name of the list
+     * @param environment the environment in which the value of email lists are stored
+     * @return a set of the list names reachable from listName, not including listName
+     *         unless it is part of a cycle
+     */
+    synchronized Set<String> transitiveReferences(String listName, Map<String, EmailList> environment) {
+        final Set<String> reached = new HashSet<>();
+        final Deque<String> toVisit = new ArrayDeque<>(references(listName, environment));
+        while (!toVisit.isEmpty()) {
+            final String next = toVisit.pop();
+            if (reached.add(next)) {
+                toVisit.addAll(references(next, environment));
+            }
+        }
+        return reached;
+    }
+
+    /**
+     * Get every list whose definition depends on a list, directly or indirectly, as of the
+     * definitions last recorded in this graph.
+     *
+     * @param listName the name of the list
+     * @return a set of the list names that refer to listName through one or more references
+     */
+    synchronized Set<String> transitiveDependents(String listName) {
+        final Set<String> reached = new HashSet<>();
+        final Deque<String> toVisit = new ArrayDeque<>(referrers.getOrDefault(listName, Collections.emptySet()));
+        while (!toVisit.isEmpty()) {
+            final String next = toVisit.pop();
+            if (reached.add(next)) {
+                toVisit.addAll(referrers.getOrDefault(next, Collections.emptySet()));
+            }
+        }
+        return reached;
+    }
+
+    /**
+     * Check whether assigning a definition to a list name would make a list depend on itself.
+     * Only the lists reachable from the new definition are visited.
+     *
+     * @param listName the name of the list being assigned
+     * @param definition the email list to be assigned to listName
+     * @param environment the environment in which the value of email lists are stored,
+     *                    still holding the previous definition of listName
+     * @return true iff definition refers to listName, directly or through other lists
+     */
+    synchronized boolean createsCycle(String listName, EmailList definition, Map<String, EmailList> environment) {
+        final Set<String> reached = new HashSet<>();
+        final Deque<String> toVisit = new ArrayDeque<>(definition.getDirectlyReferencedLists());
+        if (toVisit.contains(listName)) {
+            return true;
+        }
+        while (!toVisit.isEmpty()) {
+            final String next = toVisit.pop();
+            if (reached.add(next)) {
+                final Set<String> references = references(next, environment);
+                if (references.contains(listName)) {
+                    return true;
+                }
+                toVisit.addAll(references);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find a list that depends on itself, among the lists reachable from some starting lists.
+     * Each reachable list is visited once, so a whole batch of assignments can be checked together.
+     *
+     * @param listNames the names of the lists to start from
+     * @param environment the environment in which the value of email lists are stored
+     * @return the name of a list on a cycle of references reachable from listNames, if there is one
+     */
+    synchronized Optional<String> findCycle(Collection<String> listNames, Map<String, EmailList> environment) {
+        // depth-first search, where a list is on the stack from when it is first reached until all
+        // of its references are finished; a reference to a list on the stack closes a cycle
+        final Set<String> finished = new HashSet<>();
+        final Set<String> onStack = new HashSet<>();
+        final Deque<String> stack = new ArrayDeque<>();
+        final Deque<Iterator<String>> unvisited = new ArrayDeque<>();
+        for (String start : listNames) {
+            if (finished.contains(start)) {
+                continue;
+            }
+            stack.push(start);
+            onStack.add(start);
+            unvisited.push(references(start, environment).iterator());
+            while (!stack.isEmpty()) {
+                if (unvisited.peek().hasNext()) {
+                    final String next = unvisited.peek().next();
+                    if (onStack.contains(next)) {
+                        return Optional.of(next);
+                    }
+                    if (!finished.contains(next)) {
+                        stack.push(next);
+                        onStack.add(next);
+                        unvisited.push(references(next, environment).iterator());
+                    }
+                } else {
+                    final String done = stack.pop();
+                    unvisited.pop();
+                    onStack.remove(done);
+                    finished.add(done);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+}
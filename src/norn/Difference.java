@@ -1,7 +1,5 @@
 package norn;
 
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -11,12 +9,13 @@ import java.util.Set;
  */
 public class Difference implements EmailList {
     private final EmailList left, right;
+    private final int hash;
     
     private static final int HASH_BASE = 37;
     // Abstraction function
-    //    AF(left, right) = the email list that is the difference of right from left.
+    //    AF(left, right, hash) = the email list that is the difference of right from left.
     // Rep invariant
-    //    true
+    //    hash == left.hashCode() + HASH_BASE * right.hashCode()
     // Safety from rep exposure
     //    all fields are private and final
     //    left and right are EmailLists so they are immutable as given in the Project Handout
@@ -29,6 +28,7 @@ public class Difference implements EmailList {
     public Difference(EmailList left, EmailList right) {
         this.left = left;
         this.right = right;
+        this.hash = left.hashCode() + HASH_BASE * right.hashCode();
         checkRep();
     }
     
@@ -38,41 +38,62 @@ public class Difference implements EmailList {
     private void checkRep(){
         assert left != null;
         assert right != null;
+        assert hash == left.hashCode() + HASH_BASE * right.hashCode();
     }
 
     @Override
     public String toString() {
         checkRep();
-        return "(" + this.left.toString() + ") ! (" + this.right.toString() + ")";
+        return EmailListTraversal.print(this);
     }
     
     @Override
     public int hashCode() {
-        checkRep();
-        return this.left.hashCode() + HASH_BASE * this.right.hashCode();
+        return this.hash;
     }
     
     @Override
     public boolean equals(Object obj) {
-        if (obj instanceof Difference){
-            return this.left.equals(((Difference) obj).left) && this.right.equals(((Difference) obj).right);
+        if (this == obj) {
+            return true;
+        }
+        if (obj instanceof Difference && this.hash == obj.hashCode()){
+            return EmailListTraversal.equal(this, (Difference) obj);
         }
         return false;
     }
     
     @Override
-    public Set<String> recipients(Map<String, EmailList> environment) {
-        Set<String> difference = new HashSet<>();
-        difference.addAll(this.left.recipients(environment));
-        difference.removeAll(this.right.recipients(environment));
-        return Collections.unmodifiableSet(difference);
+    public RecipientSet recipientSet(Map<String, EmailList> environment) {
+        return EmailListTraversal.recipientSet(this, environment);
     }
 
     @Override
     public Set<String> getReferencedLists(Map<String, EmailList> environment) {
-        Set<String> result = new HashSet<>();
-        result.addAll(this.left.getReferencedLists(environment));
-        result.addAll(this.right.getReferencedLists(environment));
-        return result;
+        return EmailListTraversal.referencedLists(this, environment);
+    }
+
+    @Override
+    public Set<String> getDirectlyReferencedLists() {
+        return EmailListTraversal.directlyReferencedLists(this);
+    }
+
+    /**
+     * @return the left email list of the difference
+     */
+    public EmailList getLeft() {
+        return this.left;
+    }
+
+    /**
+     * @return the email list removed from the left email list
+     */
+    public EmailList getRight() {
+        return this.right;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+        return visitor.on(this);
     }
 }
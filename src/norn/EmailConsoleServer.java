@@ -4,11 +4,12 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -18,9 +19,21 @@ import java.util.Set;
  * <p>You are free to change this user interface class.
  */
 public class EmailConsoleServer {
+    // option of !save that writes the environment as text expressions instead of a binary snapshot
+    private static final String TEXT_OPTION = "-text";
+    // command that prints the names of the lists containing an address
+    private static final String LISTS_COMMAND = "!lists";
+
     // Thread Safety Argument for ConsoleServer:
-    // In the console server, the environment is the only variable that is shared, and since it is synchronized,
-    // only one thread can acquire the lock, read, and mutate environment at a time.
+    // In the console server, the environment is the only variable that is shared. Every line is parsed and evaluated
+    // as one transaction on the environment (see Environment.transact), so it sees a consistent snapshot and its
+    // assignments are committed atomically, and output is printed after the transaction.
+    // Loaded files are evaluated against a snapshot and committed atomically as a whole (see EmailListLoader).
+    //
+    // !save writes a binary snapshot of the environment (see EmailListSnapshot), which loads without parsing;
+    // !save -text writes the environment as text expressions. !load and the startup files accept either format.
+    // !lists address prints the lists that contain the address, from an index kept up to date with the environment
+    // (see Environment.listsContaining).
     
     // Example of console input tests:
     //      > hobbits = bilbo@shire, frodo@shire, sam@shire, merry@shire, pippin@shire
@@ -111,15 +124,7 @@ public class EmailConsoleServer {
         final BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
         for(String filename: filenames){
             try{
-                BufferedReader reader = new BufferedReader(new FileReader(filename));
-                String line = reader.readLine(); 
-                synchronized (environment) {
-                    while(line!=null){
-                        EmailList.evaluate(line, environment);
-                        line = reader.readLine();
-                    }
-                    reader.close();
-                }
+                EmailListLoader.loadFile(filename, environment);
             }
             catch(FileNotFoundException e){
                 System.out.println("File does not exist");
@@ -127,6 +132,9 @@ public class EmailConsoleServer {
             catch(IllegalArgumentException e){
                 System.out.println("Improperly formatted line cannot be parsed");
             }
+            catch(IOException e){
+                System.out.println("File cannot be read: " + e.getMessage());
+            }
 
         }
         
@@ -139,40 +147,42 @@ public class EmailConsoleServer {
             }
             if(input.charAt(0)=='!'){
                 if (input.substring(0,5).equals("!save")) {
-                    final String fileName = input.substring(6); 
-                    Writer writer = null;
+                    final boolean text = input.startsWith("!save " + TEXT_OPTION + " ");
+                    final String fileName = text ? input.substring(7 + TEXT_OPTION.length()) : input.substring(6);
+                    final Map<String, EmailList> saved = Environment.transact(environment, view -> new HashMap<>(view));
                     try {
-                        writer = new BufferedWriter(new OutputStreamWriter(
-                                new FileOutputStream(fileName), "utf-8"));
-                        // write each key and value pair of environment as an assignment
-                        //  separated by semicolons
-                        synchronized (environment) {
-                            for (String listName: environment.keySet()) {
-                                String line = listName + "=" + environment.get(listName).toString() + ";";
+                        if (text) {
+                            Writer writer = new BufferedWriter(new OutputStreamWriter(
+                                    new FileOutputStream(fileName), "utf-8"));
+                            // write each key and value pair of environment as an assignment
+                            //  separated by semicolons
+                            for (String listName: saved.keySet()) {
+                                String line = listName + "=" + saved.get(listName).toString() + ";";
                                 writer.write(line);
-//                                System.out.println(line);
+                            }
+                            writer.flush();
+                            writer.close();
+                        } else {
+                            try (OutputStream out = new FileOutputStream(fileName)) {
+                                EmailListSnapshot.write(out, saved);
                             }
                         }
-                        writer.flush();
-                        writer.close();
                     } catch (IOException ex) {
                        //ex.printStackTrace();
                         System.out.println("Either the folder does not exist or the filename contains illegal characters.");
                     } 
                 }
                 
+                else if (input.startsWith(LISTS_COMMAND + " ")) {
+                    final String address = input.substring(LISTS_COMMAND.length() + 1).trim();
+                    final Set<String> lists = Environment.transact(environment, view -> Environment.listsContaining(address, view));
+                    System.out.println(String.join(", ", lists));
+                }
+                
                 else if (input.substring(0,5).equals("!load")) {
                     final String filename = input.substring(6);
                     try{
-                        BufferedReader reader = new BufferedReader(new FileReader(filename));
-                        String line = reader.readLine(); 
-                        synchronized (environment) {
-                            while(line!=null){
-                                EmailList.evaluate(line, environment);
-                                line = reader.readLine();
-                            }
-                        }
-                        reader.close();
+                        EmailListLoader.loadFile(filename, environment);
                     }
                     catch(FileNotFoundException e){
                         System.out.println("File does not exist");
@@ -180,17 +190,18 @@ public class EmailConsoleServer {
                     catch(IllegalArgumentException e){
                         System.out.println("Improperly formatted line cannot be parsed");
                     }
+                    catch(IOException e){
+                        System.out.println("File cannot be read: " + e.getMessage());
+                    }
                 } 
             }else {
                 try {
-                    synchronized (environment) {
-                        final String output;
-                        final EmailList emailList = EmailList.evaluate(input, environment);
-                        Set<String> recipientsSet = emailList.recipients(environment);
-                        String[] recipientsArray = recipientsSet.toArray(new String[recipientsSet.size()]);
-                        output = String.join(", ", recipientsArray);    
-                        System.out.println(output);
-                    }
+                    final String output;
+                    output = Environment.transact(environment, view -> {
+                        final EmailList emailList = EmailList.evaluate(input, view);
+                        return String.join(", ", EmailList.DEFAULT_EVALUATION_ENGINE.recipients(emailList, view));
+                    });
+                    System.out.println(output);
                 } catch (RuntimeException re) {
                     System.out.println(re.getClass().getName() + ": " + re.getMessage());
                 }
@@ -4,8 +4,15 @@
 
 package norn;
 
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import lib6005.parser.UnableToParseException;
 
@@ -22,6 +29,110 @@ public interface EmailList {
     //                  + Difference(left:EmailList, right: EmailList)
     //                  + ListName(name: String)
     
+    /**
+     * A function over the variants of EmailList, applied to an email list by {@link EmailList#accept}.
+     * @param <R> the type of the result of the function
+     */
+    public interface Visitor<R> {
+        /** @param empty an empty email list @return the result for empty */
+        public R on(Empty empty);
+        /** @param single a single recipient email list @return the result for single */
+        public R on(Single single);
+        /** @param union a union email list @return the result for union */
+        public R on(Union union);
+        /** @param intersection an intersection email list @return the result for intersection */
+        public R on(Intersection intersection);
+        /** @param difference a difference email list @return the result for difference */
+        public R on(Difference difference);
+        /** @param listName a list name email list @return the result for listName */
+        public R on(ListName listName);
+    }
+    
+    /**
+     * The parsers that can be used to evaluate expressions.
+     */
+    public enum ParserEngine {
+        /** the generic parser compiled from the grammar in EmailList.g, see {@link EmailListParser} */
+        PARSERLIB,
+        /** the hand-written single-pass parser, see {@link EmailListRecursiveDescentParser} */
+        RECURSIVE_DESCENT
+    };
+    
+    /**
+     * The parser used by {@link #evaluate(String, Map)}, given by the norn.parser system property
+     * (parserlib or recursive_descent), and the hand-written parser if the property is not set.
+     */
+    public static final ParserEngine DEFAULT_PARSER_ENGINE =
+            ParserEngine.valueOf(System.getProperty("norn.parser", "recursive_descent").toUpperCase());
+    
+    /**
+     * The ways the recipients of an email list can be evaluated for output. The bitmap, sorted merge and
+     * parallel engines evaluate the email list as rewritten by {@link EmailListOptimizer}.
+     */
+    public enum EvaluationEngine {
+        /** set algebra on bitmaps of address ids, see {@link RecipientSet}; addresses in no particular order */
+        BITMAP {
+            @Override
+            public Collection<String> recipients(EmailList emailList, Map<String, EmailList> environment) {
+                return EmailListOptimizer.optimize(emailList, environment).recipientSet(environment).addresses();
+            }
+        },
+        /** merges of sorted address arrays, see {@link SortedMergeEvaluator}; addresses in alphabetical order */
+        SORTED_MERGE {
+            @Override
+            public Collection<String> recipients(EmailList emailList, Map<String, EmailList> environment) {
+                return SortedMergeEvaluator.recipients(EmailListOptimizer.optimize(emailList, environment), environment);
+            }
+        },
+        /**
+         * set algebra on bitmaps as for BITMAP, with large subexpressions evaluated in parallel,
+         * see {@link ParallelEvaluator}; addresses in no particular order
+         */
+        PARALLEL {
+            @Override
+            public Collection<String> recipients(EmailList emailList, Map<String, EmailList> environment) {
+                return ParallelEvaluator.recipientSet(EmailListOptimizer.optimize(emailList, environment), environment).addresses();
+            }
+        },
+        /**
+         * no evaluation until the collection is used: iterating over it streams the recipients with
+         * {@link EmailList#recipientIterator}, in the order they occur in the email list, so the
+         * environment must not change while the collection is in use
+         */
+        LAZY {
+            @Override
+            public Collection<String> recipients(EmailList emailList, Map<String, EmailList> environment) {
+                return new AbstractCollection<String>() {
+                    @Override public Iterator<String> iterator() {
+                        return emailList.recipientIterator(environment);
+                    }
+                    @Override public int size() {
+                        return emailList.countRecipients(environment);
+                    }
+                    @Override public boolean isEmpty() {
+                        return !iterator().hasNext();
+                    }
+                    @Override public boolean contains(Object address) {
+                        return address instanceof String && emailList.contains((String) address, environment);
+                    }
+                };
+            }
+        };
+
+        /**
+         * @param emailList email list to evaluate
+         * @param environment the environment in which the value of email lists are stored
+         * @return an unmodifiable collection of the lowercased email addresses that emailList contains, with no duplicates
+         */
+        public abstract Collection<String> recipients(EmailList emailList, Map<String, EmailList> environment);
+    };
+    
+    /**
+     * The engine used by the console and web servers to evaluate recipients for output, given by the
+     * norn.evaluator system property (bitmap, sorted_merge, parallel or lazy), and bitmaps if the property is not set.
+     */
+    public static final EvaluationEngine DEFAULT_EVALUATION_ENGINE =
+            EvaluationEngine.valueOf(System.getProperty("norn.evaluator", "bitmap").toUpperCase());
     
     /**
      * Evaluate an expression string given by the input. The structure of the expression must
@@ -52,20 +163,68 @@ public interface EmailList {
      * @throws IllegalArgumentException if the expression input is invalid
      */
     public static EmailList evaluate(String input, Map<String, EmailList> environment) {
+        return evaluate(input, environment, DEFAULT_PARSER_ENGINE);
+    }
+    
+    /**
+     * Evaluate an expression string using a given parser.
+     * The expression and its effect on environment are as described in {@link #evaluate(String, Map)},
+     * and are the same for every parser.
+     * 
+     * @param input the valid expression to parse and evaluate
+     * @param environment map of list names to their corresponding email lists,
+     *                    will be modified if the expression is an assignment or an evaluation of a previously
+     *                    undefined list name.
+     * @param engine the parser to parse input with
+     * @return a valid email list expression with the same meaning as the input, as for {@link #evaluate(String, Map)}
+     * @throws IllegalArgumentException if the expression input is invalid
+     */
+    public static EmailList evaluate(String input, Map<String, EmailList> environment, ParserEngine engine) {
+        final long start = System.nanoTime();
         try { 
-            return EmailListParser.parse(input, environment);
+            switch (engine) {
+            case PARSERLIB:
+                return EmailListParser.parse(input, environment);
+            case RECURSIVE_DESCENT:
+                return EmailListRecursiveDescentParser.parse(input, environment);
+            default:
+                throw new AssertionError("should never get here");
+            }
         } catch (UnableToParseException e){
-            throw new IllegalArgumentException("Invalid expression!");
+            // keep the parser's message, which says where in the input the error is
+            throw new IllegalArgumentException(e.getMessage() != null ? e.getMessage() : "Invalid expression!", e);
+        } finally {
+            Metrics.record(Metrics.Stage.PARSE, start);
         }
     }
 
     
+    /**
+     * Evaluate an expression string as a single atomic transaction on an environment.
+     * The expression is as described in {@link #evaluate(String, Map)}; if it is invalid,
+     * the environment is left unchanged.
+     * 
+     * @param input the valid expression to parse and evaluate
+     * @param environment environment of list names to their corresponding email lists,
+     *                    will be modified if the expression is an assignment or an evaluation of a previously
+     *                    undefined list name.
+     * @return a valid email list expression with the same meaning as the input, as for {@link #evaluate(String, Map)}
+     * @throws IllegalArgumentException if the expression input is invalid
+     */
+    public static EmailList evaluate(String input, Environment environment) {
+        return environment.transact(view -> evaluate(input, view));
+    }
+    
+    // The factories below intern the email lists they make (see EmailListInterner): equal email lists
+    // made by the factories are the same object, so equal subexpressions are shared, and comparing
+    // them with equals takes constant time.
+
     /**
      * Make an empty email list
      * @return an empty email list
      */
     public static EmailList empty(){
-        return new Empty();
+        return EmailListInterner.intern(new Empty());
     }
     
     /**
@@ -78,7 +237,7 @@ public interface EmailList {
      * @return a email list representing a email
      */
     public static EmailList single(String recipient){
-        return new Single(recipient);
+        return EmailListInterner.intern(new Single(recipient));
     }
     
     /**
@@ -88,7 +247,7 @@ public interface EmailList {
      * @return a new mailing that is the union of two email lists
      */
     public static EmailList union(EmailList left, EmailList right){
-        return new Union(left, right);
+        return EmailListInterner.intern(new Union(left, right));
     }
     
     /**
@@ -98,7 +257,7 @@ public interface EmailList {
      * @return a new email list that is the intersection of two email lists
      */
     public static EmailList intersection(EmailList left, EmailList right){
-        return new Intersection(left, right); 
+        return EmailListInterner.intern(new Intersection(left, right));
     }
     
     /**
@@ -108,7 +267,7 @@ public interface EmailList {
      * @return a new email list that is the difference of two email lists
      */
     public static EmailList difference(EmailList left, EmailList right){
-        return new Difference(left, right); 
+        return EmailListInterner.intern(new Difference(left, right));
     }
 
     /**
@@ -117,7 +276,7 @@ public interface EmailList {
      * @return a new listname email list with the name as given by name
      */
     public static EmailList listName(String name){
-        return new ListName(name); 
+        return EmailListInterner.intern(new ListName(name));
     }
     
     /**
@@ -155,7 +314,62 @@ public interface EmailList {
      * @return an immutable set of lowercased email addresses that the EmailList contains 
      *          after operations (union, difference, intersection) are performed
      */
-    public Set<String> recipients(Map<String, EmailList> environment);
+    public default Set<String> recipients(Map<String, EmailList> environment) {
+        return recipientSet(environment).addresses();
+    }
+
+    /**
+     * Get the recipients as a compact set of address ids, for combining with other recipient sets.
+     * Callers should convert to strings, with {@link RecipientSet#addresses()}, only to output them.
+     * @param environment the environment in which the value of email lists are stored
+     * @return the set of lowercased email addresses that the EmailList contains
+     *          after operations (union, difference, intersection) are performed
+     */
+    public RecipientSet recipientSet(Map<String, EmailList> environment);
+
+    /**
+     * Iterate over the recipients lazily: each recipient is found as the iterator reaches it, without
+     * evaluating the whole email list first (see RecipientIterator).
+     * @param environment the environment in which the value of email lists are stored; must not
+     *                    change while the iterator is in use
+     * @return an iterator over the lowercased email addresses that the EmailList contains, each once,
+     *          in the order they first occur in the EmailList; remove() is not supported
+     */
+    public default Iterator<String> recipientIterator(Map<String, EmailList> environment) {
+        return new RecipientIterator(this, environment);
+    }
+
+    /**
+     * Stream the recipients lazily, as for {@link #recipientIterator(Map)}.
+     * @param environment the environment in which the value of email lists are stored; must not
+     *                    change while the stream is in use
+     * @return a sequential stream of the lowercased email addresses that the EmailList contains, each once
+     */
+    public default Stream<String> recipientStream(Map<String, EmailList> environment) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(recipientIterator(environment),
+                Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.IMMUTABLE), false);
+    }
+
+    /**
+     * Count the recipients, without converting them to strings.
+     * @param environment the environment in which the value of email lists are stored
+     * @return the number of email addresses that the EmailList contains
+     */
+    public default int countRecipients(Map<String, EmailList> environment) {
+        return recipientSet(environment).size();
+    }
+
+    /**
+     * Check whether an address is a recipient by walking the EmailList, without evaluating its
+     * recipients: operands are tested only until the answer is known, so the check takes time
+     * proportional to the part of the expression visited rather than to the number of recipients.
+     * @param address an email address, in any case
+     * @param environment the environment in which the value of email lists are stored
+     * @return true iff the EmailList contains address
+     */
+    public default boolean contains(String address, Map<String, EmailList> environment) {
+        return EmailListTraversal.contains(this, address.toLowerCase(), environment);
+    }
     
     /**
      * Get all the list names that are referred to in the definition of the EmailList expression, not including the given name
@@ -165,4 +379,20 @@ public interface EmailList {
      *          If no defined list is referred to, returns an empty set
      */
     public Set<String> getReferencedLists(Map<String, EmailList> environment);
+    
+    /**
+     * Get the list names that appear in this EmailList expression itself, without looking up
+     * the definitions of those lists.
+     * @return a set of Strings with each String representing a listname that occurs in this EmailList expression.
+     *          If no list name occurs, returns an empty set
+     */
+    public Set<String> getDirectlyReferencedLists();
+    
+    /**
+     * Apply a function to this email list, chosen by its variant.
+     * @param <R> the type of the result of the function
+     * @param visitor the function to apply
+     * @return the result of the visitor's method for the variant of this email list
+     */
+    public <R> R accept(Visitor<R> visitor);
 }
@@ -0,0 +1,68 @@
+package norn;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Hash-consing table for email lists.
+ *
+ * The static factories of EmailList intern every node they make, so structurally equal email lists
+ * made by the factories are the same object, and equal subexpressions of different lists are shared.
+ * Since the children of an interned node are interned, looking a new node up compares its children
+ * by identity, so interning takes constant time. Nodes are held weakly, and are dropped from the table
+ * once no email list refers to them.
+ */
+class EmailListInterner {
+    // a power of two, so that a hash code is mapped to a stripe by masking
+    private static final int STRIPES = 32;
+
+    private static final List<Map<EmailList, WeakReference<EmailList>>> TABLES = new ArrayList<>(STRIPES);
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            TABLES.add(new WeakHashMap<>());
+        }
+    }
+
+    // Abstraction function
+    //    AF(TABLES) = the set of interned email lists, the values of the live references in TABLES
+    // Rep invariant
+    //    TABLES has STRIPES tables and is never modified after class initialization
+    //    every key k of TABLES.get(i) has (spread(k.hashCode()) & (STRIPES - 1)) == i, and maps to a reference
+    //      to k itself, or to a cleared reference
+    // Safety from rep exposure
+    //    TABLES is private and never returned; the email lists it holds are immutable
+    // Thread safety argument
+    //    each table is only accessed while holding its own lock, so threads interning lists with
+    //    different hash codes rarely contend
+
+    private EmailListInterner() {
+        throw new AssertionError("not instantiable");
+    }
+
+    /**
+     * Intern an email list.
+     *
+     * @param <T> type of the email list
+     * @param emailList a newly made email list, whose children (if any) were interned
+     * @return the interned email list equal to emailList: emailList itself, if no equal list was interned before
+     */
+    @SuppressWarnings("unchecked")
+    static <T extends EmailList> T intern(T emailList) {
+        final int hash = emailList.hashCode();
+        final Map<EmailList, WeakReference<EmailList>> table = TABLES.get((hash ^ (hash >>> 16)) & (STRIPES - 1));
+        synchronized (table) {
+            final WeakReference<EmailList> existing = table.get(emailList);
+            if (existing != null) {
+                final EmailList interned = existing.get();
+                if (interned != null) {
+                    return (T) interned;
+                }
+            }
+            table.put(emailList, new WeakReference<>(emailList));
+            return emailList;
+        }
+    }
+}
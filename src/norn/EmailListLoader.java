@@ -0,0 +1,193 @@
+package norn;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ConcurrentModificationException;
+import java.util.Map;
+import java.util.Set;
+
+import lib6005.parser.UnableToParseException;
+
+/**
+ * Loads files of email list expressions, such as those written by the console's !save -text command,
+ * and binary snapshots written by its !save command, into an environment.
+ *
+ * The input is read incrementally and split into statements at every ';' and line break outside
+ * parentheses, so only one statement is held as a string at a time, however long the lines of the
+ * file are. All statements are evaluated into one batch, recursive definitions are checked once for
+ * the whole batch, and the batch is committed to the environment atomically: either every statement
+ * in the input takes effect or none does. A batch evaluated against a snapshot of an Environment is
+ * only committed if none of the lists it read were changed by another transaction in the meantime;
+ * otherwise a file is loaded again, and a stream, which can't be read again, is rejected.
+ */
+public class EmailListLoader {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Load the expressions read from a stream into an environment.
+     * If environment is an Environment, the statements are evaluated against a snapshot without
+     * blocking other readers or writers, and then committed in a single transaction, unless another
+     * transaction changed one of the lists they read in the meantime.
+     *
+     * @param in stream of expressions, separated by ';' or line breaks
+     * @param environment the environment in which the value of email lists are stored; modified by every
+     *                    assignment in the input if all of them are valid, not modified otherwise
+     * @return the number of non-empty statements loaded
+     * @throws IOException if in can't be read
+     * @throws IllegalArgumentException if a statement is invalid, or the statements define a list recursively
+     * @throws ConcurrentModificationException if environment is an Environment and a list read by the statements
+     *                                         was changed while they were evaluated; environment is not modified
+     *                                         by the statements, and the stream must be loaded again
+     */
+    public static int load(Reader in, Map<String, EmailList> environment) throws IOException {
+        if (environment instanceof Environment) {
+            final Environment shared = (Environment) environment;
+            final EnvironmentOverlay batch = new EnvironmentOverlay(shared.snapshot(), shared.state(), true);
+            final int statements = evaluateAll(in, batch);
+            final Map<String, EmailList> assignments = batch.writes();
+            final DependencyGraph graph = shared.state().dependencyGraph();
+            shared.commit(assignments, (latest, committed) -> {
+                // the assignments are only valid in latest if everything they were computed from is unchanged
+                final Set<String> changed = batch.changedReads(latest);
+                if (!changed.isEmpty()) {
+                    throw new ConcurrentModificationException(
+                            "lists read by the load were changed concurrently: " + changed);
+                }
+                checkNoCycle(assignments.keySet(), committed, graph);
+            });
+            return statements;
+        }
+        synchronized (environment) {
+            final EnvironmentOverlay batch = new EnvironmentOverlay(environment, EnvironmentState.of(environment));
+            final int statements = evaluateAll(in, batch);
+            commit(batch.writes(), environment);
+            return statements;
+        }
+    }
+
+    /**
+     * Load a file into an environment. The file may be a binary snapshot written by
+     * {@link EmailListSnapshot#write}, or text expressions as read by {@link #load(Reader, Map)};
+     * the format is detected from the start of the file. If environment is an Environment and a list
+     * read by the expressions in the file is changed while they are evaluated, the file is loaded again.
+     *
+     * @param filename name of the file to load
+     * @param environment the environment in which the value of email lists are stored; modified by every
+     *                    assignment in the file if all of them are valid, not modified otherwise
+     * @throws FileNotFoundException if the file does not exist
+     * @throws IOException if the file can't be read, or is a corrupt snapshot
+     * @throws IllegalArgumentException if a statement is invalid, or the file defines a list recursively
+     */
+    public static void loadFile(String filename, Map<String, EmailList> environment) throws IOException {
+        while (true) {
+            try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(filename), BUFFER_SIZE)) {
+                if (EmailListSnapshot.isSnapshot(in)) {
+                    commit(EmailListSnapshot.read(in), environment);
+                } else {
+                    load(new InputStreamReader(in, StandardCharsets.UTF_8), environment);
+                }
+                return;
+            } catch (ConcurrentModificationException e) {
+                // the expressions are evaluated again against the lists as they are now
+            }
+        }
+    }
+
+    /**
+     * Atomically assign a batch of email lists in an environment, if they define no list recursively.
+     *
+     * @param assignments map of list names to the email lists to assign to them
+     * @param environment the environment in which the value of email lists are stored; modified by every
+     *                    assignment if they define no list recursively, not modified otherwise
+     * @throws IllegalArgumentException if the assignments would make a list refer to itself
+     */
+    static void commit(Map<String, EmailList> assignments, Map<String, EmailList> environment) {
+        final EnvironmentState state = EnvironmentState.of(environment);
+        if (environment instanceof Environment) {
+            ((Environment) environment).commit(assignments,
+                    (latest, committed) -> checkNoCycle(assignments.keySet(), committed, state.dependencyGraph()));
+            return;
+        }
+        synchronized (environment) {
+            final EnvironmentOverlay committed = new EnvironmentOverlay(environment, state);
+            committed.putAll(assignments);
+            checkNoCycle(assignments.keySet(), committed, state.dependencyGraph());
+            environment.putAll(assignments);
+        }
+        for (String listName : assignments.keySet()) {
+            state.recipientCache().invalidate(listName);
+        }
+    }
+
+    /**
+     * Evaluate every statement read from a stream, without checking for recursive definitions.
+     *
+     * @param in stream of expressions, separated by ';' or line breaks
+     * @param batch environment to evaluate the statements in, modified by their assignments
+     * @return the number of non-empty statements evaluated
+     * @throws IOException if in can't be read
+     * @throws IllegalArgumentException if a statement is invalid
+     */
+    private static int evaluateAll(Reader in, Map<String, EmailList> batch) throws IOException {
+        final BufferedReader reader = new BufferedReader(in, BUFFER_SIZE);
+        final StringBuilder statement = new StringBuilder();
+        int statements = 0;
+        int depth = 0;
+        for (int c = reader.read(); c != -1; c = reader.read()) {
+            if (depth == 0 && (c == ';' || c == '\n' || c == '\r')) {
+                statements += evaluate(statement, batch, statements);
+                statement.setLength(0);
+                continue;
+            }
+            if (c == '(') {
+                depth++;
+            } else if (c == ')' && depth > 0) {
+                depth--;
+            }
+            statement.append((char) c);
+        }
+        statements += evaluate(statement, batch, statements);
+        return statements;
+    }
+
+    /**
+     * Evaluate one statement, without checking for recursive definitions.
+     *
+     * @param statement expression with no ';' or line break outside parentheses
+     * @param batch environment to evaluate the statement in, modified by its assignments
+     * @param previous number of statements evaluated before this one
+     * @return 0 if statement is blank, 1 otherwise
+     * @throws IllegalArgumentException if statement is invalid
+     */
+    private static int evaluate(CharSequence statement, Map<String, EmailList> batch, int previous) {
+        if (statement.toString().trim().isEmpty()) {
+            return 0;
+        }
+        try {
+            EmailListRecursiveDescentParser.parse(statement.toString(), batch, false);
+            return 1;
+        } catch (UnableToParseException e) {
+            throw new IllegalArgumentException("statement " + (previous + 1) + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Check that no list reachable from some assigned lists is defined recursively.
+     *
+     * @param assigned names of the lists that were assigned
+     * @param environment the environment with the assignments made
+     * @param graph the dependency graph of the environment
+     * @throws IllegalArgumentException if a list reachable from assigned refers to itself
+     */
+    private static void checkNoCycle(Set<String> assigned, Map<String, EmailList> environment, DependencyGraph graph) {
+        graph.findCycle(assigned, environment).ifPresent(listName -> {
+            throw new IllegalArgumentException("Recursive list definition not allowed: " + listName);
+        });
+    }
+}
@@ -0,0 +1,357 @@
+package norn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Rewrites email lists into equivalent email lists that are cheaper to evaluate.
+ *
+ * The rewrites are:
+ * <ul>
+ *  <li>chains of unions and of intersections are flattened, so each is treated as one n-ary operation,
+ *      and repeated operands are dropped;
+ *  <li>empty operands are removed from unions, and an intersection with an empty operand is empty;
+ *  <li>the operands of an intersection are ordered smallest first, using the cached sizes of named
+ *      lists, or a bound from their definitions if they are not cached, so the intermediate results
+ *      are as small as possible and evaluation stops at the first empty one;
+ *  <li>x ! empty is x, and empty ! x and x ! x are empty;
+ *  <li>a difference from an intersection is pushed down onto the smallest operand of the intersection;
+ *  <li>unions are rebuilt as balanced trees of their operands in a canonical order, so that operands are
+ *      merged with operands of similar size, and unions of the same operands are equal.
+ * </ul>
+ * The optimized list has the same recipients as the original in the same environment, but may print
+ * differently, so it is only used for evaluation and never stored in the environment.
+ */
+public class EmailListOptimizer implements EmailList.Visitor<EmailList> {
+    // estimate of a list whose size is not known without evaluating it
+    private static final long UNBOUNDED = Long.MAX_VALUE;
+
+    private final Map<String, EmailList> environment;
+    private final Map<EmailList, Long> estimates = new IdentityHashMap<>();
+    private final EmailList.Visitor<Long> estimator = new Estimator();
+
+    // Abstraction function
+    //    AF(environment, estimates) = an optimization of email lists for evaluation in environment, which has
+    //                                 estimated that each optimized email list e in estimates has at most
+    //                                 estimates.get(e) recipients
+    // Rep invariant
+    //    every estimate is >= 0
+    // Safety from rep exposure
+    //    all fields are private and final, and never returned
+    // Thread safety argument
+    //    not thread-safe; optimizers are confined to the thread that made them by optimize()
+
+    /**
+     * @param environment the environment in which the value of email lists are stored
+     */
+    private EmailListOptimizer(Map<String, EmailList> environment) {
+        this.environment = environment;
+    }
+
+    /**
+     * Optimize an email list for evaluation.
+     *
+     * @param emailList email list to optimize
+     * @param environment the environment the email list will be evaluated in; sizes are estimated from
+     *                    the cached recipients of the lists it refers to, and no list is evaluated
+     * @return an email list with the same recipients as emailList in environment
+     */
+    public static EmailList optimize(EmailList emailList, Map<String, EmailList> environment) {
+        return emailList.accept(new EmailListOptimizer(environment));
+    }
+
+    @Override
+    public EmailList on(Empty empty) {
+        return empty;
+    }
+
+    @Override
+    public EmailList on(Single single) {
+        return single;
+    }
+
+    @Override
+    public EmailList on(ListName listName) {
+        return listName;
+    }
+
+    @Override
+    public EmailList on(Union union) {
+        final Set<EmailList> operands = new LinkedHashSet<>();
+        for (EmailList operand : flatten(union, Union.class)) {
+            final EmailList optimized = operand.accept(this);
+            if (!(optimized instanceof Empty)) {
+                operands.add(optimized);
+            }
+        }
+        // a canonical order, so that unions of the same operands are the same interned list
+        final List<EmailList> ordered = new ArrayList<>(operands);
+        ordered.sort(Comparator.comparingInt(EmailList::hashCode));
+        return balancedUnion(ordered, 0, ordered.size());
+    }
+
+    @Override
+    public EmailList on(Intersection intersection) {
+        final Set<EmailList> distinct = new LinkedHashSet<>();
+        for (EmailList operand : flatten(intersection, Intersection.class)) {
+            final EmailList optimized = operand.accept(this);
+            if (estimate(optimized) == 0) {
+                return EmailList.empty();
+            }
+            distinct.add(optimized);
+        }
+        final List<EmailList> operands = new ArrayList<>(distinct);
+        operands.sort(Comparator.comparingLong(this::estimate));
+        return leftDeepIntersection(operands);
+    }
+
+    @Override
+    public EmailList on(Difference difference) {
+        // a ! b ! c parses to ((a ! b) ! c), so a long chain is walked down its left operands without
+        // recursion, and its differences are optimized from the innermost outwards
+        final Deque<EmailList> subtrahends = new ArrayDeque<>();
+        EmailList minuend = difference;
+        while (minuend instanceof Difference) {
+            subtrahends.push(((Difference) minuend).getRight());
+            minuend = ((Difference) minuend).getLeft();
+        }
+        EmailList left = minuend.accept(this);
+        for (EmailList subtrahend : subtrahends) {
+            if (estimate(left) == 0) {
+                return EmailList.empty();
+            }
+            left = difference(left, subtrahend.accept(this));
+        }
+        return left;
+    }
+
+    /**
+     * @param left an optimized email list with recipients
+     * @param right an optimized email list
+     * @return an optimized email list with the recipients of left ! right
+     */
+    private EmailList difference(EmailList left, EmailList right) {
+        if (estimate(right) == 0) {
+            return left;
+        }
+        if (left.equals(right)) {
+            return EmailList.empty();
+        }
+        if (left instanceof Intersection) {
+            // (a * b * ...) ! c == (a ! c) * b * ..., and a is the smallest operand
+            final List<EmailList> operands = flatten(left, Intersection.class);
+            operands.set(0, remember(EmailList.difference(operands.get(0), right), estimate(operands.get(0))));
+            return leftDeepIntersection(operands);
+        }
+        return remember(EmailList.difference(left, right), estimate(left));
+    }
+
+    /**
+     * Collect the operands of a chain of binary operations of one kind, without recursion.
+     *
+     * @param emailList root of the chain
+     * @param operation class of the operation, Union or Intersection
+     * @return the operands of the chain from left to right, none of which is of class operation
+     */
+    private static List<EmailList> flatten(EmailList emailList, Class<? extends EmailList> operation) {
+        final List<EmailList> operands = new ArrayList<>();
+        final Deque<EmailList> pending = new ArrayDeque<>();
+        pending.push(emailList);
+        while (!pending.isEmpty()) {
+            final EmailList next = pending.pop();
+            if (next instanceof Union && operation == Union.class) {
+                pending.push(((Union) next).getRight());
+                pending.push(((Union) next).getLeft());
+            } else if (next instanceof Intersection && operation == Intersection.class) {
+                pending.push(((Intersection) next).getRight());
+                pending.push(((Intersection) next).getLeft());
+            } else {
+                operands.add(next);
+            }
+        }
+        return operands;
+    }
+
+    /**
+     * @param operands optimized email lists
+     * @param from index of the first operand to include
+     * @param to index after the last operand to include
+     * @return balanced tree of the unions of operands[from..to), or empty if there are none
+     */
+    private EmailList balancedUnion(List<EmailList> operands, int from, int to) {
+        if (to - from == 0) {
+            return EmailList.empty();
+        }
+        if (to - from == 1) {
+            return operands.get(from);
+        }
+        final int middle = (from + to) >>> 1;
+        final EmailList left = balancedUnion(operands, from, middle);
+        final EmailList right = balancedUnion(operands, middle, to);
+        return remember(EmailList.union(left, right), sum(estimate(left), estimate(right)));
+    }
+
+    /**
+     * @param operands optimized email lists, at least one, in the order to intersect them
+     * @return ((operands[0] * operands[1]) * ...) * operands[n-1]
+     */
+    private EmailList leftDeepIntersection(List<EmailList> operands) {
+        EmailList result = operands.get(0);
+        for (EmailList operand : operands.subList(1, operands.size())) {
+            result = remember(EmailList.intersection(result, operand), Math.min(estimate(result), estimate(operand)));
+        }
+        return result;
+    }
+
+    /**
+     * @param emailList an optimized email list
+     * @param estimate upper bound on its number of recipients
+     * @return emailList
+     */
+    private EmailList remember(EmailList emailList, long estimate) {
+        estimates.putIfAbsent(emailList, estimate);
+        return emailList;
+    }
+
+    /**
+     * @param a an estimate
+     * @param b an estimate
+     * @return a + b, or UNBOUNDED if that overflows
+     */
+    private static long sum(long a, long b) {
+        return a > UNBOUNDED - b ? UNBOUNDED : a + b;
+    }
+
+    /**
+     * @param emailList an optimized email list
+     * @return an upper bound on the number of recipients of emailList, which is exact for
+     *         empty and single lists, and for named lists whose recipients are cached
+     */
+    private long estimate(EmailList emailList) {
+        // a difference is estimated by its left operand, so a chain of differences is walked without recursion
+        final List<EmailList> chain = new ArrayList<>();
+        EmailList node = emailList;
+        Long known = estimates.get(node);
+        while (known == null && node instanceof Difference) {
+            chain.add(node);
+            node = ((Difference) node).getLeft();
+            known = estimates.get(node);
+        }
+        final long estimate = known != null ? known : node.accept(estimator);
+        estimates.put(node, estimate);
+        for (EmailList difference : chain) {
+            estimates.put(difference, estimate);
+        }
+        return estimate;
+    }
+
+    /**
+     * Estimates the number of recipients of an optimized email list.
+     */
+    private class Estimator implements EmailList.Visitor<Long> {
+        @Override
+        public Long on(Empty empty) {
+            return 0L;
+        }
+
+        @Override
+        public Long on(Single single) {
+            return 1L;
+        }
+
+        @Override
+        public Long on(Union union) {
+            return sum(estimate(union.getLeft()), estimate(union.getRight()));
+        }
+
+        @Override
+        public Long on(Intersection intersection) {
+            return Math.min(estimate(intersection.getLeft()), estimate(intersection.getRight()));
+        }
+
+        @Override
+        public Long on(Difference difference) {
+            // not reached: estimate() walks differences itself
+            return estimate(difference.getLeft());
+        }
+
+        @Override
+        public Long on(ListName listName) {
+            final EmailList definition = environment.get(listName.getName());
+            if (definition == null) {
+                return 0L;
+            }
+            final Optional<RecipientSet> cached = cachedRecipients(listName);
+            if (cached.isPresent()) {
+                return (long) cached.get().size();
+            }
+            // evaluating an uncached list just to plan would cost as much as the evaluation being planned,
+            // so it is bounded by the structure of its definition instead
+            return EmailListTraversal.fold(definition, new DefinitionBound());
+        }
+    }
+
+    /**
+     * @param listName a list name
+     * @return the recipients of listName in the environment, if they are cached
+     */
+    private Optional<RecipientSet> cachedRecipients(ListName listName) {
+        return EnvironmentState.of(environment).recipientCache().cached(listName.getName(), environment);
+    }
+
+    /**
+     * Bounds the number of recipients of a definition without evaluating any list: the lists it refers
+     * to count their cached sizes, or are UNBOUNDED if they are not cached.
+     */
+    private class DefinitionBound implements EmailListTraversal.Fold<Long> {
+        @Override
+        public Long empty(Empty empty) {
+            return 0L;
+        }
+
+        @Override
+        public Long single(Single single) {
+            return 1L;
+        }
+
+        @Override
+        public Long listName(ListName listName) {
+            if (!environment.containsKey(listName.getName())) {
+                return 0L;
+            }
+            return cachedRecipients(listName).map(recipients -> (long) recipients.size()).orElse(UNBOUNDED);
+        }
+
+        @Override
+        public Long union(List<Long> operands) {
+            long bound = 0;
+            for (long operand : operands) {
+                bound = sum(bound, operand);
+            }
+            return bound;
+        }
+
+        @Override
+        public Long intersection(Long left, Long right) {
+            return Math.min(left, right);
+        }
+
+        @Override
+        public Long difference(Long left, Long right) {
+            return left;
+        }
+
+        @Override
+        public boolean isEmpty(Long left) {
+            return left == 0;
+        }
+    }
+}
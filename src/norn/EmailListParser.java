@@ -1,11 +1,10 @@
 package norn;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
 
 import lib6005.parser.ParseTree;
 import lib6005.parser.Parser;
@@ -19,33 +18,42 @@ import lib6005.parser.UnableToParseException;
  *
  */
 public class EmailListParser {
-    private static final File GRAMMAR_FILE = new File("src/norn/EmailList.g");
+    // the grammar is loaded from the classpath, next to this class, so that it is found
+    // from any working directory and when the classes are packaged in a jar
+    private static final String GRAMMAR_RESOURCE = "EmailList.g";
 
     // the nonterminals of the grammar
     private enum EmailListGrammar {
         ROOT, SEQUENCE, ASSIGNMENT, UNION, DIFFERENCE, INTERSECTION, PRIMITIVE, EMAIL, USERNAME, LISTNAME, WHITESPACE
     };
 
-    private static Parser<EmailListGrammar> parser = makeParser(GRAMMAR_FILE);
+    /**
+     * Holds the compiled grammar, so that the grammar is compiled once, on first use.
+     */
+    private static class CompiledGrammar {
+        private static final Parser<EmailListGrammar> parser = makeParser(GRAMMAR_RESOURCE);
+    }
     
     /**
      * Compile the grammar into a parser.
      * 
-     * @param grammar file containing the grammar
+     * @param grammar name of the classpath resource containing the grammar, relative to this class
      * @return parser for the grammar
-     * @throws RuntimeException if grammar file can't be read or has syntax errors
+     * @throws RuntimeException if grammar resource can't be found or read or has syntax errors
      */
-    private static Parser<EmailListGrammar> makeParser(final File grammar) {
-        try {
-
-            return Parser.compile(grammar, EmailListGrammar.ROOT);
+    private static Parser<EmailListGrammar> makeParser(final String grammar) {
+        try (InputStream in = EmailListParser.class.getResourceAsStream(grammar)) {
+            if (in == null) {
+                throw new RuntimeException("can't find the grammar resource " + grammar);
+            }
+            return Parser.compile(in, EmailListGrammar.ROOT);
 
             // translate these checked exceptions into unchecked
             // RuntimeExceptions,
             // because these failures indicate internal bugs rather than client
             // errors
         } catch (IOException e) {
-            throw new RuntimeException("can't read the grammar file", e);
+            throw new RuntimeException("can't read the grammar resource", e);
         } catch (UnableToParseException e) {
             throw new RuntimeException("the grammar has a syntax error", e);
         }
@@ -62,7 +70,7 @@ public class EmailListParser {
      */
     public static EmailList parse(final String string, final Map<String, EmailList> environment) throws UnableToParseException {
         // parse the example into a parse tree
-        final ParseTree<EmailListGrammar> parseTree = parser.parse(string);
+        final ParseTree<EmailListGrammar> parseTree = CompiledGrammar.parser.parse(string);
 
         // make an AST from the parse tree
         final EmailList emailList = makeAbstractSyntaxTree(parseTree, environment, Optional.empty());
@@ -70,6 +78,69 @@ public class EmailListParser {
         return emailList;
     }
     
+    /**
+     * Assign an email list to a list name in an environment.
+     * Only the lists reachable from emailList are checked for a recursive definition, and only
+     * the cached recipients of listname and the lists that depend on it are invalidated.
+     * 
+     * @param listname the lowercased name of the list being assigned
+     * @param emailList the email list to be assigned to listname
+     * @param environment a mapping from previously created listnames to the email lists they are assigned to.
+     * Modifies environment by mapping listname to emailList.
+     * @throws IllegalArgumentException if the assignment would make a list refer to itself
+     */
+    static void assign(final String listname, final EmailList emailList, final Map<String, EmailList> environment) {
+        assign(listname, emailList, environment, true);
+    }
+    
+    /**
+     * Assign an email list to a list name in an environment, optionally leaving the check for
+     * recursive definitions to the caller.
+     * 
+     * @param listname the lowercased name of the list being assigned
+     * @param emailList the email list to be assigned to listname
+     * @param environment a mapping from previously created listnames to the email lists they are assigned to.
+     * Modifies environment by mapping listname to emailList.
+     * @param checkCycles true to reject recursive definitions; if false, the caller must check the environment
+     * with {@link DependencyGraph#findCycle} before any recipients are evaluated in it
+     * @throws IllegalArgumentException if checkCycles and the assignment would make a list refer to itself
+     */
+    static void assign(final String listname, final EmailList emailList, final Map<String, EmailList> environment, boolean checkCycles) {
+        final EnvironmentState state = EnvironmentState.of(environment);
+        if (checkCycles) {
+            final long start = System.nanoTime();
+            final boolean createsCycle = state.dependencyGraph().createsCycle(listname, emailList, environment);
+            Metrics.record(Metrics.Stage.CYCLE_CHECK, start);
+            if (createsCycle) {
+                throw new IllegalArgumentException("Recursive list definition not allowed!");
+            }
+        }
+        environment.put(listname, emailList);
+        state.dependencyGraph().update(listname, emailList);
+        state.recipientCache().invalidate(listname);
+    }
+
+    /**
+     * Make the email list for a list name occurring in an expression.
+     * 
+     * @param listname the lowercased list name
+     * @param environment a mapping from previously created listnames to the email lists they are assigned to.
+     * Modifies environment by mapping listname to an empty list if listname is undefined.
+     * @param listNameToBeExtended the name of the list being assigned by the enclosing assignment, if any
+     * @return the current value of listname if it is the list being assigned, so that the assignment
+     *         extends the previous value; otherwise a ListName referring to listname
+     */
+    static EmailList resolveListName(final String listname, final Map<String, EmailList> environment, Optional<String> listNameToBeExtended) {
+        if(environment.containsKey(listname)){
+            if (listNameToBeExtended.isPresent() && listNameToBeExtended.get().equals(listname)){
+                return environment.get(listname);
+            }
+        } else {
+            environment.put(listname, EmailList.empty()); //added this line in 
+        }
+        return EmailList.listName(listname);
+    }
+
     /**
      * Convert a parse tree into an abstract syntax tree.
      * 
@@ -92,14 +163,7 @@ public class EmailListParser {
                 final List<ParseTree<EmailListGrammar>> children = parseTree.children();
                 final String listname = children.get(0).text().toLowerCase();
                 EmailList emailList = makeAbstractSyntaxTree(children.get(1), environment, Optional.of(listname));
-                Set<String> newlyReferredListsExcludeSelf = emailList.getReferencedLists(environment);
-                newlyReferredListsExcludeSelf.remove(listname);
-                for (String referredList : newlyReferredListsExcludeSelf){
-                    if (environment.get(referredList).getReferencedLists(environment).contains(listname)){
-                        throw new IllegalArgumentException("Recursive list definition not allowed!");
-                    }
-                }
-                environment.put(listname, emailList);
+                assign(listname, emailList, environment);
                 return emailList;
             }
         case UNION: // union ::= difference (',' difference)*;
@@ -160,15 +224,7 @@ public class EmailListParser {
         case LISTNAME: // listname ::= [A-Za-z0-9\_\-'.']+;
         {
             final String listname = parseTree.text().toLowerCase();
-            if(environment.containsKey(listname)){
-                if (listNameToBeExtended.isPresent() && listNameToBeExtended.get().equals(listname)){
-                    return environment.get(listname);
-                }
-            } else {
-                environment.put(listname, EmailList.empty()); //added this line in 
-            }
-            return EmailList.listName(listname);
-            
+            return resolveListName(listname, environment, listNameToBeExtended);
         }
         case USERNAME: // username ::= [A-Za-z0-9\_\-'.''+']+;
         {
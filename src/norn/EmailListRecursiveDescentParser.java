@@ -0,0 +1,274 @@
+package norn;
+
+import java.util.Map;
+import java.util.Optional;
+
+import lib6005.parser.UnableToParseException;
+
+/**
+ * Hand-written parser for the grammar in EmailList.g.
+ *
+ * Parses an expression in a single left-to-right pass, building the EmailList abstract syntax tree
+ * directly with no intermediate parse tree, so parse time is linear in the length of the input.
+ * Accepts the same language and produces the same email lists and environment changes as
+ * {@link EmailListParser}.
+ */
+public class EmailListRecursiveDescentParser {
+    private static final String LISTNAME_SPECIAL_CHARACTERS = "_-.";
+    private static final String USERNAME_SPECIAL_CHARACTERS = "_-.+";
+    private static final String WHITESPACE = " \t\r\n";
+
+    private final String input;
+    private final Map<String, EmailList> environment;
+    private final boolean building;
+    private final boolean checkCycles;
+    private int position = 0;
+
+    // Abstraction function
+    //    AF(input, environment, building, position) = a parser part way through input, with
+    //                                                  input[0..position) already parsed; if building,
+    //                                                  the assignments parsed so far are in environment.
+    // Rep invariant
+    //    0 <= position <= input.length()
+    // Safety from rep exposure
+    //    instances are private to this class and used for a single parse.
+
+    /**
+     * Make a parser positioned at the start of its input.
+     *
+     * @param input string to parse
+     * @param environment environment to evaluate list names and assignments in, modified by parsing
+     * @param building true to build email lists and evaluate assignments, false to only check
+     *                 that input matches the grammar
+     * @param checkCycles true to reject recursive definitions as they are assigned
+     */
+    private EmailListRecursiveDescentParser(String input, Map<String, EmailList> environment, boolean building, boolean checkCycles) {
+        this.input = input;
+        this.environment = environment;
+        this.building = building;
+        this.checkCycles = checkCycles;
+    }
+
+    /**
+     * Parse a string into an email list.
+     * @param string string to parse
+     * @param environment a mapping from previously created listnames to the email lists they are assigned to.
+     * Modifies environment by setting a corresponding mapping
+     * from listname to EmailList for every listname definition in string. If string does not match the
+     * grammar, environment is not modified.
+     * @return EmailList parsed from the string
+     * @throws UnableToParseException if the string doesn't match the Expression grammar, with the column
+     *         where parsing failed
+     * @throws IllegalArgumentException if an assignment in string would define a list recursively;
+     *         environment keeps the changes made by the expressions before that assignment
+     */
+    public static EmailList parse(final String string, final Map<String, EmailList> environment) throws UnableToParseException {
+        return parse(string, environment, true);
+    }
+
+    /**
+     * Parse a string into an email list, optionally leaving the check for recursive definitions to the caller.
+     * @param string string to parse
+     * @param environment a mapping from previously created listnames to the email lists they are assigned to,
+     * modified as for {@link #parse(String, Map)}
+     * @param checkCycles true to reject recursive definitions as they are assigned; if false, the caller must
+     * check the environment with {@link DependencyGraph#findCycle} before any recipients are evaluated in it
+     * @return EmailList parsed from the string
+     * @throws UnableToParseException if the string doesn't match the Expression grammar, with the column
+     *         where parsing failed
+     * @throws IllegalArgumentException if checkCycles and an assignment in string would define a list recursively
+     */
+    static EmailList parse(final String string, final Map<String, EmailList> environment, boolean checkCycles) throws UnableToParseException {
+        // changes are collected in an overlay, so that a syntax error late in the input
+        // leaves the environment as it was, as it would be if the whole input were parsed first
+        final EnvironmentOverlay overlay = new EnvironmentOverlay(environment, EnvironmentState.of(environment));
+        final EmailList emailList;
+        try {
+            emailList = new EmailListRecursiveDescentParser(string, overlay, true, checkCycles).parseRoot();
+        } catch (IllegalArgumentException e) {
+            new EmailListRecursiveDescentParser(string, overlay, false, checkCycles).parseRoot();
+            environment.putAll(overlay.writes());
+            throw e;
+        }
+        environment.putAll(overlay.writes());
+        return emailList;
+    }
+
+    /**
+     * root ::= sequence;
+     * @return the email list of the whole input
+     * @throws UnableToParseException if the input doesn't match the grammar
+     */
+    private EmailList parseRoot() throws UnableToParseException {
+        final EmailList emailList = parseSequence(Optional.empty());
+        skipWhitespace();
+        if (position < input.length()) {
+            throw error("expected ';', ',', '!', '*' or end of input");
+        }
+        return emailList;
+    }
+
+    /**
+     * sequence ::= union (';' union)*;
+     * @param listNameToBeExtended the name of the list being assigned by the enclosing assignment, if any
+     * @return the email list of the last union in the sequence
+     * @throws UnableToParseException if the input doesn't match the grammar
+     */
+    private EmailList parseSequence(Optional<String> listNameToBeExtended) throws UnableToParseException {
+        EmailList emailList = parseUnion(listNameToBeExtended);
+        while (skipWhitespaceAndMatch(';')) {
+            emailList = parseUnion(listNameToBeExtended);
+        }
+        return emailList;
+    }
+
+    /**
+     * union ::= difference (',' difference)*;
+     * @param listNameToBeExtended the name of the list being assigned by the enclosing assignment, if any
+     * @return the union of the differences, grouped from the left
+     * @throws UnableToParseException if the input doesn't match the grammar
+     */
+    private EmailList parseUnion(Optional<String> listNameToBeExtended) throws UnableToParseException {
+        EmailList emailList = parseDifference(listNameToBeExtended);
+        while (skipWhitespaceAndMatch(',')) {
+            final EmailList right = parseDifference(listNameToBeExtended);
+            if (building) {
+                emailList = EmailList.union(emailList, right);
+            }
+        }
+        return emailList;
+    }
+
+    /**
+     * difference ::= intersection ('!' intersection)*;
+     * @param listNameToBeExtended the name of the list being assigned by the enclosing assignment, if any
+     * @return the difference of the intersections, grouped from the left
+     * @throws UnableToParseException if the input doesn't match the grammar
+     */
+    private EmailList parseDifference(Optional<String> listNameToBeExtended) throws UnableToParseException {
+        EmailList emailList = parseIntersection(listNameToBeExtended);
+        while (skipWhitespaceAndMatch('!')) {
+            final EmailList right = parseIntersection(listNameToBeExtended);
+            if (building) {
+                emailList = EmailList.difference(emailList, right);
+            }
+        }
+        return emailList;
+    }
+
+    /**
+     * intersection ::= primitive ('*' primitive)*;
+     * @param listNameToBeExtended the name of the list being assigned by the enclosing assignment, if any
+     * @return the intersection of the primitives, grouped from the left
+     * @throws UnableToParseException if the input doesn't match the grammar
+     */
+    private EmailList parseIntersection(Optional<String> listNameToBeExtended) throws UnableToParseException {
+        EmailList emailList = parsePrimitive(listNameToBeExtended);
+        while (skipWhitespaceAndMatch('*')) {
+            final EmailList right = parsePrimitive(listNameToBeExtended);
+            if (building) {
+                emailList = EmailList.intersection(emailList, right);
+            }
+        }
+        return emailList;
+    }
+
+    /**
+     * primitive ::= email | listname | '(' sequence ')' | assignment;
+     * assignment ::= listname '=' union;
+     * email ::= (username '@' listname)?;
+     *
+     * The alternative is chosen by the first character, and for a run of name characters
+     * by whether it is followed by '@' (email), by '=' (assignment) or by anything else (listname).
+     *
+     * @param listNameToBeExtended the name of the list being assigned by the enclosing assignment, if any
+     * @return the email list of the primitive
+     * @throws UnableToParseException if the input doesn't match the grammar
+     */
+    private EmailList parsePrimitive(Optional<String> listNameToBeExtended) throws UnableToParseException {
+        if (skipWhitespaceAndMatch('(')) {
+            final EmailList emailList = parseSequence(listNameToBeExtended);
+            if (!skipWhitespaceAndMatch(')')) {
+                throw error("expected ')'");
+            }
+            return emailList;
+        }
+        final int start = position;
+        while (position < input.length() && isNameCharacter(input.charAt(position), USERNAME_SPECIAL_CHARACTERS)) {
+            position++;
+        }
+        if (position == start) {
+            // the empty email address
+            return building ? EmailList.empty() : null;
+        }
+        if (position < input.length() && input.charAt(position) == '@') {
+            position++;
+            final int domainStart = position;
+            while (position < input.length() && isNameCharacter(input.charAt(position), LISTNAME_SPECIAL_CHARACTERS)) {
+                position++;
+            }
+            if (position == domainStart) {
+                throw error("expected domain name");
+            }
+            return building ? EmailList.single(input.substring(start, position)) : null;
+        }
+        final int plus = input.substring(start, position).indexOf('+');
+        if (plus >= 0) {
+            position = start + plus;
+            throw error("expected '@' after username");
+        }
+        final String listname = input.substring(start, position).toLowerCase();
+        final int end = position;
+        if (skipWhitespaceAndMatch('=')) {
+            final EmailList emailList = parseUnion(Optional.of(listname));
+            if (building) {
+                EmailListParser.assign(listname, emailList, environment, checkCycles);
+            }
+            return emailList;
+        }
+        position = end;
+        return building ? EmailListParser.resolveListName(listname, environment, listNameToBeExtended) : null;
+    }
+
+    /**
+     * Skip whitespace, then consume a character if it is next in the input.
+     * @param expected character to match
+     * @return true iff expected was next after the whitespace, and was consumed
+     */
+    private boolean skipWhitespaceAndMatch(char expected) {
+        skipWhitespace();
+        if (position < input.length() && input.charAt(position) == expected) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Consume any whitespace at the current position.
+     */
+    private void skipWhitespace() {
+        while (position < input.length() && WHITESPACE.indexOf(input.charAt(position)) >= 0) {
+            position++;
+        }
+    }
+
+    /**
+     * @param c a character
+     * @param specialCharacters the characters other than letters and digits allowed in the name
+     * @return true iff c is an ASCII letter or digit, or one of specialCharacters
+     */
+    private static boolean isNameCharacter(char c, String specialCharacters) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || specialCharacters.indexOf(c) >= 0;
+    }
+
+    /**
+     * @param expected description of what was expected at the current position
+     * @return an exception describing a syntax error at the current position
+     */
+    private UnableToParseException error(String expected) {
+        final String found = position < input.length() ? "'" + input.charAt(position) + "'" : "end of input";
+        return new UnableToParseException("column " + (position + 1) + ": " + expected + " but found " + found);
+    }
+}
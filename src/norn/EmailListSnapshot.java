@@ -0,0 +1,357 @@
+package norn;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary snapshots of the lists in an environment.
+ *
+ * A snapshot is much smaller and faster to read back than the text written by the console's
+ * !save -text, because every distinct email address and list name is stored once, and every
+ * email list object is stored once however many lists share it, with no parentheses to reparse.
+ *
+ * Format (version 1), using DataOutput encodings, where varint is an unsigned LEB128 int:
+ * <pre>
+ *   snapshot  ::= MAGIC:int VERSION:int addresses names nodes entries
+ *   addresses ::= count:varint (address:UTF)*
+ *   names     ::= count:varint (name:UTF)*
+ *   nodes     ::= count:varint node*        -- each node only refers to nodes before it
+ *   node      ::= EMPTY | SINGLE address:varint | LISTNAME name:varint
+ *               | (UNION | INTERSECTION | DIFFERENCE) left:varint right:varint
+ *   entries   ::= count:varint (name:varint node:varint)*
+ * </pre>
+ */
+public class EmailListSnapshot {
+    /** the first four bytes of every snapshot, "NORN" */
+    public static final int MAGIC = 0x4E4F524E;
+    /** the version of the format written by this class */
+    public static final int VERSION = 1;
+
+    private static final byte EMPTY = 0;
+    private static final byte SINGLE = 1;
+    private static final byte UNION = 2;
+    private static final byte INTERSECTION = 3;
+    private static final byte DIFFERENCE = 4;
+    private static final byte LISTNAME = 5;
+
+    /**
+     * The children of an email list, in the order they are written.
+     */
+    private static final EmailList.Visitor<List<EmailList>> CHILDREN = new EmailList.Visitor<List<EmailList>>() {
+        @Override public List<EmailList> on(Empty empty) { return Arrays.asList(); }
+        @Override public List<EmailList> on(Single single) { return Arrays.asList(); }
+        @Override public List<EmailList> on(Union union) { return Arrays.asList(union.getLeft(), union.getRight()); }
+        @Override public List<EmailList> on(Intersection intersection) {
+            return Arrays.asList(intersection.getLeft(), intersection.getRight());
+        }
+        @Override public List<EmailList> on(Difference difference) {
+            return Arrays.asList(difference.getLeft(), difference.getRight());
+        }
+        @Override public List<EmailList> on(ListName listName) { return Arrays.asList(); }
+    };
+
+    /**
+     * Write a snapshot of email lists.
+     *
+     * @param out stream to write the snapshot to; not closed
+     * @param emailLists map of list names to the email lists assigned to them
+     * @throws IOException if out can't be written
+     */
+    public static void write(OutputStream out, Map<String, EmailList> emailLists) throws IOException {
+        final Encoder encoder = new Encoder();
+        final Map<String, Integer> entries = new HashMap<>();
+        for (Map.Entry<String, EmailList> entry : emailLists.entrySet()) {
+            entries.put(entry.getKey(), encoder.add(entry.getValue()));
+        }
+        final DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        writeStrings(data, encoder.addresses);
+        final List<String> names = new ArrayList<>(encoder.names);
+        final Map<String, Integer> nameIds = new HashMap<>(encoder.nameIds);
+        for (String listName : entries.keySet()) {
+            if (!nameIds.containsKey(listName)) {
+                nameIds.put(listName, names.size());
+                names.add(listName);
+            }
+        }
+        writeStrings(data, names);
+        writeVarInt(data, encoder.nodes.size());
+        data.write(encoder.encodedNodes.toByteArray());
+        writeVarInt(data, entries.size());
+        for (Map.Entry<String, Integer> entry : entries.entrySet()) {
+            writeVarInt(data, nameIds.get(entry.getKey()));
+            writeVarInt(data, entry.getValue());
+        }
+        data.flush();
+    }
+
+    /**
+     * Read a snapshot of email lists.
+     *
+     * @param in stream to read the snapshot from, positioned at its first byte; not closed
+     * @return map of list names to the email lists assigned to them in the snapshot
+     * @throws IOException if in can't be read, is not a snapshot, or is a snapshot of an unknown version
+     */
+    public static Map<String, EmailList> read(InputStream in) throws IOException {
+        final DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("not an email list snapshot");
+        }
+        final int version = data.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported snapshot version " + version);
+        }
+        final String[] addresses = readStrings(data);
+        final String[] names = readStrings(data);
+        final EmailList[] nodes = new EmailList[readVarInt(data)];
+        for (int i = 0; i < nodes.length; i++) {
+            final byte tag = data.readByte();
+            switch (tag) {
+            case EMPTY:
+                nodes[i] = EmailList.empty();
+                break;
+            case SINGLE:
+                nodes[i] = EmailList.single(lookup(addresses, readVarInt(data)));
+                break;
+            case LISTNAME:
+                nodes[i] = EmailList.listName(lookup(names, readVarInt(data)));
+                break;
+            case UNION:
+                nodes[i] = EmailList.union(nodes[readNodeId(data, i)], nodes[readNodeId(data, i)]);
+                break;
+            case INTERSECTION:
+                nodes[i] = EmailList.intersection(nodes[readNodeId(data, i)], nodes[readNodeId(data, i)]);
+                break;
+            case DIFFERENCE:
+                nodes[i] = EmailList.difference(nodes[readNodeId(data, i)], nodes[readNodeId(data, i)]);
+                break;
+            default:
+                throw new IOException("corrupt snapshot: unknown node type " + tag);
+            }
+        }
+        final int entries = readVarInt(data);
+        final Map<String, EmailList> emailLists = new HashMap<>();
+        for (int i = 0; i < entries; i++) {
+            final String listName = lookup(names, readVarInt(data));
+            emailLists.put(listName, nodes[readNodeId(data, nodes.length)]);
+        }
+        return emailLists;
+    }
+
+    /**
+     * Check whether a stream starts with a snapshot, without consuming any of it.
+     *
+     * @param in stream to check, which must support mark and reset
+     * @return true iff in starts with the snapshot MAGIC number
+     * @throws IOException if in can't be read
+     */
+    public static boolean isSnapshot(BufferedInputStream in) throws IOException {
+        in.mark(Integer.BYTES);
+        final byte[] start = new byte[Integer.BYTES];
+        int read = 0;
+        while (read < start.length) {
+            final int n = in.read(start, read, start.length - read);
+            if (n < 0) {
+                break;
+            }
+            read += n;
+        }
+        in.reset();
+        return read == start.length
+                && ((start[0] & 0xFF) << 24 | (start[1] & 0xFF) << 16 | (start[2] & 0xFF) << 8 | (start[3] & 0xFF)) == MAGIC;
+    }
+
+    /**
+     * Assigns ids to the distinct addresses, list names and email list objects of a snapshot,
+     * and encodes the nodes in an order where children come before their parents.
+     */
+    private static class Encoder {
+        private final List<String> addresses = new ArrayList<>();
+        private final Map<String, Integer> addressIds = new HashMap<>();
+        private final List<String> names = new ArrayList<>();
+        private final Map<String, Integer> nameIds = new HashMap<>();
+        private final Map<EmailList, Integer> nodes = new IdentityHashMap<>();
+        private final ByteArrayOutputStream encodedNodes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(encodedNodes);
+
+        /**
+         * Encode an email list and every email list it contains that is not encoded yet.
+         * Uses an explicit stack, so deeply nested email lists can be encoded.
+         *
+         * @param root email list to encode
+         * @return the id of root
+         * @throws IOException never, since the encoding is written to memory
+         */
+        private int add(EmailList root) throws IOException {
+            final Deque<EmailList> stack = new ArrayDeque<>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                final EmailList next = stack.peek();
+                if (nodes.containsKey(next)) {
+                    stack.pop();
+                    continue;
+                }
+                boolean childrenEncoded = true;
+                for (EmailList child : next.accept(CHILDREN)) {
+                    if (!nodes.containsKey(child)) {
+                        stack.push(child);
+                        childrenEncoded = false;
+                    }
+                }
+                if (childrenEncoded) {
+                    stack.pop();
+                    encode(next);
+                    nodes.put(next, nodes.size());
+                }
+            }
+            return nodes.get(root);
+        }
+
+        /**
+         * Write one email list whose children are already encoded.
+         * @param emailList email list to write
+         * @throws IOException never, since the encoding is written to memory
+         */
+        private void encode(EmailList emailList) throws IOException {
+            // the node type followed by its operands
+            final int[] node = emailList.accept(new EmailList.Visitor<int[]>() {
+                @Override public int[] on(Empty empty) {
+                    return new int[] { EMPTY };
+                }
+                @Override public int[] on(Single single) {
+                    return new int[] { SINGLE, id(addresses, addressIds, single.getRecipient()) };
+                }
+                @Override public int[] on(Union union) {
+                    return new int[] { UNION, nodes.get(union.getLeft()), nodes.get(union.getRight()) };
+                }
+                @Override public int[] on(Intersection intersection) {
+                    return new int[] { INTERSECTION, nodes.get(intersection.getLeft()), nodes.get(intersection.getRight()) };
+                }
+                @Override public int[] on(Difference difference) {
+                    return new int[] { DIFFERENCE, nodes.get(difference.getLeft()), nodes.get(difference.getRight()) };
+                }
+                @Override public int[] on(ListName listName) {
+                    return new int[] { LISTNAME, id(names, nameIds, listName.getName()) };
+                }
+            });
+            out.writeByte(node[0]);
+            for (int i = 1; i < node.length; i++) {
+                writeVarInt(out, node[i]);
+            }
+        }
+
+        /**
+         * @param strings the distinct strings in order of their ids, extended if s is new
+         * @param ids map from each string in strings to its id, extended if s is new
+         * @param s a string
+         * @return the id of s
+         */
+        private static int id(List<String> strings, Map<String, Integer> ids, String s) {
+            return ids.computeIfAbsent(s, added -> {
+                strings.add(added);
+                return strings.size() - 1;
+            });
+        }
+    }
+
+    /**
+     * @param data stream to read a node id from
+     * @param limit number of nodes read so far
+     * @return a node id less than limit
+     * @throws IOException if data can't be read or the id is not less than limit
+     */
+    private static int readNodeId(DataInputStream data, int limit) throws IOException {
+        final int id = readVarInt(data);
+        if (id >= limit) {
+            throw new IOException("corrupt snapshot: node " + id + " referenced before it is defined");
+        }
+        return id;
+    }
+
+    /**
+     * @param strings the strings of a snapshot, in order of their ids
+     * @param id id of a string
+     * @return the string with the given id
+     * @throws IOException if there is no string with the given id
+     */
+    private static String lookup(String[] strings, int id) throws IOException {
+        if (id >= strings.length) {
+            throw new IOException("corrupt snapshot: string " + id + " is not defined");
+        }
+        return strings[id];
+    }
+
+    /**
+     * @param data stream to write to
+     * @param strings strings to write, preceded by their count
+     * @throws IOException if data can't be written
+     */
+    private static void writeStrings(DataOutputStream data, List<String> strings) throws IOException {
+        writeVarInt(data, strings.size());
+        for (String s : strings) {
+            data.writeUTF(s);
+        }
+    }
+
+    /**
+     * @param data stream to read from
+     * @return strings written by writeStrings
+     * @throws IOException if data can't be read
+     */
+    private static String[] readStrings(DataInputStream data) throws IOException {
+        final String[] strings = new String[readVarInt(data)];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = data.readUTF();
+        }
+        return strings;
+    }
+
+    /**
+     * Write a non-negative int in 1 to 5 bytes, 7 bits at a time, low bits first.
+     * @param data stream to write to
+     * @param value non-negative int to write
+     * @throws IOException if data can't be written
+     */
+    static void writeVarInt(DataOutputStream data, int value) throws IOException {
+        assert value >= 0;
+        while ((value & ~0x7F) != 0) {
+            data.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data.writeByte(value);
+    }
+
+    /**
+     * @param data stream to read from
+     * @return an int written by writeVarInt
+     * @throws IOException if data can't be read or the int is malformed
+     */
+    static int readVarInt(DataInputStream data) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+            final byte b = data.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new IOException("corrupt snapshot: negative count or id");
+                }
+                return value;
+            }
+        }
+        throw new IOException("corrupt snapshot: malformed varint");
+    }
+}
@@ -0,0 +1,422 @@
+package norn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Stack-safe traversals of email lists.
+ *
+ * A list of n addresses pasted as "a, b, c, ..." parses to a chain of unions n deep, so traversals
+ * that recurse on the children of every node can overflow the stack. The traversals here keep their
+ * own stack on the heap instead, and treat each chain of unions as one n-ary union, so that its
+ * operands can be combined pairwise rather than one at a time onto an ever larger result.
+ * Subexpressions shared within an email list (see EmailListInterner) are visited once.
+ */
+class EmailListTraversal {
+
+    private EmailListTraversal() {
+        throw new AssertionError("not instantiable");
+    }
+
+    /**
+     * A function on email lists defined by combining the results of the operands of each node.
+     *
+     * @param <R> type of the result
+     */
+    interface Fold<R> {
+        /** @param empty an empty email list @return the result for empty */
+        R empty(Empty empty);
+        /** @param single a single recipient email list @return the result for single */
+        R single(Single single);
+        /** @param listName a list name email list @return the result for listName */
+        R listName(ListName listName);
+        /** @param operands the results of the operands of a chain of unions, at least two @return the result for the union */
+        R union(List<R> operands);
+        /** @param left result of the left operand @param right result of the right operand @return the result for the intersection */
+        R intersection(R left, R right);
+        /** @param left result of the left operand @param right result of the right operand @return the result for the difference */
+        R difference(R left, R right);
+        /**
+         * @param left result of the left operand of an intersection or difference
+         * @return true if left is the result for an empty list, in which case left is the result for the
+         *         intersection or difference, and its right operand is not folded
+         */
+        default boolean isEmpty(R left) {
+            return false;
+        }
+    }
+
+    /**
+     * A node being folded, and the results of the operands folded so far.
+     */
+    private static class Frame<R> {
+        private final EmailList node;
+        private final List<EmailList> operands;
+        private final List<R> results;
+
+        private Frame(EmailList node, List<EmailList> operands) {
+            this.node = node;
+            this.operands = operands;
+            this.results = new ArrayList<>(operands.size());
+        }
+    }
+
+    /**
+     * Apply a fold to an email list, without recursion.
+     *
+     * @param <R> type of the result
+     * @param root email list to fold
+     * @param fold the function to apply
+     * @return the result of fold for root
+     */
+    static <R> R fold(EmailList root, Fold<R> fold) {
+        final Map<EmailList, R> folded = new IdentityHashMap<>();
+        final Deque<Frame<R>> stack = new ArrayDeque<>();
+        R result = enter(root, fold, folded, stack);
+        while (!stack.isEmpty()) {
+            final Frame<R> top = stack.peek();
+            if (result != null) {
+                top.results.add(result);
+                result = null;
+            }
+            if (top.results.size() == 1 && !(top.node instanceof Union) && fold.isEmpty(top.results.get(0))) {
+                // empty * x and empty ! x are empty, whatever x is
+                stack.pop();
+                result = top.results.get(0);
+                folded.put(top.node, result);
+                continue;
+            }
+            if (top.results.size() < top.operands.size()) {
+                result = enter(top.operands.get(top.results.size()), fold, folded, stack);
+                continue;
+            }
+            stack.pop();
+            if (top.node instanceof Union) {
+                result = fold.union(top.results);
+            } else if (top.node instanceof Intersection) {
+                result = fold.intersection(top.results.get(0), top.results.get(1));
+            } else {
+                result = fold.difference(top.results.get(0), top.results.get(1));
+            }
+            folded.put(top.node, result);
+        }
+        return result;
+    }
+
+    /**
+     * Start folding a node: fold it at once if it is a leaf or already folded, otherwise push its frame.
+     *
+     * @return the result for node, or null if a frame was pushed for it
+     */
+    private static <R> R enter(EmailList node, Fold<R> fold, Map<EmailList, R> folded, Deque<Frame<R>> stack) {
+        final R known = folded.get(node);
+        if (known != null) {
+            return known;
+        }
+        if (node instanceof Empty) {
+            return fold.empty((Empty) node);
+        } else if (node instanceof Single) {
+            return fold.single((Single) node);
+        } else if (node instanceof ListName) {
+            return fold.listName((ListName) node);
+        } else if (node instanceof Union) {
+            stack.push(new Frame<>(node, unionOperands((Union) node)));
+        } else if (node instanceof Intersection) {
+            stack.push(new Frame<>(node, operands(((Intersection) node).getLeft(), ((Intersection) node).getRight())));
+        } else {
+            stack.push(new Frame<>(node, operands(((Difference) node).getLeft(), ((Difference) node).getRight())));
+        }
+        return null;
+    }
+
+    /**
+     * @param union root of a chain of unions
+     * @return the operands of the chain that are not unions themselves, from left to right
+     */
+    static List<EmailList> unionOperands(Union union) {
+        final List<EmailList> operands = new ArrayList<>();
+        final Deque<EmailList> pending = new ArrayDeque<>();
+        pending.push(union);
+        while (!pending.isEmpty()) {
+            final EmailList next = pending.pop();
+            if (next instanceof Union) {
+                pending.push(((Union) next).getRight());
+                pending.push(((Union) next).getLeft());
+            } else {
+                operands.add(next);
+            }
+        }
+        return operands;
+    }
+
+    private static List<EmailList> operands(EmailList left, EmailList right) {
+        final List<EmailList> operands = new ArrayList<>(2);
+        operands.add(left);
+        operands.add(right);
+        return operands;
+    }
+
+    /**
+     * @param emailList email list to evaluate
+     * @param environment the environment in which the value of email lists are stored
+     * @return the recipients of emailList, as for {@link EmailList#recipientSet}
+     */
+    static RecipientSet recipientSet(EmailList emailList, Map<String, EmailList> environment) {
+        return fold(emailList, new Fold<RecipientSet>() {
+            @Override public RecipientSet empty(Empty empty) {
+                return RecipientSet.empty();
+            }
+            @Override public RecipientSet single(Single single) {
+                return single.recipientSet(environment);
+            }
+            @Override public RecipientSet listName(ListName listName) {
+                return listName.recipientSet(environment);
+            }
+            @Override public RecipientSet union(List<RecipientSet> operands) {
+                return RecipientSet.unionAll(operands);
+            }
+            @Override public RecipientSet intersection(RecipientSet left, RecipientSet right) {
+                return left.intersection(right);
+            }
+            @Override public RecipientSet difference(RecipientSet left, RecipientSet right) {
+                return left.difference(right);
+            }
+            @Override public boolean isEmpty(RecipientSet left) {
+                return left.isEmpty();
+            }
+        });
+    }
+
+    /**
+     * A node whose membership is being decided, and how many of its operands have been tested.
+     */
+    private static class Membership {
+        private final EmailList node;
+        private final List<EmailList> operands;
+        private int tested = 0;
+
+        private Membership(EmailList node, List<EmailList> operands) {
+            this.node = node;
+            this.operands = operands;
+        }
+
+        /**
+         * @param answer whether the address is in the operand tested last
+         * @return whether the address is in node, or null if more operands must be tested
+         */
+        private Boolean conclude(boolean answer) {
+            if (node instanceof Union) {
+                return answer ? Boolean.TRUE : tested == operands.size() ? Boolean.FALSE : null;
+            } else if (node instanceof Intersection) {
+                return !answer ? Boolean.FALSE : tested == operands.size() ? Boolean.TRUE : null;
+            } else if (node instanceof Difference) {
+                return tested == 1 ? (answer ? null : Boolean.FALSE) : Boolean.valueOf(!answer);
+            } else {
+                // a list name, whose only operand is its definition
+                return answer;
+            }
+        }
+    }
+
+    /**
+     * Decide whether an address is a recipient of an email list by walking it, without evaluating
+     * its recipients: a union contains the address if any operand does, an intersection if both do,
+     * and a difference if the left does and the right does not. Operands are tested left to right and
+     * testing stops as soon as the answer is known. Named lists whose recipients are cached are answered
+     * from the cache.
+     *
+     * @param emailList email list to search
+     * @param address a lowercased email address
+     * @param environment the environment in which the value of email lists are stored
+     * @return true iff address is a recipient of emailList, as for {@link EmailList#contains}
+     */
+    static boolean contains(EmailList emailList, String address, Map<String, EmailList> environment) {
+        final RecipientCache cache = EnvironmentState.of(environment).recipientCache();
+        final Map<EmailList, Boolean> decided = new IdentityHashMap<>();
+        final Deque<Membership> stack = new ArrayDeque<>();
+        Boolean result = test(emailList, address, environment, cache, decided, stack);
+        while (!stack.isEmpty()) {
+            final Membership top = stack.peek();
+            if (result != null) {
+                final Boolean answer = top.conclude(result);
+                if (answer != null) {
+                    stack.pop();
+                    decided.put(top.node, answer);
+                    result = answer;
+                    continue;
+                }
+            }
+            result = test(top.operands.get(top.tested++), address, environment, cache, decided, stack);
+        }
+        return result;
+    }
+
+    /**
+     * Start deciding whether an address is in a node: decide at once if it is a leaf, a cached list
+     * or already decided, otherwise push its frame.
+     *
+     * @return whether address is in node, or null if a frame was pushed for it
+     */
+    private static Boolean test(EmailList node, String address, Map<String, EmailList> environment,
+            RecipientCache cache, Map<EmailList, Boolean> decided, Deque<Membership> stack) {
+        final Boolean known = decided.get(node);
+        if (known != null) {
+            return known;
+        }
+        if (node instanceof Empty) {
+            return false;
+        } else if (node instanceof Single) {
+            return ((Single) node).getRecipient().equals(address);
+        } else if (node instanceof ListName) {
+            final String name = ((ListName) node).getName();
+            final EmailList definition = environment.get(name);
+            if (definition == null) {
+                return false;
+            }
+            final Optional<RecipientSet> recipients = cache.cached(name, environment);
+            if (recipients.isPresent()) {
+                return recipients.get().contains(address);
+            }
+            stack.push(new Membership(node, Collections.singletonList(definition)));
+        } else if (node instanceof Union) {
+            stack.push(new Membership(node, unionOperands((Union) node)));
+        } else if (node instanceof Intersection) {
+            stack.push(new Membership(node, operands(((Intersection) node).getLeft(), ((Intersection) node).getRight())));
+        } else {
+            stack.push(new Membership(node, operands(((Difference) node).getLeft(), ((Difference) node).getRight())));
+        }
+        return null;
+    }
+
+    /**
+     * @param emailList email list to print
+     * @return the string representation of emailList, as for {@link EmailList#toString}
+     */
+    static String print(EmailList emailList) {
+        final StringBuilder out = new StringBuilder();
+        // each item is a string to append, or an email list to print
+        final Deque<Object> pending = new ArrayDeque<>();
+        pending.push(emailList);
+        while (!pending.isEmpty()) {
+            final Object next = pending.pop();
+            if (next instanceof String) {
+                out.append((String) next);
+            } else if (next instanceof Union) {
+                pushBinary(pending, ((Union) next).getLeft(), " , ", ((Union) next).getRight());
+            } else if (next instanceof Intersection) {
+                pushBinary(pending, ((Intersection) next).getLeft(), " * ", ((Intersection) next).getRight());
+            } else if (next instanceof Difference) {
+                pushBinary(pending, ((Difference) next).getLeft(), " ! ", ((Difference) next).getRight());
+            } else {
+                out.append(next.toString());
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Push the items to print "(left) operator (right)", so that they are popped in order.
+     */
+    private static void pushBinary(Deque<Object> pending, EmailList left, String operator, EmailList right) {
+        pending.push(")");
+        pending.push(right);
+        pending.push(")" + operator + "(");
+        pending.push(left);
+        pending.push("(");
+    }
+
+    /**
+     * @param a an email list
+     * @param b another email list
+     * @return true iff a and b are structurally equal, as for {@link EmailList#equals}
+     */
+    static boolean equal(EmailList a, EmailList b) {
+        final Deque<EmailList> pending = new ArrayDeque<>();
+        pending.push(b);
+        pending.push(a);
+        while (!pending.isEmpty()) {
+            final EmailList x = pending.pop();
+            final EmailList y = pending.pop();
+            if (x == y) {
+                continue;
+            }
+            if (x.getClass() != y.getClass() || x.hashCode() != y.hashCode()) {
+                return false;
+            }
+            if (x instanceof Union) {
+                pushPair(pending, ((Union) x).getRight(), ((Union) y).getRight());
+                pushPair(pending, ((Union) x).getLeft(), ((Union) y).getLeft());
+            } else if (x instanceof Intersection) {
+                pushPair(pending, ((Intersection) x).getRight(), ((Intersection) y).getRight());
+                pushPair(pending, ((Intersection) x).getLeft(), ((Intersection) y).getLeft());
+            } else if (x instanceof Difference) {
+                pushPair(pending, ((Difference) x).getRight(), ((Difference) y).getRight());
+                pushPair(pending, ((Difference) x).getLeft(), ((Difference) y).getLeft());
+            } else if (!x.equals(y)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void pushPair(Deque<EmailList> pending, EmailList x, EmailList y) {
+        pending.push(y);
+        pending.push(x);
+    }
+
+    /**
+     * @param emailList an email list
+     * @return the names of the lists that occur in emailList, as for {@link EmailList#getDirectlyReferencedLists}
+     */
+    static Set<String> directlyReferencedLists(EmailList emailList) {
+        final Set<String> names = new HashSet<>();
+        final Set<EmailList> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Deque<EmailList> pending = new ArrayDeque<>();
+        pending.push(emailList);
+        while (!pending.isEmpty()) {
+            final EmailList next = pending.pop();
+            if (!visited.add(next)) {
+                continue;
+            }
+            if (next instanceof ListName) {
+                names.add(((ListName) next).getName());
+            } else if (next instanceof Union) {
+                pending.push(((Union) next).getRight());
+                pending.push(((Union) next).getLeft());
+            } else if (next instanceof Intersection) {
+                pending.push(((Intersection) next).getRight());
+                pending.push(((Intersection) next).getLeft());
+            } else if (next instanceof Difference) {
+                pending.push(((Difference) next).getRight());
+                pending.push(((Difference) next).getLeft());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @param emailList an email list
+     * @param environment the environment in which the value of email lists are stored
+     * @return the names of the lists that emailList refers to, directly or through the definitions of
+     *         the lists it refers to, as for {@link EmailList#getReferencedLists}
+     */
+    static Set<String> referencedLists(EmailList emailList, Map<String, EmailList> environment) {
+        final Set<String> names = new HashSet<>();
+        final Deque<String> pending = new ArrayDeque<>(directlyReferencedLists(emailList));
+        while (!pending.isEmpty()) {
+            final String name = pending.pop();
+            if (names.add(name) && environment.containsKey(name)) {
+                pending.addAll(directlyReferencedLists(environment.get(name)));
+            }
+        }
+        return names;
+    }
+}
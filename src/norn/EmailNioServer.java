@@ -0,0 +1,704 @@
+package norn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A web server that serves the /eval/ requests of EmailWebServer with non-blocking sockets driven by a
+ * single selector thread, as an alternative front end to the com.sun.net.httpserver stack.
+ *
+ * Connections are kept alive between requests (HTTP/1.1 by default, HTTP/1.0 with Connection: keep-alive),
+ * and a client may pipeline requests: up to MAX_PIPELINED requests of a connection are evaluated at once on
+ * a pool of worker threads, and their responses are sent in the order the requests arrived. A worker
+ * encodes its whole response, headers and body, into heap buffers once; the selector thread then writes
+ * them to the socket with gathering writes as the socket accepts them (the JDK copies the part of a heap
+ * buffer that each write sends into a temporary direct buffer), so a slow client holds a connection and
+ * its pending buffers but no thread.
+ *
+ * A connection that makes no progress for the idle timeout is closed: a client that is kept alive but
+ * sends no request, sends a request head too slowly, or does not read its responses. A connection
+ * waiting for a worker to finish its response is not idle.
+ *
+ * /eval/ requests are evaluated as by EmailWebServer, with the same formats, gzip encoding, errors,
+ * metrics and profiling; an invalid expression is answered with 400 Bad Request. /metrics is served as
+ * well, and any other path is not found.
+ */
+public class EmailNioServer {
+
+    // Thread Safety Argument:
+    // The selector thread owns the server channel, the selector and every Connection: only it reads, parses
+    // and writes sockets, and changes the queue of responses of a connection. Workers only evaluate a request
+    // and encode its response, then publish the buffers through the volatile field of its Response and hand
+    // the connection back to the selector thread through the concurrent ready queue. The environment is
+    // shared with the other servers and is only used through transactions, as in EmailWebServer.
+
+    /*
+     * Port where web server is listening.
+     */
+    public final int SERVER_PORT = 5021;
+
+    // the context of expression evaluation, and of metrics
+    private static final String EVAL_CONTEXT = "/eval/";
+    private static final String METRICS_CONTEXT = "/metrics";
+    // initial and maximum size in bytes of the buffer of a connection for the head of a request
+    private static final int INITIAL_REQUEST_BUFFER = 4 * 1024;
+    private static final int MAX_REQUEST_HEAD = 64 * 1024;
+    // maximum number of requests of a connection being evaluated or written at once
+    private static final int MAX_PIPELINED = 16;
+
+    /**
+     * Default time in milliseconds after which a connection that makes no progress is closed.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30_000;
+
+    private static final Map<Integer, String> REASONS = new HashMap<>();
+    static {
+        REASONS.put(200, "OK");
+        REASONS.put(400, "Bad Request");
+        REASONS.put(404, "Not Found");
+        REASONS.put(431, "Request Header Fields Too Large");
+        REASONS.put(500, "Internal Server Error");
+        REASONS.put(501, "Not Implemented");
+    }
+
+    private final int threads;
+    private final int backlog;
+    private final long idleTimeoutNanos;
+    // System.nanoTime() when idle connections were last looked for
+    private long lastSweep;
+    private final Queue<Connection> ready = new ConcurrentLinkedQueue<>();
+    private Map<String, EmailList> environment;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private ExecutorService executor;
+    private Thread selectorThread;
+    private volatile boolean running;
+
+    /**
+     * The response to one request of a connection, encoded by a worker.
+     */
+    private static class Response {
+        // headers and body of the response, or null until they have been encoded
+        private volatile ByteBuffer[] buffers;
+        // true if the connection is closed after the response is sent
+        private final boolean close;
+
+        private Response(boolean close) {
+            this.close = close;
+        }
+    }
+
+    /**
+     * A connection to a client, with the bytes of requests read but not yet parsed, and the responses to
+     * the requests being evaluated, in the order the requests arrived.
+     */
+    private static class Connection {
+        private final SocketChannel channel;
+        private final Deque<Response> responses = new ArrayDeque<>();
+        // bytes read and not parsed yet, in write mode
+        private ByteBuffer in = ByteBuffer.allocate(INITIAL_REQUEST_BUFFER);
+        // bytes of the body of the last request still to be read and ignored
+        private long bodyToSkip = 0;
+        // true once no more requests are read: the client closed its side, or asked to close
+        private boolean closing = false;
+        // System.nanoTime() when the connection last read or wrote bytes
+        private long lastActive = System.nanoTime();
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * An immutable parsed request line and headers.
+     */
+    private static class Request {
+        private final String method;
+        private final String target;
+        private final String version;
+        private final Map<String, List<String>> headers;
+
+        /**
+         * Parse the head of a request.
+         * @param head the request line and headers, each ended by CRLF, and an empty line
+         * @throws IllegalArgumentException if head is not a valid request head
+         */
+        private Request(String head) {
+            final String[] lines = head.split("\r\n");
+            if (lines.length == 0 || lines[0].isEmpty()) {
+                throw new IllegalArgumentException("missing request line");
+            }
+            final String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/")) {
+                throw new IllegalArgumentException("malformed request line: " + lines[0]);
+            }
+            this.method = requestLine[0];
+            this.target = requestLine[1];
+            this.version = requestLine[2];
+            this.headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                final int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    throw new IllegalArgumentException("malformed header: " + lines[i]);
+                }
+                headers.computeIfAbsent(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), k -> new ArrayList<>())
+                        .add(lines[i].substring(colon + 1).trim());
+            }
+        }
+
+        /**
+         * @param name a header name, lowercased
+         * @return the values of the headers of this request with that name
+         */
+        private List<String> header(String name) {
+            return headers.getOrDefault(name, Collections.emptyList());
+        }
+
+        /**
+         * @return true iff the client asked to keep the connection open after this request
+         */
+        private boolean keepAlive() {
+            final String connection = String.join(",", header("connection")).toLowerCase(Locale.ROOT);
+            if (version.equals("HTTP/1.0")) {
+                return connection.contains("keep-alive");
+            }
+            return !connection.contains("close");
+        }
+
+        /**
+         * @return the length of the body of this request
+         * @throws IllegalArgumentException if the Content-Length header is not a valid length
+         */
+        private long contentLength() {
+            final long length;
+            try {
+                length = header("content-length").isEmpty() ? 0 : Long.parseLong(header("content-length").get(0));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid Content-Length");
+            }
+            if (length < 0) {
+                throw new IllegalArgumentException("invalid Content-Length");
+            }
+            return length;
+        }
+    }
+
+    /**
+     * Make a web server that evaluates requests on a fixed pool of one thread per available processor.
+     */
+    public EmailNioServer() {
+        this(Runtime.getRuntime().availableProcessors(), EmailWebServer.DEFAULT_BACKLOG);
+    }
+
+    /**
+     * Make a web server.
+     * @param threads number of threads evaluating requests, must be positive
+     * @param backlog maximum number of pending connections waiting to be accepted, must be positive
+     */
+    public EmailNioServer(int threads, int backlog) {
+        this(threads, backlog, DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Make a web server.
+     * @param threads number of threads evaluating requests, must be positive
+     * @param backlog maximum number of pending connections waiting to be accepted, must be positive
+     * @param idleTimeoutMillis time in milliseconds after which a connection that makes no progress is
+     *                          closed, must be positive
+     */
+    public EmailNioServer(int threads, int backlog, long idleTimeoutMillis) {
+        if (threads <= 0 || backlog <= 0 || idleTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("threads, backlog and idle timeout must be positive");
+        }
+        this.threads = threads;
+        this.backlog = backlog;
+        this.idleTimeoutNanos = idleTimeoutMillis * 1_000_000;
+    }
+
+    /**
+     * Starts the web server.
+     * @param environment global map of list names to email list objects; an Environment lets
+     *        requests run concurrently, any other map is locked for the duration of each evaluation
+     * @throws IOException if server can't start up, e.g. if the port is already busy
+     */
+    public void startWebServer(Map<String, EmailList> environment) throws IOException {
+        this.environment = environment;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(SERVER_PORT), backlog);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        executor = Executors.newFixedThreadPool(threads);
+        running = true;
+        selectorThread = new Thread(this::run, "norn-nio-selector");
+        selectorThread.start();
+        System.err.println("Server is listening on http://localhost:" + SERVER_PORT);
+    }
+
+    /**
+     * Stop the web server, closing every connection, and wait until the port is released.
+     */
+    public void stop() {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdownNow();
+    }
+
+    /*
+     * The loop of the selector thread: accept connections, read and parse requests, and write the
+     * responses that workers have finished, until the server is stopped.
+     */
+    private void run() {
+        try {
+            while (running) {
+                // wake up at least often enough to close idle connections on time
+                selector.select(Math.max(1, idleTimeoutNanos / 4 / 1_000_000));
+                for (Connection connection = ready.poll(); connection != null; connection = ready.poll()) {
+                    // a finished response is progress, however long the worker took
+                    connection.lastActive = System.nanoTime();
+                    try {
+                        flush(connection);
+                    } catch (IOException | RuntimeException e) {
+                        // a failure on one connection closes it, and never stops the server
+                        close(connection);
+                    }
+                }
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        try {
+                            accept();
+                        } catch (IOException e) {
+                            // the client went away before it was accepted
+                        }
+                        continue;
+                    }
+                    final Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            flush(connection);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(connection);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        close(connection);
+                    }
+                }
+                closeIdle();
+            }
+        } catch (IOException e) {
+            System.err.println("selector failed: " + e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // closing anyway
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    /*
+     * Close the connections that have made no progress for the idle timeout, looking at most four
+     * times per timeout.
+     */
+    private void closeIdle() {
+        final long now = System.nanoTime();
+        if (now - lastSweep < idleTimeoutNanos / 4) {
+            return;
+        }
+        lastSweep = now;
+        for (SelectionKey key : selector.keys()) {
+            final Connection connection = (Connection) key.attachment();
+            if (connection != null && now - connection.lastActive > idleTimeoutNanos
+                    && (connection.responses.isEmpty() || connection.responses.peek().buffers != null)) {
+                close(connection);
+            }
+        }
+    }
+
+    /*
+     * Accept a pending connection, if any.
+     */
+    private void accept() throws IOException {
+        final SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+    }
+
+    /*
+     * Read what a client has sent, and start evaluating the requests it completes.
+     */
+    private void read(Connection connection) throws IOException {
+        if (!connection.in.hasRemaining()) {
+            // only reached with a partial request head, as parse() leaves room otherwise
+            final ByteBuffer larger = ByteBuffer.allocate(connection.in.capacity() * 2);
+            connection.in.flip();
+            larger.put(connection.in);
+            connection.in = larger;
+        }
+        final int read = connection.channel.read(connection.in);
+        if (read > 0) {
+            connection.lastActive = System.nanoTime();
+        }
+        if (read < 0) {
+            connection.closing = true;
+        }
+        parse(connection);
+        updateInterest(connection);
+    }
+
+    /*
+     * Parse the complete requests read from a connection, and start evaluating them, until the
+     * connection has MAX_PIPELINED requests in progress or stops reading requests.
+     */
+    private void parse(Connection connection) {
+        final ByteBuffer in = connection.in;
+        in.flip();
+        try {
+            while (!connection.closing && connection.responses.size() < MAX_PIPELINED) {
+                if (connection.bodyToSkip > 0) {
+                    final int skipped = (int) Math.min(in.remaining(), connection.bodyToSkip);
+                    in.position(in.position() + skipped);
+                    connection.bodyToSkip -= skipped;
+                    if (connection.bodyToSkip > 0) {
+                        return;
+                    }
+                }
+                // a client may send empty lines before a request line (RFC 9112, section 2.2)
+                while (in.remaining() >= 2 && in.get(in.position()) == '\r' && in.get(in.position() + 1) == '\n') {
+                    in.position(in.position() + 2);
+                }
+                final int end = headEnd(in);
+                if (end < 0) {
+                    if (in.remaining() >= MAX_REQUEST_HEAD) {
+                        reject(connection, 431, "request head too large");
+                    }
+                    return;
+                }
+                final byte[] head = new byte[end - in.position()];
+                in.get(head);
+                final Request request;
+                try {
+                    request = new Request(new String(head, StandardCharsets.ISO_8859_1));
+                    connection.bodyToSkip = request.contentLength();
+                } catch (IllegalArgumentException e) {
+                    reject(connection, 400, e.getMessage());
+                    return;
+                }
+                if (!request.header("transfer-encoding").isEmpty()) {
+                    reject(connection, 501, "request bodies with Transfer-Encoding are not supported");
+                    return;
+                }
+                dispatch(connection, request);
+            }
+        } finally {
+            in.compact();
+        }
+    }
+
+    /*
+     * @param in buffer in read mode
+     * @return the index just after the first empty line in the remaining bytes of in, or -1 if there is none
+     */
+    private static int headEnd(ByteBuffer in) {
+        for (int i = in.position(); i + 3 < in.limit(); i++) {
+            if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n') {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Answer a request that cannot be parsed with an error, and close the connection after it.
+     */
+    private void reject(Connection connection, int status, String message) {
+        final Response response = new Response(true);
+        response.buffers = text(status, message, true, false);
+        connection.responses.add(response);
+        connection.closing = true;
+        Metrics.countRequest("", status);
+    }
+
+    /*
+     * Start evaluating a request on a worker, adding its response to the end of the connection's responses.
+     */
+    private void dispatch(Connection connection, Request request) {
+        final long start = System.nanoTime();
+        final Response response = new Response(!request.keepAlive());
+        connection.responses.add(response);
+        if (response.close) {
+            connection.closing = true;
+        }
+        try {
+            executor.execute(() -> {
+                ByteBuffer[] buffers;
+                try {
+                    buffers = handle(request, response.close);
+                } catch (RuntimeException | IOException e) {
+                    buffers = text(500, "internal error: " + e, true, request.method.equals("HEAD"));
+                }
+                Metrics.record(Metrics.Stage.REQUEST, start);
+                response.buffers = buffers;
+                ready.add(connection);
+                selector.wakeup();
+            });
+        } catch (RejectedExecutionException e) {
+            // the server is stopping, and the connection will be closed
+        }
+    }
+
+    /*
+     * Write the finished responses at the head of a connection's responses, as far as the socket accepts
+     * them, then read further pipelined requests if there is room.
+     */
+    private void flush(Connection connection) throws IOException {
+        if (!connection.channel.isOpen()) {
+            return;
+        }
+        while (!connection.responses.isEmpty() && connection.responses.peek().buffers != null) {
+            final Response response = connection.responses.peek();
+            if (connection.channel.write(response.buffers) > 0) {
+                connection.lastActive = System.nanoTime();
+            }
+            if (hasRemaining(response.buffers)) {
+                // the socket is full; written again when it is writable
+                break;
+            }
+            connection.responses.poll();
+            if (response.close) {
+                close(connection);
+                return;
+            }
+        }
+        parse(connection);
+        updateInterest(connection);
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Register for the events a connection waits for: writable while a finished response is not fully
+     * written, readable while more requests are read. Closes a connection that waits for neither.
+     */
+    private void updateInterest(Connection connection) throws IOException {
+        if (!connection.channel.isOpen()) {
+            return;
+        }
+        final boolean writing = !connection.responses.isEmpty() && connection.responses.peek().buffers != null;
+        final boolean reading = !connection.closing && connection.responses.size() < MAX_PIPELINED;
+        if (connection.closing && connection.responses.isEmpty()) {
+            close(connection);
+            return;
+        }
+        connection.channel.keyFor(selector).interestOps(
+                (writing ? SelectionKey.OP_WRITE : 0) | (reading ? SelectionKey.OP_READ : 0));
+    }
+
+    private static void close(Connection connection) {
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    /*
+     * Evaluate a request and encode its response, on a worker thread.
+     * @param request the request
+     * @param close true if the connection is closed after the response
+     * @return the encoded response
+     */
+    private ByteBuffer[] handle(Request request, boolean close) throws IOException {
+        final boolean head = request.method.equals("HEAD");
+        final URI uri;
+        try {
+            uri = new URI(request.target);
+        } catch (URISyntaxException e) {
+            return text(400, "invalid request target: " + request.target, close, head);
+        }
+        final String path = uri.getPath() == null ? "" : uri.getPath();
+        if (path.equals(METRICS_CONTEXT)) {
+            final String metrics = Environment.transact(environment, view -> Metrics.render(view));
+            return encode(200, "text/plain; version=0.0.4; charset=utf-8", bytes(metrics), false, close, head);
+        }
+        if (!path.startsWith(EVAL_CONTEXT)) {
+            return text(404, "no context found for request: " + path, close, head);
+        }
+        final ByteBuffer[] response = evaluate(path.substring(EVAL_CONTEXT.length()), uri.getQuery(), request, close, head);
+        Metrics.countRequest(EVAL_CONTEXT, status(response));
+        return response;
+    }
+
+    /*
+     * Evaluate an /eval/ request, as EmailWebServer.handleEvaluation does.
+     */
+    private ByteBuffer[] evaluate(String listExpressionString, String query, Request request, boolean close, boolean head)
+            throws IOException {
+        final RecipientFormat format;
+        try {
+            format = RecipientFormat.negotiate(query, request.header("accept"));
+        } catch (IllegalArgumentException e) {
+            return text(400, e.getMessage(), close, head);
+        }
+        final long start = System.nanoTime();
+        final Collection<String> recipients;
+        EvaluationProfiler.Profile profile = null;
+        try {
+            if (EvaluationProfiler.isEnabled()) {
+                profile = Environment.transact(environment, view -> {
+                    final EmailList evaluatedEmailList = EmailList.evaluate(listExpressionString, view);
+                    final long evaluating = System.nanoTime();
+                    final EvaluationProfiler.Profile evaluated = EvaluationProfiler.profile(evaluatedEmailList, view);
+                    Metrics.record(Metrics.Stage.EVALUATE, evaluating);
+                    return evaluated;
+                });
+                recipients = profile.recipients().addresses();
+            } else {
+                recipients = EmailWebServer.evaluateRecipients(listExpressionString, environment);
+            }
+        } catch (IllegalArgumentException e) {
+            return text(400, e.getMessage(), close, head);
+        }
+        final boolean gzip = EmailWebServer.acceptsGzip(request.header("accept-encoding"));
+        final long encoding = System.nanoTime();
+        final ByteBuffer[] response = recipients(listExpressionString, recipients, format, gzip, close, head);
+        Metrics.record(Metrics.Stage.RESPONSE_WRITE, encoding);
+        if (profile != null) {
+            EvaluationProfiler.logIfSlow(listExpressionString, profile, System.nanoTime() - start, System.err);
+        }
+        return response;
+    }
+
+    /*
+     * Encode the response to an /eval/ request with the recipients of its expression.
+     */
+    private static ByteBuffer[] recipients(String listExpressionString, Collection<String> recipients,
+            RecipientFormat format, boolean gzip, boolean close, boolean head) throws IOException {
+        if (format == RecipientFormat.HTML && recipients.isEmpty()) {
+            return text(404, "the resulting list name is empty: " + listExpressionString, close, head);
+        }
+        final Body body = new Body();
+        final OutputStream out = gzip ? new GZIPOutputStream(body) : body;
+        final PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), false);
+        format.write(writer, recipients);
+        writer.close();
+        return encode(200, format.contentType(), body.buffer(), gzip, close, head);
+    }
+
+    /*
+     * A byte array output stream whose contents can be wrapped in a buffer without being copied.
+     */
+    private static class Body extends ByteArrayOutputStream {
+        private Body() {
+            super(8 * 1024);
+        }
+
+        private ByteBuffer buffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /*
+     * Encode a plain text response, such as an error.
+     */
+    private static ByteBuffer[] text(int status, String message, boolean close, boolean head) {
+        return encode(status, "text/plain; charset=utf-8", bytes(message + "\n"), false, close, head);
+    }
+
+    /*
+     * Encode a response.
+     * @param status HTTP status code, in REASONS
+     * @param contentType value of the Content-Type header
+     * @param body the body, from its position to its limit
+     * @param gzip true if body is compressed with gzip
+     * @param close true if the connection is closed after the response
+     * @param head true if the request was a HEAD request, whose response has headers but no body
+     * @return buffers with the status line and headers, followed by the body unless head
+     */
+    private static ByteBuffer[] encode(int status, String contentType, ByteBuffer body, boolean gzip, boolean close,
+            boolean head) {
+        final StringBuilder headers = new StringBuilder();
+        headers.append("HTTP/1.1 ").append(status).append(' ').append(REASONS.get(status)).append("\r\n");
+        headers.append("Content-Type: ").append(contentType).append("\r\n");
+        headers.append("Content-Length: ").append(body.remaining()).append("\r\n");
+        if (gzip) {
+            headers.append("Content-Encoding: gzip\r\n");
+        }
+        if (close) {
+            headers.append("Connection: close\r\n");
+        }
+        headers.append("\r\n");
+        final ByteBuffer encodedHeaders = ByteBuffer.wrap(headers.toString().getBytes(StandardCharsets.ISO_8859_1));
+        return head ? new ByteBuffer[] { encodedHeaders } : new ByteBuffer[] { encodedHeaders, body };
+    }
+
+    /*
+     * @param response an encoded response
+     * @return its status code
+     */
+    private static int status(ByteBuffer[] response) {
+        final ByteBuffer headers = response[0];
+        return (headers.get(9) - '0') * 100 + (headers.get(10) - '0') * 10 + (headers.get(11) - '0');
+    }
+}
@@ -1,10 +1,21 @@
 package norn;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
@@ -13,8 +24,15 @@ import com.sun.net.httpserver.HttpServer;
 public class EmailWebServer {
     
     // Thread Safety Argument for WebServer:
-    // In the web server, the environment is the only variable that is shared, and since it is synchronized,
-    // only one thread can acquire the lock, read, and mutate environment at a time.
+    // In the web server, the environment is the only variable that is shared. Each request parses and evaluates
+    // its expression as one transaction on the environment (see Environment.transact), so requests that only read
+    // run against an immutable snapshot without locking, and the assignments of a request are committed atomically.
+    // The response is written after the transaction, from the request's own recipients, without holding a lock.
+    // A lazy recipient collection reads the view of the transaction as it is written out, which is safe because an
+    // Environment never changes the view of a committed transaction; any other map may change as soon as its lock
+    // is released, so lazy recipients evaluated in one are copied before the transaction returns. Other engines
+    // return recipients that no longer depend on the environment.
+    // The timers and counters of Metrics are also shared, and are thread-safe without locks.
 
     
     
@@ -22,26 +40,135 @@ public class EmailWebServer {
      * Port where web server is listening.
      */
     public final int SERVER_PORT = 5021;
+    
+    /*
+     * Size in bytes of the buffers between a response and the socket, about a socket send buffer.
+     */
+    private static final int RESPONSE_BUFFER_SIZE = 64 * 1024;
+    
+    /*
+     * Default maximum number of pending connections waiting to be accepted.
+     */
+    public static final int DEFAULT_BACKLOG = 128;
+    
+    /**
+     * How the web server runs the handlers of its requests.
+     */
+    public enum ExecutorMode {
+        /** a fixed pool of threads */
+        FIXED,
+        /** a work-stealing pool with one worker per thread */
+        WORK_STEALING,
+        /** a new virtual thread for every request, or a new platform thread if the JVM has no virtual threads */
+        VIRTUAL
+    };
+    
+    private final ExecutorMode executorMode;
+    private final int threads;
+    private final int backlog;
     private HttpServer server;
+    private ExecutorService executor;
+    
+    /**
+     * Make a web server that handles requests on a fixed pool of one thread per available processor.
+     */
+    public EmailWebServer() {
+        this(ExecutorMode.FIXED, Runtime.getRuntime().availableProcessors(), DEFAULT_BACKLOG);
+    }
+    
+    /**
+     * Make a web server.
+     * @param executorMode how requests are run
+     * @param threads number of threads for FIXED and WORK_STEALING modes, must be positive
+     * @param backlog maximum number of pending connections waiting to be accepted, must be positive
+     */
+    public EmailWebServer(ExecutorMode executorMode, int threads, int backlog) {
+        if (threads <= 0 || backlog <= 0) {
+            throw new IllegalArgumentException("threads and backlog must be positive");
+        }
+        this.executorMode = executorMode;
+        this.threads = threads;
+        this.backlog = backlog;
+    }
+    
+    /*
+     * Make the executor that runs request handlers, as given by the executor mode.
+     * @return a new executor
+     */
+    private ExecutorService makeExecutor() {
+        switch (executorMode) {
+        case FIXED:
+            return Executors.newFixedThreadPool(threads);
+        case WORK_STEALING:
+            return Executors.newWorkStealingPool(threads);
+        case VIRTUAL:
+            try {
+                // looked up reflectively so the server still builds and runs on JVMs without virtual threads
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return Executors.newCachedThreadPool();
+            }
+        default:
+            throw new AssertionError("should never get here");
+        }
+    }
     
     /*
      * Starts the web server.
      * @param port port number where web server will listen for HTTP requests
-     * @param environment global map of list names to email list objects
+     * @param environment global map of list names to email list objects; an Environment lets
+     *        requests run concurrently, any other map is locked for the duration of each evaluation
      * @throws IOException if server can't start up, e.g. if the port is already busy
      */
     public void startWebServer(Map<String, EmailList> environment) throws IOException {
-        server = HttpServer.create(new InetSocketAddress(SERVER_PORT), 0);
-        server.createContext("/eval/", new HttpHandler(){
+        server = HttpServer.create(new InetSocketAddress(SERVER_PORT), backlog);
+        executor = makeExecutor();
+        server.setExecutor(executor);
+        server.createContext("/eval/", instrumented(new HttpHandler(){
             public void handle(HttpExchange exchange) throws IOException{
                 handleEvaluation(exchange, environment);
             }
+        }));
+        server.createContext("/contains/", instrumented(new HttpHandler(){
+            public void handle(HttpExchange exchange) throws IOException{
+                handleContains(exchange, environment);
+            }
+        }));
+        server.createContext("/lists/", instrumented(new HttpHandler(){
+            public void handle(HttpExchange exchange) throws IOException{
+                handleLists(exchange, environment);
+            }
+        }));
+        server.createContext("/metrics", new HttpHandler(){
+            public void handle(HttpExchange exchange) throws IOException{
+                handleMetrics(exchange, environment);
+            }
         });
         // start the server
         server.start();
         System.err.println("Server is listening on http://localhost:" + SERVER_PORT);
     }
     
+    /*
+     * Wrap the handler of a context so that the time taken by each request is recorded as the REQUEST
+     * stage, and the request is counted by context and response status (see Metrics).
+     * @param handler handler of a context
+     * @return a handler that runs handler and records its request
+     */
+    private static HttpHandler instrumented(final HttpHandler handler) {
+        return new HttpHandler(){
+            public void handle(HttpExchange exchange) throws IOException{
+                final long start = System.nanoTime();
+                try {
+                    handler.handle(exchange);
+                } finally {
+                    Metrics.record(Metrics.Stage.REQUEST, start);
+                    Metrics.countRequest(exchange.getHttpContext().getPath(), exchange.getResponseCode());
+                }
+            }
+        };
+    }
+    
     /*
      * Handle a /eval/EmailList expression request.
      * 
@@ -49,6 +176,8 @@ public class EmailWebServer {
      * that displays a mailto: option to email all the recipients, and displays the list of recipients in that EmailList expression. 
      * If the EmailList Expression is empty, then renders an HTML page saying that the EmailList expression is empty.
      * If the EmailList Expression is invalid, then renders an Error Response Page.
+     * A client may instead ask for JSON, NDJSON or CSV, with the format query parameter (?format=json) or the
+     * Accept header (see RecipientFormat.negotiate); those formats render an empty result as an empty document.
      * 
      * @param exchange HTTP request/response. Modified by this method to send
      * a response to the client and close the exchange.
@@ -60,28 +189,244 @@ public class EmailWebServer {
         // it will always start with the base path from server.createContext():
         final String base = exchange.getHttpContext().getPath();
         assert path.startsWith(base);
-        synchronized (environment) {
-            final String listExpressionString = path.substring(base.length());
-            final EmailList evaluatedEmailList = EmailList.evaluate(listExpressionString, environment);
-            final Set<String> recipients = evaluatedEmailList.recipients(environment);
-            if (!recipients.isEmpty()) {
-                exchange.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
-                exchange.sendResponseHeaders(200, 0);
-                PrintWriter out = new PrintWriter(exchange.getResponseBody(), true);
-                final String recipientsString = String.join(",", recipients);
-                out.println("<a href=\"mailto:" + recipientsString + "\">email these recipients</a><br>" + recipientsString);
-            } else {
-                // respond with HTTP code 404 to indicate an error
-                exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
-                exchange.sendResponseHeaders(404, 0);
-                PrintWriter err = new PrintWriter(exchange.getResponseBody(), true);
-                err.println("the resulting list name is empty: " + listExpressionString);            
+        final String listExpressionString = path.substring(base.length());
+        final RecipientFormat format;
+        try {
+            format = RecipientFormat.negotiate(exchange.getRequestURI().getQuery(),
+                    exchange.getRequestHeaders().getOrDefault("Accept", Collections.emptyList()));
+        } catch (IllegalArgumentException e) {
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(400, 0);
+            PrintWriter err = new PrintWriter(exchange.getResponseBody(), true);
+            err.println(e.getMessage());
+            exchange.close();
+            return;
+        }
+        if (EvaluationProfiler.isEnabled()) {
+            handleProfiledEvaluation(exchange, environment, listExpressionString, format);
+            return;
+        }
+        final Collection<String> recipients = evaluateRecipients(listExpressionString, environment);
+        respond(exchange, listExpressionString, recipients, format);
+        exchange.close();
+    }
+    
+    /*
+     * Parse and evaluate an EmailList expression with the default engine, as one transaction on an environment.
+     * 
+     * @param listExpressionString the EmailList expression
+     * @param environment the environment in which the value of email lists are stored
+     * @return the recipients of the expression, which may be read after the transaction returns
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    static Collection<String> evaluateRecipients(String listExpressionString, Map<String, EmailList> environment) {
+        return Environment.transact(environment, view -> {
+            final EmailList evaluatedEmailList = EmailList.evaluate(listExpressionString, view);
+            // the lazy engine evaluates as the response is written, so its time is in RESPONSE_WRITE
+            final long start = System.nanoTime();
+            final Collection<String> evaluated = EmailList.DEFAULT_EVALUATION_ENGINE.recipients(evaluatedEmailList, view);
+            Metrics.record(Metrics.Stage.EVALUATE, start);
+            if (environment instanceof Environment || EmailList.DEFAULT_EVALUATION_ENGINE != EmailList.EvaluationEngine.LAZY) {
+                return evaluated;
             }
+            // any other map may be changed once the transaction releases its lock, so the lazy
+            // recipients are read while it is still held
+            return new ArrayList<>(evaluated);
+        });
+    }
+    
+    /*
+     * Handle a /eval/EmailList expression request as handleEvaluation does, evaluating the recipients with
+     * EvaluationProfiler instead of the default engine, and logging the profile to standard error if the
+     * request took longer than the profiler's threshold.
+     * 
+     * @param exchange HTTP request/response. Modified by this method to send
+     * a response to the client and close the exchange.
+     */
+    private void handleProfiledEvaluation(final HttpExchange exchange, Map<String, EmailList> environment,
+            String listExpressionString, RecipientFormat format) throws IOException {
+        final long start = System.nanoTime();
+        final EvaluationProfiler.Profile profile = Environment.transact(environment, view -> {
+            final EmailList evaluatedEmailList = EmailList.evaluate(listExpressionString, view);
+            final long evaluating = System.nanoTime();
+            final EvaluationProfiler.Profile evaluated = EvaluationProfiler.profile(evaluatedEmailList, view);
+            Metrics.record(Metrics.Stage.EVALUATE, evaluating);
+            return evaluated;
+        });
+        respond(exchange, listExpressionString, profile.recipients().addresses(), format);
+        exchange.close();
+        EvaluationProfiler.logIfSlow(listExpressionString, profile, System.nanoTime() - start, System.err);
+    }
+    
+    /*
+     * Handle a /contains/address/EmailList expression request.
+     * 
+     * If the EmailList expression is valid, then renders a plain text page saying "true" if the address
+     * is a recipient of the expression, and "false" if it is not. Membership is decided by walking the
+     * expression (see EmailList.contains), without evaluating its recipients.
+     * If the request has no address, or the EmailList Expression is invalid, then renders an Error Response Page.
+     * 
+     * @param exchange HTTP request/response. Modified by this method to send
+     * a response to the client and close the exchange.
+     */
+    private void handleContains(final HttpExchange exchange, Map<String, EmailList> environment) throws IOException {
+        final String path = exchange.getRequestURI().getPath();
+        final String base = exchange.getHttpContext().getPath();
+        assert path.startsWith(base);
+        final String request = path.substring(base.length());
+        final int slash = request.indexOf('/');
+        if (slash <= 0) {
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(400, 0);
+            PrintWriter err = new PrintWriter(exchange.getResponseBody(), true);
+            err.println("expected /contains/address/expression: " + request);
             exchange.close();
+            return;
+        }
+        final String address = request.substring(0, slash);
+        final String listExpressionString = request.substring(slash + 1);
+        final boolean contains = Environment.transact(environment, view -> {
+            final EmailList evaluatedEmailList = EmailList.evaluate(listExpressionString, view);
+            final long start = System.nanoTime();
+            final boolean member = evaluatedEmailList.contains(address, view);
+            Metrics.record(Metrics.Stage.EVALUATE, start);
+            return member;
+        });
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        PrintWriter out = new PrintWriter(exchange.getResponseBody(), true);
+        out.println(contains);
+        exchange.close();
+    }
+    
+    /*
+     * Handle a /lists/address request.
+     * 
+     * Renders a plain text page listing the names of the lists that contain the address, separated by
+     * commas in alphabetical order, found with the index of Environment.listsContaining.
+     * If no list contains the address, then renders an Error Response Page.
+     * 
+     * @param exchange HTTP request/response. Modified by this method to send
+     * a response to the client and close the exchange.
+     */
+    private void handleLists(final HttpExchange exchange, Map<String, EmailList> environment) throws IOException {
+        final String path = exchange.getRequestURI().getPath();
+        final String base = exchange.getHttpContext().getPath();
+        assert path.startsWith(base);
+        final String address = path.substring(base.length());
+        final Set<String> lists = Environment.transact(environment, view -> Environment.listsContaining(address, view));
+        if (!lists.isEmpty()) {
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0);
+            PrintWriter out = new PrintWriter(exchange.getResponseBody(), true);
+            out.println(String.join(",", lists));
+        } else {
+            // respond with HTTP code 404 to indicate an error
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(404, 0);
+            PrintWriter err = new PrintWriter(exchange.getResponseBody(), true);
+            err.println("no list contains: " + address);
+        }
+        exchange.close();
+    }
+    
+    /*
+     * Handle a /metrics request.
+     * 
+     * Renders the timers and counters of the stages of handling requests, and gauges of the environment,
+     * as plain text in the Prometheus exposition format (see Metrics.render).
+     * 
+     * @param exchange HTTP request/response. Modified by this method to send
+     * a response to the client and close the exchange.
+     */
+    private void handleMetrics(final HttpExchange exchange, Map<String, EmailList> environment) throws IOException {
+        final String metrics = Environment.transact(environment, view -> Metrics.render(view));
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), false);
+        out.print(metrics);
+        out.close();
+        exchange.close();
+    }
+    
+    /*
+     * Write the response to a /eval/ request, streaming the recipients as they are iterated over, so that
+     * the first bytes are sent before a lazily evaluated list is fully evaluated, and the joined addresses
+     * are never built as strings. The body is sent with chunked transfer encoding through a buffer of
+     * RESPONSE_BUFFER_SIZE bytes, and compressed with gzip if the client accepts it.
+     * 
+     * @param exchange HTTP request/response, whose headers have not been sent yet
+     * @param listExpressionString the expression that was evaluated
+     * @param recipients the recipients of the expression
+     * @param format the format to write the recipients in; an empty result is an error page for HTML,
+     *               and an empty document for the other formats
+     */
+    private static void respond(final HttpExchange exchange, String listExpressionString, Collection<String> recipients,
+            RecipientFormat format) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            write(exchange, listExpressionString, recipients, format);
+        } finally {
+            Metrics.record(Metrics.Stage.RESPONSE_WRITE, start);
+        }
+    }
+    
+    /*
+     * Write the response to a /eval/ request, as described by respond.
+     */
+    private static void write(final HttpExchange exchange, String listExpressionString, Collection<String> recipients,
+            RecipientFormat format) throws IOException {
+        if (format != RecipientFormat.HTML || !recipients.isEmpty()) {
+            exchange.getResponseHeaders().add("Content-Type", format.contentType());
+            final boolean gzip = acceptsGzip(exchange);
+            if (gzip) {
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            }
+            // a length of 0 sends the body with chunked transfer encoding
+            exchange.sendResponseHeaders(200, 0);
+            final OutputStream body = gzip
+                    ? new GZIPOutputStream(exchange.getResponseBody(), RESPONSE_BUFFER_SIZE, true)
+                    : exchange.getResponseBody();
+            final PrintWriter out = new PrintWriter(new BufferedWriter(
+                    new OutputStreamWriter(body, StandardCharsets.UTF_8), RESPONSE_BUFFER_SIZE), false);
+            format.write(out, recipients);
+            // finishes the gzip stream, if any, and ends the chunked body
+            out.close();
+        } else {
+            // respond with HTTP code 404 to indicate an error
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(404, 0);
+            PrintWriter err = new PrintWriter(exchange.getResponseBody(), true);
+            err.println("the resulting list name is empty: " + listExpressionString);            
+        }
+    }
+    
+    /*
+     * @param exchange HTTP request
+     * @return true iff the request's Accept-Encoding header lists gzip with a nonzero quality
+     */
+    private static boolean acceptsGzip(final HttpExchange exchange) {
+        return acceptsGzip(exchange.getRequestHeaders().getOrDefault("Accept-Encoding", Collections.emptyList()));
+    }
+    
+    /*
+     * @param acceptEncoding values of the Accept-Encoding headers of a request
+     * @return true iff the headers list gzip with a nonzero quality
+     */
+    static boolean acceptsGzip(List<String> acceptEncoding) {
+        for (String header : acceptEncoding) {
+            for (String coding : header.split(",")) {
+                final String[] parts = coding.trim().split(";");
+                if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                    return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+                }
+            }
         }
+        return false;
     }
     
     public void stop() {
         server.stop(0);
+        executor.shutdownNow();
     }
 }
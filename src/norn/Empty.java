@@ -37,8 +37,8 @@ public class Empty implements EmailList{
     }
     
     @Override
-    public Set<String> recipients(Map<String, EmailList> environment) {
-        return Collections.emptySet();
+    public RecipientSet recipientSet(Map<String, EmailList> environment) {
+        return RecipientSet.empty();
     }
 
     @Override
@@ -46,6 +46,14 @@ public class Empty implements EmailList{
         Set<String> result = new HashSet<String>();
         return result;
     }
-    
 
+    @Override
+    public Set<String> getDirectlyReferencedLists() {
+        return new HashSet<String>();
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+        return visitor.on(this);
+    }
 }
@@ -0,0 +1,274 @@
+package norn;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * A mutable, thread-safe environment of list names and the email lists assigned to them.
+ *
+ * Readers never block: every read sees an immutable snapshot of the environment. Changes are made
+ * by transactions, which run against a private EnvironmentOverlay of the latest snapshot and are
+ * committed all at once by swapping in a new snapshot, so a sequence of assignments is atomic.
+ * If another transaction committed first, the transaction is run again against the new snapshot.
+ * An environment opened on a data directory also logs every commit durably (see WriteAheadLog).
+ */
+public class Environment extends AbstractMap<String, EmailList> {
+    private final AtomicReference<Map<String, EmailList>> snapshot =
+            new AtomicReference<>(Collections.<String, EmailList>emptyMap());
+    private final EnvironmentState state =
+            new EnvironmentState(() -> new EnvironmentOverlay(snapshot.get(), state()));
+    private final Optional<WriteAheadLog> log;
+
+    // Abstraction function
+    //    AF(snapshot, state) = the environment mapping each list name in snapshot.get() to its email list;
+    //                          state holds derived data about those lists; if log is present, every
+    //                          committed assignment is recorded in it before its commit returns.
+    // Rep invariant
+    //    snapshot.get() is an unmodifiable map
+    // Safety from rep exposure
+    //    all fields are private and final; snapshots are unmodifiable and never change once published,
+    //    and the overlay of a transaction is only handed to the work function of the transaction.
+    // Thread safety argument
+    //    snapshot is only replaced by compareAndSet, so every committed transaction was run against
+    //    exactly the snapshot it replaces. Snapshots are immutable, so readers need no lock.
+    //    state is thread-safe. With a log, the compareAndSet and the append of its assignments are done
+    //    together while holding the lock on the log, so the log records commits in the order they were
+    //    made; waiting for the record to reach disk is done after releasing the lock, so that commits
+    //    made meanwhile are forced to disk together.
+
+    /**
+     * Make an empty environment.
+     */
+    public Environment() {
+        this.log = Optional.empty();
+    }
+
+    /**
+     * Make an environment that is recovered from, and logs its commits durably to, a data directory.
+     *
+     * @param initial the email lists recovered from the directory
+     * @param log the log of the directory
+     */
+    private Environment(Map<String, EmailList> initial, WriteAheadLog log) {
+        this.snapshot.set(Collections.unmodifiableMap(new HashMap<>(initial)));
+        this.log = Optional.of(log);
+    }
+
+    /**
+     * Open a durable environment stored in a data directory. The environment starts with the lists
+     * saved in the directory, and every later commit is logged there before it returns, so no
+     * committed assignment is lost if the process stops.
+     *
+     * @param directory data directory, created if it does not exist
+     * @return the environment stored in directory
+     * @throws IOException if the directory can't be read or written
+     */
+    public static Environment open(Path directory) throws IOException {
+        return open(directory, WriteAheadLog.DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * Open a durable environment stored in a data directory.
+     *
+     * @param directory data directory, created if it does not exist
+     * @param compactionThreshold size in bytes past which the log of the directory is compacted
+     * @return the environment stored in directory
+     * @throws IOException if the directory can't be read or written
+     */
+    static Environment open(Path directory, long compactionThreshold) throws IOException {
+        final Map<String, EmailList> recovered = new HashMap<>();
+        final WriteAheadLog log = WriteAheadLog.recover(directory, compactionThreshold, recovered);
+        return new Environment(recovered, log);
+    }
+
+    /**
+     * Stop logging commits to the data directory of this environment, if it has one.
+     *
+     * @throws IOException if the log can't be closed
+     */
+    public void close() throws IOException {
+        if (log.isPresent()) {
+            log.get().close();
+        }
+    }
+
+    /**
+     * @return an immutable map of every list name in this environment to its email list,
+     *         unaffected by later changes to the environment
+     */
+    public Map<String, EmailList> snapshot() {
+        return snapshot.get();
+    }
+
+    /**
+     * Run work atomically against this environment.
+     *
+     * The work is given a view of the latest snapshot that it may read and modify. If it returns
+     * normally, its modifications are committed together; if it throws, nothing is committed.
+     * The work may be run more than once if other transactions commit concurrently, so it must
+     * not have side effects other than on the view it is given. The view of the committed run is
+     * never changed afterwards, so the result may go on reading it lazily (see EmailList.EvaluationEngine.LAZY).
+     *
+     * @param <T> type of the result of the work
+     * @param work computation to run, given a view of the environment
+     * @return the result of the run of work whose modifications were committed
+     */
+    public <T> T transact(Function<Map<String, EmailList>, T> work) {
+        while (true) {
+            final Map<String, EmailList> base = snapshot.get();
+            final EnvironmentOverlay transaction = new EnvironmentOverlay(base, state);
+            final T result = work.apply(transaction);
+            if (transaction.writes().isEmpty()) {
+                return result;
+            }
+            final Map<String, EmailList> committed = new HashMap<>(base);
+            committed.putAll(transaction.writes());
+            if (publish(base, Collections.unmodifiableMap(committed), transaction.writes())) {
+                return result;
+            }
+            Metrics.countTransactionRetry();
+        }
+    }
+
+    /**
+     * Atomically add a batch of assignments computed outside a transaction to this environment.
+     *
+     * The assignments are applied unchanged to the latest snapshot, so if they were computed from lists
+     * of an older snapshot, check must reject them when those lists have changed.
+     *
+     * @param writes map of list names to the email lists to assign to them
+     * @param check called with the latest snapshot and the environment as it would be after the assignments,
+     *              before they are committed; throws an unchecked exception to reject them. May be called more
+     *              than once if other transactions commit concurrently.
+     * @throws RuntimeException the exception thrown by check if it rejects the assignments, in which case
+     *                          nothing is committed
+     */
+    void commit(Map<String, EmailList> writes, BiConsumer<Map<String, EmailList>, Map<String, EmailList>> check) {
+        while (true) {
+            final Map<String, EmailList> base = snapshot.get();
+            final Map<String, EmailList> committed = new HashMap<>(base);
+            committed.putAll(writes);
+            check.accept(base, Collections.unmodifiableMap(committed));
+            if (publish(base, Collections.unmodifiableMap(committed), writes)) {
+                return;
+            }
+            Metrics.countTransactionRetry();
+        }
+    }
+
+    /**
+     * Replace a snapshot with the next one, and log the assignments that made it.
+     *
+     * @param base the snapshot the assignments were made against
+     * @param next unmodifiable snapshot with the assignments made
+     * @param writes the assignments
+     * @return true if base was the latest snapshot and has been replaced by next, which is durable
+     *         if this environment has a log; false if another commit replaced base first
+     * @throws UncheckedIOException if the log can't be written, after next has been published
+     */
+    private boolean publish(Map<String, EmailList> base, Map<String, EmailList> next, Map<String, EmailList> writes) {
+        if (!log.isPresent()) {
+            if (!snapshot.compareAndSet(base, next)) {
+                return false;
+            }
+            state.reverseIndex().assigned(writes.keySet());
+            return true;
+        }
+        final WriteAheadLog wal = log.get();
+        final long sequence;
+        final long waiting = System.nanoTime();
+        synchronized (wal) {
+            Metrics.record(Metrics.Stage.LOCK_WAIT, waiting);
+            if (!snapshot.compareAndSet(base, next)) {
+                return false;
+            }
+            sequence = wal.append(writes);
+            if (wal.needsCompaction()) {
+                wal.compact(snapshot::get);
+            }
+        }
+        state.reverseIndex().assigned(writes.keySet());
+        final long start = System.nanoTime();
+        wal.awaitDurable(sequence);
+        Metrics.record(Metrics.Stage.DURABLE_WAIT, start);
+        return true;
+    }
+
+    /**
+     * Run work atomically against an environment map. Environments are run as transactions;
+     * for any other map the work is run while holding the lock on the map.
+     *
+     * @param <T> type of the result of the work
+     * @param environment the environment in which the value of email lists are stored
+     * @param work computation to run, given a view of environment
+     * @return the result of work
+     */
+    public static <T> T transact(Map<String, EmailList> environment, Function<Map<String, EmailList>, T> work) {
+        if (environment instanceof Environment) {
+            return ((Environment) environment).transact(work);
+        }
+        final long waiting = System.nanoTime();
+        synchronized (environment) {
+            Metrics.record(Metrics.Stage.LOCK_WAIT, waiting);
+            return work.apply(environment);
+        }
+    }
+
+    /**
+     * Find the lists of an environment that contain an address, using an index from addresses to
+     * lists that is kept up to date as lists are assigned, instead of evaluating every list.
+     * For an Environment, or the view of one of its transactions, the lists are found as of its latest
+     * commit, and only the lists assigned since the last query are evaluated.
+     *
+     * @param address an email address, in any case
+     * @param environment the environment in which the value of email lists are stored; must not change
+     *                    during the call, such as the view of a transaction
+     * @return the names of the lists defined in environment whose recipients include address,
+     *         in alphabetical order
+     */
+    public static Set<String> listsContaining(String address, Map<String, EmailList> environment) {
+        return EnvironmentState.of(environment).reverseIndex().listsContaining(address, environment);
+    }
+
+    /**
+     * @return the derived state kept for this environment
+     */
+    EnvironmentState state() {
+        return state;
+    }
+
+    @Override
+    public EmailList get(Object listName) {
+        return snapshot.get().get(listName);
+    }
+
+    @Override
+    public boolean containsKey(Object listName) {
+        return snapshot.get().containsKey(listName);
+    }
+
+    @Override
+    public EmailList put(String listName, EmailList emailList) {
+        return transact(view -> view.put(listName, emailList));
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends EmailList> emailLists) {
+        commit(new HashMap<>(emailLists), (base, committed) -> {});
+    }
+
+    @Override
+    public Set<Map.Entry<String, EmailList>> entrySet() {
+        return snapshot.get().entrySet();
+    }
+}
@@ -0,0 +1,134 @@
+package norn;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A mutable, copy-on-write view of an environment.
+ *
+ * Reads see the base environment together with the writes made through this view, and writes
+ * are kept in the view until they are applied to another map. A view may also record which lists
+ * were read from the base, so that a batch of writes computed in the view can be checked against a
+ * newer base before it is applied there. Not thread-safe.
+ */
+class EnvironmentOverlay extends AbstractMap<String, EmailList> {
+    private final Map<String, EmailList> base;
+    private final EnvironmentState state;
+    private final Map<String, EmailList> writes = new HashMap<>();
+    private final Set<String> reads;
+    private boolean readAll = false;
+
+    // Abstraction function
+    //    AF(base, state, writes, reads, readAll) = the environment base with every mapping in writes added
+    //                              or replaced, whose derived data is kept in state; if reads is present,
+    //                              the names it contains were read from base, or every name if readAll.
+    // Rep invariant
+    //    writes has no null values
+    // Safety from rep exposure
+    //    all fields are private, and all but readAll are final; writes is only exposed as an unmodifiable map,
+    //    and changedReads returns a new set.
+
+    /**
+     * Make a view of an environment with no writes.
+     *
+     * @param base the environment being viewed; not modified by this view
+     * @param state the derived state of base, shared by this view
+     */
+    EnvironmentOverlay(Map<String, EmailList> base, EnvironmentState state) {
+        this(base, state, false);
+    }
+
+    /**
+     * Make a view of an environment with no writes.
+     *
+     * @param base the environment being viewed; not modified by this view
+     * @param state the derived state of base, shared by this view
+     * @param trackReads true to record the names read from base, for {@link #changedReads}
+     */
+    EnvironmentOverlay(Map<String, EmailList> base, EnvironmentState state, boolean trackReads) {
+        this.base = base;
+        this.state = state;
+        this.reads = trackReads ? new HashSet<>() : null;
+    }
+
+    /**
+     * Find the lists read through this view whose values differ in another version of its base.
+     * Must only be called on a view made to track reads.
+     *
+     * @param latest a newer version of the base of this view
+     * @return the names read from the base of this view that latest maps to a different email list,
+     *         or to no list; empty iff the writes of this view would be the same if made against latest
+     */
+    Set<String> changedReads(Map<String, EmailList> latest) {
+        assert reads != null;
+        final Set<String> names = new HashSet<>(reads);
+        if (readAll) {
+            names.addAll(base.keySet());
+            names.addAll(latest.keySet());
+        }
+        final Set<String> changed = new HashSet<>();
+        for (String name : names) {
+            if (base.get(name) != latest.get(name)) {
+                changed.add(name);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Record that a name is read from the base, if this view tracks reads and has not written it.
+     */
+    private void read(Object listName) {
+        if (reads != null && !writes.containsKey(listName)) {
+            reads.add(Objects.toString(listName));
+        }
+    }
+
+    /**
+     * @return an unmodifiable map of the list names written through this view to their email lists
+     */
+    Map<String, EmailList> writes() {
+        return Collections.unmodifiableMap(writes);
+    }
+
+    /**
+     * @return the state of the environment this view is based on
+     */
+    EnvironmentState state() {
+        return state;
+    }
+
+    @Override
+    public EmailList get(Object listName) {
+        read(listName);
+        final EmailList written = writes.get(listName);
+        return written != null ? written : base.get(listName);
+    }
+
+    @Override
+    public boolean containsKey(Object listName) {
+        read(listName);
+        return writes.containsKey(listName) || base.containsKey(listName);
+    }
+
+    @Override
+    public EmailList put(String listName, EmailList emailList) {
+        assert emailList != null;
+        final EmailList previous = get(listName);
+        writes.put(listName, emailList);
+        return previous;
+    }
+
+    @Override
+    public Set<Map.Entry<String, EmailList>> entrySet() {
+        readAll = true;
+        final Map<String, EmailList> merged = new HashMap<>(base);
+        merged.putAll(writes);
+        return Collections.unmodifiableMap(merged).entrySet();
+    }
+}
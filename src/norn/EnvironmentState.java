@@ -0,0 +1,129 @@
+package norn;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * Derived state kept alongside an environment map: the references between its lists,
+ * cached recipient sets, and the index from addresses to the lists that contain them.
+ *
+ * An Environment and overlays of an environment share the state of the environment. Any other map
+ * used as an environment has its state looked up by the identity of the map, and the state is
+ * dropped once the map is garbage collected.
+ */
+class EnvironmentState {
+    private static final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+    private static final Map<IdentityKey, EnvironmentState> states = new HashMap<>();
+
+    private final DependencyGraph dependencyGraph = new DependencyGraph();
+    private final RecipientCache recipientCache = new RecipientCache(dependencyGraph);
+    private final ReverseIndex reverseIndex;
+
+    // Thread safety argument
+    //    states is only accessed inside methods synchronized on the EnvironmentState class,
+    //    and the per-environment state objects are themselves thread-safe.
+
+    /**
+     * Make the state of a map that may be modified in any way.
+     */
+    private EnvironmentState() {
+        this.reverseIndex = new ReverseIndex(dependencyGraph);
+    }
+
+    /**
+     * Make the state of an Environment.
+     *
+     * @param latest gives a view of the latest committed version of the environment that does not change;
+     *               the environment must tell reverseIndex() the lists assigned by every commit
+     */
+    EnvironmentState(Supplier<Map<String, EmailList>> latest) {
+        this.reverseIndex = new ReverseIndex(dependencyGraph, Optional.of(latest));
+    }
+
+    /**
+     * A weak reference to an environment that compares by the identity of the environment.
+     */
+    private static class IdentityKey extends WeakReference<Object> {
+        private final int hash;
+
+        private IdentityKey(Object environment, ReferenceQueue<Object> queue) {
+            super(environment, queue);
+            this.hash = System.identityHashCode(environment);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) { return true; }
+            if (obj instanceof IdentityKey) {
+                final Object environment = get();
+                return environment != null && environment == ((IdentityKey) obj).get();
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Get the state kept for an environment, creating it if this environment has none yet.
+     *
+     * @param environment the environment in which the value of email lists are stored
+     * @return the state for environment; the same object for every call with the same map
+     */
+    static EnvironmentState of(Map<String, EmailList> environment) {
+        if (environment instanceof Environment) {
+            return ((Environment) environment).state();
+        }
+        if (environment instanceof EnvironmentOverlay) {
+            return ((EnvironmentOverlay) environment).state();
+        }
+        return ofMap(environment);
+    }
+
+    /**
+     * Get the state kept for a map that is not an Environment, creating it if needed.
+     *
+     * @param environment the environment in which the value of email lists are stored
+     * @return the state for environment; the same object for every call with the same map
+     */
+    private static synchronized EnvironmentState ofMap(Map<String, EmailList> environment) {
+        for (Object key = collected.poll(); key != null; key = collected.poll()) {
+            states.remove(key);
+        }
+        final IdentityKey lookup = new IdentityKey(environment, null);
+        EnvironmentState state = states.get(lookup);
+        if (state == null) {
+            state = new EnvironmentState();
+            states.put(new IdentityKey(environment, collected), state);
+        }
+        return state;
+    }
+
+    /**
+     * @return the graph of references between the lists defined in this environment
+     */
+    DependencyGraph dependencyGraph() {
+        return dependencyGraph;
+    }
+
+    /**
+     * @return the cache of recipients of the lists defined in this environment
+     */
+    RecipientCache recipientCache() {
+        return recipientCache;
+    }
+
+    /**
+     * @return the index from addresses to the lists defined in this environment that contain them
+     */
+    ReverseIndex reverseIndex() {
+        return reverseIndex;
+    }
+}
@@ -0,0 +1,388 @@
+package norn;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+
+/**
+ * An opt-in profiler of the evaluation of email lists, for finding the subexpression that makes an
+ * expression slow.
+ *
+ * The profiler evaluates the recipients of an email list the way the default bitmap engine does: the
+ * email list is rewritten by EmailListOptimizer and evaluated by set algebra on RecipientSets, as in
+ * EmailListTraversal.recipientSet, and the profiler records for every node the time taken to evaluate
+ * it and the number of recipients it evaluated to. A named list whose recipients are not cached is
+ * expanded into the profile of its optimized definition, as the recipient cache would evaluate it, and
+ * its recipients are then stored in the cache; so a slow chain of list names can be followed down to the
+ * expression at its end, and later requests find the lists cached. Named lists that are cached are not
+ * expanded. Since the optimizer evaluates the named lists an expression refers to in order to estimate
+ * their sizes, those that are not cached are profiled first, as children of the expression or list name
+ * ahead of its optimized definition, and the time taken to optimize is counted in the self time of the
+ * expression or list name. The tree is walked with a stack on the heap, so deep expressions and long
+ * chains of list names cannot overflow the stack.
+ *
+ * Profiling is enabled by setting the system property norn.profile.threshold to a number of
+ * milliseconds; the web server then evaluates /eval/ requests with the profiler, and logs the
+ * profile of every request that took longer than the threshold to standard error.
+ */
+class EvaluationProfiler {
+
+    /**
+     * Time in nanoseconds above which the profile of a request is logged, or -1 if profiling is disabled,
+     * given by the norn.profile.threshold system property in milliseconds.
+     */
+    static final long THRESHOLD_NANOS = thresholdNanos(System.getProperty("norn.profile.threshold"));
+
+    private EvaluationProfiler() {
+        throw new AssertionError("not instantiable");
+    }
+
+    /**
+     * @param millis a number of milliseconds >= 0, or null
+     * @return millis in nanoseconds, or -1 if millis is null
+     * @throws IllegalArgumentException if millis is not a nonnegative number
+     */
+    static long thresholdNanos(String millis) {
+        if (millis == null) {
+            return -1;
+        }
+        try {
+            final double value = Double.parseDouble(millis);
+            if (value >= 0) {
+                return (long) (value * 1_000_000);
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        throw new IllegalArgumentException("norn.profile.threshold must be a number of milliseconds: " + millis);
+    }
+
+    /**
+     * @return true iff profiling is enabled by the norn.profile.threshold system property
+     */
+    static boolean isEnabled() {
+        return THRESHOLD_NANOS >= 0;
+    }
+
+    /**
+     * An immutable profile of the evaluation of one node of an email list.
+     */
+    static class Profile {
+        private final EmailList node;
+        private final String label;
+        private final RecipientSet recipients;
+        private final long selfNanos;
+        private final long optimizeNanos;
+        private final long totalNanos;
+        private final List<Profile> children;
+
+        // Abstraction function
+        //    AF(node, label, recipients, selfNanos, optimizeNanos, totalNanos, children) = the evaluation of node,
+        //        described by label, to recipients, which took totalNanos in all, of which selfNanos optimizing
+        //        node or its definition (optimizeNanos) and combining the results of children, the evaluations
+        //        of its operands
+        // Rep invariant
+        //    totalNanos = selfNanos + the sum of the totalNanos of children; 0 <= optimizeNanos <= selfNanos
+        // Safety from rep exposure
+        //    all fields are private and final; children is unmodifiable, and recipients is immutable
+
+        private Profile(EmailList node, String label, RecipientSet recipients, long combineNanos, long optimizeNanos,
+                List<Profile> children) {
+            this.node = node;
+            this.label = label;
+            this.recipients = recipients;
+            this.selfNanos = combineNanos + optimizeNanos;
+            this.optimizeNanos = optimizeNanos;
+            long total = selfNanos;
+            for (Profile child : children) {
+                total += child.totalNanos;
+            }
+            this.totalNanos = total;
+            this.children = Collections.unmodifiableList(children);
+        }
+
+        /**
+         * @return the recipients the node evaluated to
+         */
+        RecipientSet recipients() {
+            return recipients;
+        }
+
+        /**
+         * @return time in nanoseconds taken to evaluate the node, including its operands
+         */
+        long totalNanos() {
+            return totalNanos;
+        }
+
+        /**
+         * @return time in nanoseconds taken to optimize the node, or the definition of a list name node
+         */
+        long optimizeNanos() {
+            return optimizeNanos;
+        }
+
+        /**
+         * @return the profiles of the operands of the node, from left to right
+         */
+        List<Profile> children() {
+            return children;
+        }
+
+        /**
+         * @return a description of the node, such as "intersection" or "list name staff (cached)"
+         */
+        String label() {
+            return label;
+        }
+
+        /**
+         * @return the profile of the node as an indented tree, one node per line with its total time,
+         *         its own time, the part of that spent optimizing if any, and its number of recipients;
+         *         single addresses are counted on the line of their parent rather than listed
+         */
+        @Override
+        public String toString() {
+            final StringBuilder out = new StringBuilder();
+            final Deque<Profile> pending = new ArrayDeque<>();
+            final Deque<Integer> depths = new ArrayDeque<>();
+            pending.push(this);
+            depths.push(0);
+            while (!pending.isEmpty()) {
+                final Profile next = pending.pop();
+                final int depth = depths.pop();
+                int addresses = 0;
+                for (Profile child : next.children) {
+                    if (child.node instanceof Single) {
+                        addresses++;
+                    }
+                }
+                for (int i = 0; i < depth; i++) {
+                    out.append("  ");
+                }
+                out.append(String.format(Locale.ROOT, "%s: %.3f ms (self %.3f ms", next.label,
+                        next.totalNanos / 1e6, next.selfNanos / 1e6));
+                if (next.optimizeNanos > 0) {
+                    out.append(String.format(Locale.ROOT, ", optimizing %.3f ms", next.optimizeNanos / 1e6));
+                }
+                out.append(String.format(Locale.ROOT, "), %d recipients", next.recipients.size()));
+                if (addresses > 0) {
+                    out.append(", ").append(addresses).append(" single addresses");
+                }
+                out.append('\n');
+                for (int i = next.children.size() - 1; i >= 0; i--) {
+                    if (!(next.children.get(i).node instanceof Single)) {
+                        pending.push(next.children.get(i));
+                        depths.push(depth + 1);
+                    }
+                }
+            }
+            return out.toString();
+        }
+    }
+
+    /**
+     * A node being profiled, and the profiles of the operands profiled so far.
+     * A list name, or the expression being profiled, is profiled in two steps: first the named lists
+     * it refers to whose recipients are not cached, which the optimizer would evaluate to estimate
+     * their sizes, and then its optimized definition, whose recipients are its recipients.
+     */
+    private static class Frame {
+        private final EmailList node;
+        private final String label;
+        private final List<EmailList> operands;
+        private final List<Profile> children;
+        private final boolean ofDefinition;
+        private EmailList definition;
+        private final String cacheAs;
+        private long optimizeNanos = 0;
+
+        /**
+         * Make a frame for a union, intersection or difference.
+         */
+        private Frame(EmailList node, String label, List<EmailList> operands) {
+            this.node = node;
+            this.label = label;
+            this.operands = operands;
+            this.children = new ArrayList<>(operands.size());
+            this.ofDefinition = false;
+            this.definition = null;
+            this.cacheAs = null;
+        }
+
+        /**
+         * Make a frame for a list name or an expression.
+         *
+         * @param definition the email list whose recipients are the recipients of node, to optimize
+         *                   once the operands are profiled
+         * @param cacheAs the name to store the recipients of node under in the recipient cache, or null
+         */
+        private Frame(EmailList node, String label, List<EmailList> operands, EmailList definition, String cacheAs) {
+            this.node = node;
+            this.label = label;
+            this.operands = new ArrayList<>(operands);
+            this.children = new ArrayList<>(operands.size() + 1);
+            this.ofDefinition = true;
+            this.definition = definition;
+            this.cacheAs = cacheAs;
+        }
+    }
+
+    /**
+     * Evaluate the recipients of an email list, recording a profile of the evaluation.
+     *
+     * @param emailList email list to evaluate
+     * @param environment the environment in which the value of email lists are stored; its recipient
+     *                    cache is modified to hold the recipients of every named list evaluated
+     * @return the profile of emailList, labelled "expression", whose recipients are the recipients of
+     *         emailList and whose last child is the profile of its optimization
+     */
+    static Profile profile(EmailList emailList, Map<String, EmailList> environment) {
+        final RecipientCache cache = EnvironmentState.of(environment).recipientCache();
+        final Map<EmailList, Profile> profiled = new IdentityHashMap<>();
+        final Deque<Frame> stack = new ArrayDeque<>();
+        stack.push(new Frame(emailList, "expression", uncachedReferences(emailList, environment, cache), emailList, null));
+        Profile result = null;
+        while (!stack.isEmpty()) {
+            final Frame top = stack.peek();
+            if (result != null) {
+                top.children.add(result);
+                result = null;
+            }
+            if (top.children.size() == top.operands.size() && top.definition != null) {
+                // the lists the optimizer estimates are cached now, so optimizing does not evaluate them
+                final long start = System.nanoTime();
+                top.operands.add(EmailListOptimizer.optimize(top.definition, environment));
+                top.optimizeNanos = System.nanoTime() - start;
+                top.definition = null;
+            }
+            if (top.children.size() < top.operands.size()) {
+                result = enter(top.operands.get(top.children.size()), environment, cache, profiled, stack);
+                continue;
+            }
+            stack.pop();
+            final long start = System.nanoTime();
+            final RecipientSet recipients = combine(top);
+            if (top.cacheAs != null) {
+                cache.store(top.cacheAs, recipients, environment);
+            }
+            result = new Profile(top.node, top.label, recipients, System.nanoTime() - start, top.optimizeNanos,
+                    top.children);
+            profiled.put(top.node, result);
+        }
+        return result;
+    }
+
+    /**
+     * @param emailList an email list
+     * @param environment the environment in which the value of email lists are stored
+     * @param cache the recipient cache of environment
+     * @return the defined named lists that emailList refers to directly whose recipients are not cached,
+     *         in alphabetical order
+     */
+    private static List<EmailList> uncachedReferences(EmailList emailList, Map<String, EmailList> environment,
+            RecipientCache cache) {
+        final List<EmailList> references = new ArrayList<>();
+        for (String name : new TreeSet<>(emailList.getDirectlyReferencedLists())) {
+            if (environment.containsKey(name) && !cache.cached(name, environment).isPresent()) {
+                references.add(EmailList.listName(name));
+            }
+        }
+        return references;
+    }
+
+    /**
+     * @param frame a frame whose operands have all been profiled
+     * @return the recipients of the node of frame
+     */
+    private static RecipientSet combine(Frame frame) {
+        if (frame.ofDefinition) {
+            // the last operand is the optimized definition
+            return frame.children.get(frame.children.size() - 1).recipients;
+        }
+        final List<RecipientSet> operands = new ArrayList<>(frame.children.size());
+        for (Profile child : frame.children) {
+            operands.add(child.recipients);
+        }
+        if (frame.node instanceof Union) {
+            return RecipientSet.unionAll(operands);
+        } else if (frame.node instanceof Intersection) {
+            return operands.get(0).intersection(operands.get(1));
+        } else {
+            return operands.get(0).difference(operands.get(1));
+        }
+    }
+
+    /**
+     * Start profiling a node: profile it at once if it is a leaf, a cached or undefined list name, or
+     * already profiled, otherwise push its frame.
+     *
+     * @return the profile of node, or null if a frame was pushed for it
+     */
+    private static Profile enter(EmailList node, Map<String, EmailList> environment, RecipientCache cache,
+            Map<EmailList, Profile> profiled, Deque<Frame> stack) {
+        final Profile known = profiled.get(node);
+        if (known != null) {
+            // a shared subexpression, evaluated once and not counted again
+            return new Profile(node, known.label + " (shared, profiled above)", known.recipients, 0, 0, new ArrayList<>());
+        }
+        final long start = System.nanoTime();
+        if (node instanceof Empty) {
+            return new Profile(node, "empty", RecipientSet.empty(), System.nanoTime() - start, 0, new ArrayList<>());
+        } else if (node instanceof Single) {
+            final RecipientSet recipients = node.recipientSet(environment);
+            return new Profile(node, "address " + node, recipients, System.nanoTime() - start, 0, new ArrayList<>());
+        } else if (node instanceof ListName) {
+            final String name = ((ListName) node).getName();
+            final EmailList definition = environment.get(name);
+            if (definition == null) {
+                return new Profile(node, "list name " + name + " (undefined)", RecipientSet.empty(),
+                        System.nanoTime() - start, 0, new ArrayList<>());
+            }
+            final Optional<RecipientSet> cached = cache.cached(name, environment);
+            Metrics.countCacheLookup(cached.isPresent());
+            if (cached.isPresent()) {
+                return new Profile(node, "list name " + name + " (cached)", cached.get(),
+                        System.nanoTime() - start, 0, new ArrayList<>());
+            }
+            // evaluated as RecipientCache.recipients would, and cached
+            stack.push(new Frame(node, "list name " + name, uncachedReferences(definition, environment, cache),
+                    definition, name));
+        } else if (node instanceof Union) {
+            final List<EmailList> operands = EmailListTraversal.unionOperands((Union) node);
+            stack.push(new Frame(node, "union of " + operands.size(), operands));
+        } else if (node instanceof Intersection) {
+            stack.push(new Frame(node, "intersection",
+                    Arrays.asList(((Intersection) node).getLeft(), ((Intersection) node).getRight())));
+        } else {
+            stack.push(new Frame(node, "difference",
+                    Arrays.asList(((Difference) node).getLeft(), ((Difference) node).getRight())));
+        }
+        return null;
+    }
+
+    /**
+     * Log the profile of a request if profiling is enabled and the request took longer than the threshold.
+     *
+     * @param expression the expression that was evaluated
+     * @param profile the profile of its evaluation
+     * @param elapsedNanos time in nanoseconds taken by the whole request
+     * @param log stream to log to
+     */
+    static void logIfSlow(String expression, Profile profile, long elapsedNanos, PrintStream log) {
+        if (!isEnabled() || elapsedNanos <= THRESHOLD_NANOS) {
+            return;
+        }
+        log.print(String.format(Locale.ROOT, "slow expression, %.3f ms: %s%n%s",
+                elapsedNanos / 1e6, expression, profile));
+    }
+}
@@ -0,0 +1,138 @@
+package norn;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A mutable, thread-safe histogram of non-negative values, such as latencies in nanoseconds, with
+ * bounded relative error, in the manner of HdrHistogram.
+ *
+ * Values below 256 are counted exactly. Larger values are counted in log-linear buckets: each power of
+ * two is split into 128 equal buckets, so a value is known to within 1/128 of itself. Recording is a few
+ * atomic increments, without locks or allocation, and the histogram takes a fixed 60 KiB however many
+ * values are recorded.
+ */
+class LatencyHistogram {
+    private static final int EXACT = 256;
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values up to Long.MAX_VALUE have exponents up to 63 - SUB_BUCKET_BITS
+    private static final int BUCKETS = EXACT + (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    // Abstraction function
+    //    AF(counts, count, sum, max) = the multiset of recorded values, of which counts.get(i) fall in
+    //                                  bucket i, count in total, with sum sum and maximum max
+    // Rep invariant
+    //    count = the sum of counts, when no record() is in progress; every count >= 0
+    // Safety from rep exposure
+    //    all fields are private and final, and only numbers are returned
+    // Thread safety argument
+    //    every field is an atomic or an adder, updated without locks; a reading taken while values
+    //    are being recorded may count some of them and not others, which only matters to the
+    //    moment the reading is taken
+
+    /**
+     * Record a value.
+     * @param value value to record, >= 0
+     */
+    void record(long value) {
+        assert value >= 0;
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    long count() {
+        return count.sum();
+    }
+
+    /**
+     * @return the sum of the values recorded
+     */
+    long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return the largest value recorded, or 0 if there is none
+     */
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile a percentage, between 0 and 100
+     * @return the least recorded value v, to within the precision of the histogram, such that at least
+     *         percentile percent of the values recorded are <= v; 0 if there are none
+     */
+    long percentile(double percentile) {
+        final long total = count();
+        if (total == 0) {
+            return 0;
+        }
+        // less a tolerance for rounding, so that e.g. 99.9% of 1000 values is 999 of them and not 1000
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total - 1e-6));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max());
+            }
+        }
+        return max();
+    }
+
+    /**
+     * Add every value recorded in another histogram to this one.
+     * @param that histogram to add
+     */
+    void add(LatencyHistogram that) {
+        for (int i = 0; i < BUCKETS; i++) {
+            final long n = that.counts.get(i);
+            if (n > 0) {
+                counts.addAndGet(i, n);
+            }
+        }
+        count.add(that.count());
+        sum.add(that.sum());
+        max.accumulateAndGet(that.max(), Math::max);
+    }
+
+    /**
+     * @param value a value >= 0
+     * @return index of the bucket that counts value
+     */
+    private static int bucket(long value) {
+        if (value < EXACT) {
+            return (int) value;
+        }
+        // value = sub << exponent, with sub between SUB_BUCKETS and 2 * SUB_BUCKETS - 1
+        final int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        final int sub = (int) (value >>> exponent);
+        return EXACT + (exponent - 1) * SUB_BUCKETS + (sub - SUB_BUCKETS);
+    }
+
+    /**
+     * @param bucket index of a bucket
+     * @return the largest value counted by the bucket
+     */
+    private static long highestValue(int bucket) {
+        if (bucket < EXACT) {
+            return bucket;
+        }
+        final int exponent = (bucket - EXACT) / SUB_BUCKETS + 1;
+        final long sub = (bucket - EXACT) % SUB_BUCKETS + SUB_BUCKETS;
+        final long next = (sub + 1) << exponent;
+        return next <= 0 ? Long.MAX_VALUE : next - 1;
+    }
+}
@@ -1,6 +1,5 @@
 package norn;
 
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -69,16 +68,31 @@ public class ListName implements EmailList {
         }
         
         @Override
-        public Set<String> recipients(Map<String, EmailList> environment) {
-            final Set<String> set = environment.get(this.name).recipients(environment);
-            return Collections.unmodifiableSet(set);
+        public RecipientSet recipientSet(Map<String, EmailList> environment) {
+            return EnvironmentState.of(environment).recipientCache().recipients(this.name, environment);
         }
 
         @Override
         public Set<String> getReferencedLists(Map<String, EmailList> environment) {
+            return EmailListTraversal.referencedLists(this, environment);
+        }
+
+        @Override
+        public Set<String> getDirectlyReferencedLists() {
             Set<String> result = new HashSet<>();
-            result.addAll(environment.get(this.name).getReferencedLists(environment));
             result.add(this.name);
             return result;
         }
+
+        /**
+         * @return the lowercased name of the list
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.on(this);
+        }
 }
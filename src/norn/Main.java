@@ -2,6 +2,7 @@ package norn;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -12,19 +13,49 @@ import java.util.Queue;
 
 public class Main {
     // Thread Safety Argument:
-    //      The only shared variable is the environment map.
-    //      There is a synchronized block for the environment in all methods that read and mutate environment, for both
-    //      the console server and the web server, so environment can only be accessed by a single thread at a time.
-    //      Only one thread can have access to the lock on environment at a time.
+    //      The only shared variable is the environment, which is a thread-safe Environment.
+    //      Both the console server and the web server read and mutate it only through transactions,
+    //      which see an immutable snapshot and commit their assignments atomically.
     
     /**
      * Main method. Starts the web server and the email user console interface with the given command line arguments.
      * If the given command line arguments are valid space-separated files to load from, loads the files.
+     * <p>
+     * The web server can be configured with system properties:
+     * <ul>
+     *  <li>norn.executor: fixed (default), work_stealing or virtual
+     *  <li>norn.threads: number of threads for fixed and work_stealing, defaults to the number of processors
+     *  <li>norn.backlog: maximum number of pending connections, defaults to {@link EmailWebServer#DEFAULT_BACKLOG}
+     *  <li>norn.http: httpserver (default) for {@link EmailWebServer}, or nio for {@link EmailNioServer}, which
+     *      serves /eval/ and /metrics from a selector thread with keep-alive and pipelining; norn.executor is
+     *      ignored by nio, which evaluates on a fixed pool of norn.threads threads
+     * </ul>
+     * Both servers evaluate recipients with the engine given by the norn.evaluator system property,
+     * bitmap (default), sorted_merge, which outputs addresses in alphabetical order, parallel, which
+     * evaluates large lists on all cores, or lazy, which streams addresses as they are found
+     * (see {@link EmailList#DEFAULT_EVALUATION_ENGINE}).
+     * If the system property norn.profile.threshold is set to a number of milliseconds, the web server
+     * profiles the evaluation of every /eval/ request, and logs the profile of each request slower than
+     * that to standard error (see {@link EvaluationProfiler}).
+     * If the system property norn.data names a data directory, the environment is recovered from it
+     * before the files in args are loaded, and every assignment is logged to it durably
+     * (see {@link Environment#open}); otherwise the environment starts empty and is kept only in memory.
      * @param args command-line arguments. If args are valid space-separated files to load from, loads the files.
      */
     public static void main(String[] args) throws IOException { 
-        final Map<String, EmailList> environment = new HashMap<>();
-        new EmailWebServer().startWebServer(environment);
+        final String dataDirectory = System.getProperty("norn.data");
+        final Environment environment = dataDirectory == null
+                ? new Environment()
+                : Environment.open(Paths.get(dataDirectory));
+        final EmailWebServer.ExecutorMode executorMode =
+                EmailWebServer.ExecutorMode.valueOf(System.getProperty("norn.executor", "fixed").toUpperCase());
+        final int threads = Integer.getInteger("norn.threads", Runtime.getRuntime().availableProcessors());
+        final int backlog = Integer.getInteger("norn.backlog", EmailWebServer.DEFAULT_BACKLOG);
+        if (System.getProperty("norn.http", "httpserver").equalsIgnoreCase("nio")) {
+            new EmailNioServer(threads, backlog).startWebServer(environment);
+        } else {
+            new EmailWebServer(executorMode, threads, backlog).startWebServer(environment);
+        }
         EmailConsoleServer.startConsole(environment, args);
     }
 
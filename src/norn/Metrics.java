@@ -0,0 +1,162 @@
+package norn;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide timers and counters of the stages of evaluating expressions, and their rendering in the
+ * Prometheus text exposition format.
+ *
+ * A stage is timed by taking System.nanoTime() before it and passing it to {@link #record} after it,
+ * which costs a few atomic increments (see LatencyHistogram); there are no locks and no allocation on
+ * the timed paths. Stages nest: parse includes cycle_check, and request includes the rest.
+ *
+ * Rendering the metrics never evaluates a list: the gauges of the addresses on the lists of an
+ * environment are computed from the recipients already in its recipient cache, so a scrape costs
+ * the same however many lists have changed since the last one.
+ */
+class Metrics {
+
+    /**
+     * The timed stages.
+     */
+    enum Stage {
+        /** the whole handling of a web request */
+        REQUEST,
+        /** EmailList.evaluate: parsing an expression and running its assignments */
+        PARSE,
+        /** checking an assignment for recursive definitions */
+        CYCLE_CHECK,
+        /** evaluating the recipients of an email list */
+        EVALUATE,
+        /** waiting for the lock on an environment that is not an Environment, or on the write-ahead log */
+        LOCK_WAIT,
+        /** waiting for committed assignments to reach the disk */
+        DURABLE_WAIT,
+        /** writing a response to the client */
+        RESPONSE_WRITE;
+
+        private final LatencyHistogram latencies = new LatencyHistogram();
+    }
+
+    // quantiles reported for every stage
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private static final Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+    private static final LongAdder transactionRetries = new LongAdder();
+    private static final LongAdder cacheHits = new LongAdder();
+    private static final LongAdder cacheMisses = new LongAdder();
+
+    // Thread safety argument
+    //    every field is a thread-safe histogram, adder or concurrent map, and never reassigned
+
+    private Metrics() {
+        throw new AssertionError("not instantiable");
+    }
+
+    /**
+     * Record the time taken by one run of a stage.
+     * @param stage the stage that ran
+     * @param startNanos System.nanoTime() when the stage started
+     */
+    static void record(Stage stage, long startNanos) {
+        stage.latencies.record(Math.max(0, System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Count a web request.
+     * @param context path of the context that handled it, such as /eval/
+     * @param status HTTP status of the response
+     */
+    static void countRequest(String context, int status) {
+        requests.computeIfAbsent("context=\"" + context + "\",status=\"" + status + "\"", k -> new LongAdder()).increment();
+    }
+
+    /**
+     * Count a transaction that is run again because another committed first.
+     */
+    static void countTransactionRetry() {
+        transactionRetries.increment();
+    }
+
+    /**
+     * Count a lookup in a recipient cache.
+     * @param hit true if the lookup found a current entry
+     */
+    static void countCacheLookup(boolean hit) {
+        (hit ? cacheHits : cacheMisses).increment();
+    }
+
+    /**
+     * Render the metrics, and gauges of an environment, in the Prometheus text exposition format.
+     *
+     * @param environment the environment in which the value of email lists are stored; must not
+     *                    change during the call, such as the view of a transaction
+     * @return the metrics, one sample per line
+     */
+    static String render(Map<String, EmailList> environment) {
+        final StringBuilder out = new StringBuilder();
+        out.append("# HELP norn_stage_seconds Time spent in each stage of evaluating expressions.\n");
+        out.append("# TYPE norn_stage_seconds summary\n");
+        final Map<Stage, long[]> totals = new EnumMap<>(Stage.class);
+        for (Stage stage : Stage.values()) {
+            final String name = stage.name().toLowerCase(Locale.ROOT);
+            for (double quantile : QUANTILES) {
+                sample(out, "norn_stage_seconds", "stage=\"" + name + "\",quantile=\"" + quantile + "\"",
+                        seconds(stage.latencies.percentile(quantile * 100)));
+            }
+            totals.put(stage, new long[] { stage.latencies.sum(), stage.latencies.count() });
+            sample(out, "norn_stage_seconds_sum", "stage=\"" + name + "\"", seconds(totals.get(stage)[0]));
+            sample(out, "norn_stage_seconds_count", "stage=\"" + name + "\"", Long.toString(totals.get(stage)[1]));
+        }
+
+        out.append("# HELP norn_requests_total Web requests handled, by context and status.\n");
+        out.append("# TYPE norn_requests_total counter\n");
+        for (Map.Entry<String, LongAdder> entry : requests.entrySet()) {
+            sample(out, "norn_requests_total", entry.getKey(), Long.toString(entry.getValue().sum()));
+        }
+        counter(out, "norn_transaction_retries_total", "Transactions run again because another committed first.",
+                transactionRetries.sum());
+        counter(out, "norn_recipient_cache_hits_total", "Lookups of cached recipients of named lists that were current.",
+                cacheHits.sum());
+        counter(out, "norn_recipient_cache_misses_total", "Lookups of cached recipients of named lists that were evaluated.",
+                cacheMisses.sum());
+
+        final long hits = cacheHits.sum();
+        final long lookups = hits + cacheMisses.sum();
+        final RecipientCache cache = EnvironmentState.of(environment).recipientCache();
+        gauge(out, "norn_recipient_cache_hit_ratio", "Fraction of recipient cache lookups that were hits.",
+                lookups == 0 ? "0" : String.format(Locale.ROOT, "%.6f", (double) hits / lookups));
+        gauge(out, "norn_lists", "Lists defined in the environment.", Integer.toString(environment.size()));
+        gauge(out, "norn_distinct_addresses",
+                "Distinct addresses on the lists of the environment whose recipients are cached.",
+                Integer.toString(cache.distinctCachedAddresses(environment)));
+        gauge(out, "norn_largest_list_recipients",
+                "Recipients of the largest list of the environment whose recipients are cached.",
+                Integer.toString(cache.largestCachedList(environment)));
+        return out.toString();
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, String value) {
+        out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, String value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
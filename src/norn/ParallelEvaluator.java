@@ -0,0 +1,281 @@
+package norn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Evaluates the recipients of large email lists in parallel, as ForkJoinPool tasks.
+ *
+ * Chains of unions and of intersections are treated as n-ary operations, whose operands are split in
+ * halves recursively into tasks, and a chain of differences a ! b ! c ! ... is evaluated as a ! (b, c, ...),
+ * with a and the union of the rest evaluated in parallel. Subexpressions estimated to have fewer than
+ * PARALLEL_THRESHOLD recipients are evaluated sequentially (see EmailListTraversal), since forking them
+ * would cost more than it saves. Estimates use the cached sizes of named lists, as in EmailListOptimizer,
+ * so they are cheap once the lists have been evaluated. A named list whose recipients are not cached is
+ * estimated and evaluated through its definition like any other subexpression, and its recipients are
+ * then stored in the recipient cache of the environment.
+ */
+public class ParallelEvaluator {
+    // subexpressions estimated to have fewer recipients than this are evaluated on one thread
+    static final long PARALLEL_THRESHOLD = 1 << 14;
+
+    private final Map<String, EmailList> environment;
+    private final Map<EmailList, Long> estimates;
+    private final RecipientCache cache;
+
+    // Abstraction function
+    //    AF(environment, estimates) = an evaluation of an email list in environment, in which each
+    //                                 subexpression e in estimates has at most estimates.get(e) recipients
+    // Rep invariant
+    //    every estimate is >= 0
+    // Safety from rep exposure
+    //    all fields are private and final, and never returned
+    // Thread safety argument
+    //    estimates is filled in before any task is forked and only read afterwards; forking a task
+    //    happens-before the task runs, so every task sees it complete. environment is only read, and
+    //    must not change during the evaluation. Recipient sets are immutable, and the recipient cache
+    //    of named lists is thread-safe.
+
+    /**
+     * @param environment the environment in which the value of email lists are stored
+     * @param estimates upper bounds on the number of recipients of every subexpression to evaluate
+     */
+    private ParallelEvaluator(Map<String, EmailList> environment, Map<EmailList, Long> estimates) {
+        this.environment = environment;
+        this.estimates = estimates;
+        this.cache = EnvironmentState.of(environment).recipientCache();
+    }
+
+    /**
+     * Evaluate the recipients of an email list, using the common ForkJoinPool for large subexpressions.
+     *
+     * @param emailList email list to evaluate
+     * @param environment the environment in which the value of email lists are stored; must not change
+     *                    during the evaluation
+     * @return the recipients of emailList, as for {@link EmailList#recipientSet}
+     */
+    public static RecipientSet recipientSet(EmailList emailList, Map<String, EmailList> environment) {
+        return recipientSet(emailList, environment, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Evaluate the recipients of an email list, using a given pool for large subexpressions.
+     *
+     * @param emailList email list to evaluate
+     * @param environment the environment in which the value of email lists are stored; must not change
+     *                    during the evaluation
+     * @param pool the pool to run tasks in
+     * @return the recipients of emailList, as for {@link EmailList#recipientSet}
+     */
+    public static RecipientSet recipientSet(EmailList emailList, Map<String, EmailList> environment, ForkJoinPool pool) {
+        final ParallelEvaluator evaluator = new ParallelEvaluator(environment, estimate(emailList, environment));
+        if (evaluator.estimates.get(emailList) < PARALLEL_THRESHOLD) {
+            return EmailListTraversal.recipientSet(emailList, environment);
+        }
+        return pool.invoke(evaluator.new Evaluation(emailList));
+    }
+
+    /**
+     * Estimate the number of recipients of every subexpression of an email list, without recursion.
+     *
+     * @param root email list to estimate
+     * @param environment the environment in which the value of email lists are stored
+     * @return map from each subexpression of root, and of the definitions of the named lists it refers to
+     *         whose recipients are not cached, compared by identity, to an upper bound on its number of recipients
+     */
+    private static Map<EmailList, Long> estimate(EmailList root, Map<String, EmailList> environment) {
+        final RecipientCache cache = EnvironmentState.of(environment).recipientCache();
+        final Map<EmailList, Long> estimates = new IdentityHashMap<>();
+        // each node is pushed once to expand its operands, and again (after them) to be estimated
+        final Deque<EmailList> pending = new ArrayDeque<>();
+        final Deque<Boolean> expanded = new ArrayDeque<>();
+        pending.push(root);
+        expanded.push(false);
+        while (!pending.isEmpty()) {
+            final EmailList node = pending.pop();
+            final boolean operandsDone = expanded.pop();
+            if (estimates.containsKey(node)) {
+                continue;
+            }
+            if (node instanceof Empty) {
+                estimates.put(node, 0L);
+            } else if (node instanceof Single) {
+                estimates.put(node, 1L);
+            } else if (node instanceof ListName) {
+                final String name = ((ListName) node).getName();
+                final EmailList definition = environment.get(name);
+                final Optional<RecipientSet> cached = definition == null ? Optional.empty() : cache.cached(name, environment);
+                if (definition == null) {
+                    estimates.put(node, 0L);
+                } else if (cached.isPresent()) {
+                    estimates.put(node, (long) cached.get().size());
+                } else if (operandsDone) {
+                    estimates.put(node, estimates.get(definition));
+                } else {
+                    pending.push(node);
+                    expanded.push(true);
+                    pending.push(definition);
+                    expanded.push(false);
+                }
+            } else {
+                final EmailList left = operand(node, true);
+                final EmailList right = operand(node, false);
+                if (operandsDone) {
+                    final long l = estimates.get(left);
+                    final long r = estimates.get(right);
+                    estimates.put(node, node instanceof Union ? l + r : node instanceof Intersection ? Math.min(l, r) : l);
+                } else {
+                    pending.push(node);
+                    expanded.push(true);
+                    pending.push(right);
+                    expanded.push(false);
+                    pending.push(left);
+                    expanded.push(false);
+                }
+            }
+        }
+        return estimates;
+    }
+
+    /**
+     * @param node a union, intersection or difference
+     * @param left true for the left operand, false for the right
+     * @return the operand of node
+     */
+    private static EmailList operand(EmailList node, boolean left) {
+        if (node instanceof Union) {
+            return left ? ((Union) node).getLeft() : ((Union) node).getRight();
+        } else if (node instanceof Intersection) {
+            return left ? ((Intersection) node).getLeft() : ((Intersection) node).getRight();
+        } else {
+            return left ? ((Difference) node).getLeft() : ((Difference) node).getRight();
+        }
+    }
+
+    /**
+     * @param emailList root of a chain of binary operations of one kind
+     * @param operation class of the operation
+     * @param leftOnly true to follow only the left operands of the chain
+     * @return the operands of the chain from left to right, none of which is of class operation,
+     *         except that if leftOnly, every right operand along the chain is included as it is
+     */
+    private static List<EmailList> flatten(EmailList emailList, Class<? extends EmailList> operation, boolean leftOnly) {
+        final List<EmailList> operands = new ArrayList<>();
+        final Deque<EmailList> pending = new ArrayDeque<>();
+        final Deque<Boolean> expandable = new ArrayDeque<>();
+        pending.push(emailList);
+        expandable.push(true);
+        while (!pending.isEmpty()) {
+            final EmailList next = pending.pop();
+            final boolean expand = expandable.pop();
+            if (expand && operation.isInstance(next)) {
+                pending.push(operand(next, false));
+                expandable.push(!leftOnly);
+                pending.push(operand(next, true));
+                expandable.push(true);
+            } else {
+                operands.add(next);
+            }
+        }
+        return operands;
+    }
+
+    /**
+     * @param emailList a subexpression of the email list being evaluated
+     * @return its recipients, evaluated in this thread if it is small, otherwise in tasks
+     */
+    private RecipientSet evaluate(EmailList emailList) {
+        if (estimates.get(emailList) < PARALLEL_THRESHOLD) {
+            return EmailListTraversal.recipientSet(emailList, environment);
+        }
+        return new Evaluation(emailList).compute();
+    }
+
+    /**
+     * A task evaluating the recipients of one subexpression.
+     */
+    private class Evaluation extends RecursiveTask<RecipientSet> {
+        private static final long serialVersionUID = 1L;
+        private final EmailList emailList;
+
+        private Evaluation(EmailList emailList) {
+            this.emailList = emailList;
+        }
+
+        @Override
+        protected RecipientSet compute() {
+            if (emailList instanceof Union) {
+                final List<EmailList> operands = flatten(emailList, Union.class, false);
+                return new Combination(operands, 0, operands.size(), Union.class).compute();
+            } else if (emailList instanceof Intersection) {
+                final List<EmailList> operands = flatten(emailList, Intersection.class, false);
+                return new Combination(operands, 0, operands.size(), Intersection.class).compute();
+            } else if (emailList instanceof Difference) {
+                // a ! b ! c ! ... == a ! (b, c, ...)
+                final List<EmailList> chain = flatten(emailList, Difference.class, true);
+                final Combination subtracted = new Combination(chain, 1, chain.size(), Union.class);
+                subtracted.fork();
+                final RecipientSet left = evaluate(chain.get(0));
+                return left.isEmpty() ? left : left.difference(subtracted.join());
+            } else if (emailList instanceof ListName) {
+                final String name = ((ListName) emailList).getName();
+                final Optional<RecipientSet> cached = cache.cached(name, environment);
+                Metrics.countCacheLookup(cached.isPresent());
+                if (cached.isPresent()) {
+                    return cached.get();
+                }
+                final RecipientSet recipients = evaluate(environment.get(name));
+                cache.store(name, recipients, environment);
+                return recipients;
+            } else {
+                return EmailListTraversal.recipientSet(emailList, environment);
+            }
+        }
+    }
+
+    /**
+     * A task combining the recipients of a range of operands of an n-ary union or intersection.
+     */
+    private class Combination extends RecursiveTask<RecipientSet> {
+        private static final long serialVersionUID = 1L;
+        private final List<EmailList> operands;
+        private final int from;
+        private final int to;
+        private final Class<? extends EmailList> operation;
+
+        /**
+         * @param operands operands of the operation
+         * @param from index of the first operand to combine
+         * @param to index after the last operand to combine
+         * @param operation Union or Intersection
+         */
+        private Combination(List<EmailList> operands, int from, int to, Class<? extends EmailList> operation) {
+            this.operands = operands;
+            this.from = from;
+            this.to = to;
+            this.operation = operation;
+        }
+
+        @Override
+        protected RecipientSet compute() {
+            if (to - from == 0) {
+                return RecipientSet.empty();
+            }
+            if (to - from == 1) {
+                return evaluate(operands.get(from));
+            }
+            final int middle = (from + to) >>> 1;
+            final Combination right = new Combination(operands, middle, to, operation);
+            right.fork();
+            final RecipientSet left = new Combination(operands, from, middle, operation).compute();
+            return operation == Union.class ? left.union(right.join()) : left.intersection(right.join());
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package norn;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A mutable, thread-safe cache of the recipients of named email lists in one environment.
+ *
+ * A cached entry for a list name remembers the definitions (in the environment) of every list
+ * that its recipients were computed from. The entry is only used while all of those definitions
+ * are still the ones in the environment, so an assignment to a list makes stale exactly the
+ * entries that depend on it, and no others.
+ */
+class RecipientCache {
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final DependencyGraph dependencyGraph;
+
+    // Abstraction function
+    //    AF(entries) = a cache mapping each list name n in entries to the recipients of n,
+    //                  valid for any environment that maps every name in entries.get(n).definitions
+    //                  to the same EmailList object.
+    // Rep invariant
+    //    for every entry e, e.definitions contains the name of the list it caches
+    // Safety from rep exposure
+    //    entries and dependencyGraph are private and final, and cached recipient sets are immutable.
+    // Thread safety argument
+    //    entries is a ConcurrentHashMap and Entry is immutable, so a reader either sees a complete
+    //    entry or no entry. Two threads may compute the same entry at once, which only wastes work.
+
+    /**
+     * An immutable cached recipient set together with the definitions it was computed from.
+     */
+    private static class Entry {
+        private final Map<String, EmailList> definitions;
+        private final RecipientSet recipients;
+
+        private Entry(Map<String, EmailList> definitions, RecipientSet recipients) {
+            this.definitions = definitions;
+            this.recipients = recipients;
+        }
+
+        /**
+         * @param environment the environment in which the value of email lists are stored
+         * @return true iff every definition this entry was computed from is still in environment
+         */
+        private boolean isCurrent(Map<String, EmailList> environment) {
+            for (Map.Entry<String, EmailList> definition : definitions.entrySet()) {
+                if (environment.get(definition.getKey()) != definition.getValue()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Make an empty cache for the lists of one environment.
+     *
+     * @param dependencyGraph the references between the lists of the environment
+     */
+    RecipientCache(DependencyGraph dependencyGraph) {
+        this.dependencyGraph = dependencyGraph;
+    }
+
+    /**
+     * Get the recipients of a defined list name, computing and caching them if there is no
+     * current cached entry for the list.
+     *
+     * @param listName the name of a list defined in environment
+     * @param environment the environment in which the value of email lists are stored
+     * @return the set of lowercased email addresses that the list contains
+     */
+    RecipientSet recipients(String listName, Map<String, EmailList> environment) {
+        final Entry cached = entries.get(listName);
+        if (cached != null && cached.isCurrent(environment)) {
+            Metrics.countCacheLookup(true);
+            return cached.recipients;
+        }
+        Metrics.countCacheLookup(false);
+        final EmailList definition = environment.get(listName);
+        final RecipientSet recipients = EmailListOptimizer.optimize(definition, environment).recipientSet(environment);
+        store(listName, recipients, environment);
+        return recipients;
+    }
+
+    /**
+     * Cache the recipients of a defined list name, computed by the caller from its definition.
+     *
+     * @param listName the name of a list defined in environment
+     * @param recipients the set of lowercased email addresses that the list contains in environment
+     * @param environment the environment in which the value of email lists are stored; must not change
+     *                    between computing recipients and this call
+     */
+    void store(String listName, RecipientSet recipients, Map<String, EmailList> environment) {
+        final Map<String, EmailList> definitions = new HashMap<>();
+        definitions.put(listName, environment.get(listName));
+        for (String referredList : dependencyGraph.transitiveReferences(listName, environment)) {
+            definitions.put(referredList, environment.get(referredList));
+        }
+        entries.put(listName, new Entry(definitions, recipients));
+    }
+
+    /**
+     * Get the recipients of a list name if they are cached, without computing them.
+     *
+     * @param listName a list name
+     * @param environment the environment in which the value of email lists are stored
+     * @return the set of lowercased email addresses that the list contains, if there is a current
+     *         cached entry for the list, otherwise empty
+     */
+    Optional<RecipientSet> cached(String listName, Map<String, EmailList> environment) {
+        final Entry cached = entries.get(listName);
+        if (cached != null && cached.isCurrent(environment)) {
+            return Optional.of(cached.recipients);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Count the distinct addresses on the lists whose recipients are cached, without evaluating any list.
+     *
+     * @param environment the environment in which the value of email lists are stored
+     * @return the number of addresses that are recipients of at least one list with a current cached entry
+     */
+    int distinctCachedAddresses(Map<String, EmailList> environment) {
+        final List<RecipientSet> cached = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.isCurrent(environment)) {
+                cached.add(entry.recipients);
+            }
+        }
+        return cached.isEmpty() ? 0 : RecipientSet.unionAll(cached).size();
+    }
+
+    /**
+     * Find the size of the largest list whose recipients are cached, without evaluating any list.
+     *
+     * @param environment the environment in which the value of email lists are stored
+     * @return the greatest number of recipients of a list with a current cached entry, or 0 if there is none
+     */
+    int largestCachedList(Map<String, EmailList> environment) {
+        int largest = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.isCurrent(environment)) {
+                largest = Math.max(largest, entry.recipients.size());
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * Remove the cached entries of a list name and of every list that depends on it.
+     * Called after the list is assigned a new definition, and only visits the lists
+     * that depend on it.
+     *
+     * @param listName the name of the list that was assigned
+     */
+    void invalidate(String listName) {
+        entries.remove(listName);
+        entries.keySet().removeAll(dependencyGraph.transitiveDependents(listName));
+    }
+}
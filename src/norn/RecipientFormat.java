@@ -0,0 +1,131 @@
+package norn;
+
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The formats in which the web server can write the recipients of an email list.
+ *
+ * Every format writes the recipients as they are iterated over, without joining them into a string
+ * first, and flushes after the first STREAM_BATCH addresses so that the client sees them at once.
+ */
+enum RecipientFormat {
+    /** the mailto: link and comma-separated addresses of the original page */
+    HTML("text/html; charset=utf-8") {
+        @Override
+        void write(PrintWriter out, Collection<String> recipients) {
+            out.print("<a href=\"mailto:");
+            writeSeparated(out, recipients.iterator(), ",", "", "");
+            out.print("\">email these recipients</a><br>");
+            writeSeparated(out, recipients.iterator(), ",", "", "");
+            out.println();
+        }
+    },
+    /** a JSON array of address strings */
+    JSON("application/json; charset=utf-8") {
+        @Override
+        void write(PrintWriter out, Collection<String> recipients) {
+            out.print('[');
+            writeSeparated(out, recipients.iterator(), ",", "\"", "\"");
+            out.println(']');
+        }
+    },
+    /** one JSON address string per line */
+    NDJSON("application/x-ndjson; charset=utf-8") {
+        @Override
+        void write(PrintWriter out, Collection<String> recipients) {
+            writeSeparated(out, recipients.iterator(), "", "\"", "\"\n");
+        }
+    },
+    /** a CSV table with an address column */
+    CSV("text/csv; charset=utf-8") {
+        @Override
+        void write(PrintWriter out, Collection<String> recipients) {
+            out.print("address\r\n");
+            writeSeparated(out, recipients.iterator(), "", "", "\r\n");
+        }
+    };
+
+    // number of addresses written before the response is first flushed
+    private static final int STREAM_BATCH = 1024;
+
+    private final String contentType;
+
+    /**
+     * @param contentType value of the Content-Type header of a response in this format
+     */
+    private RecipientFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    /**
+     * @return value of the Content-Type header of a response in this format
+     */
+    String contentType() {
+        return contentType;
+    }
+
+    /**
+     * Write the recipients of an email list in this format.
+     *
+     * @param out stream to write to; flushed after the first addresses, but not closed
+     * @param recipients the lowercased addresses to write; iterated over once, or twice for HTML
+     */
+    abstract void write(PrintWriter out, Collection<String> recipients);
+
+    /**
+     * Choose the format of a response, from the format query parameter if there is one, otherwise from
+     * the first media type in the Accept headers that names a format.
+     *
+     * @param query the query of the request URI, or null if it has none
+     * @param accept the values of the Accept headers of the request
+     * @return the chosen format, HTML if the request names none
+     * @throws IllegalArgumentException if the format query parameter names no format
+     */
+    static RecipientFormat negotiate(String query, List<String> accept) {
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith("format=")) {
+                    try {
+                        return valueOf(parameter.substring("format=".length()).toUpperCase(Locale.ROOT));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("unknown format: " + parameter.substring("format=".length()));
+                    }
+                }
+            }
+        }
+        for (String header : accept) {
+            for (String range : header.split(",")) {
+                final String mediaType = range.split(";")[0].trim().toLowerCase(Locale.ROOT);
+                for (RecipientFormat format : values()) {
+                    if (format.contentType.startsWith(mediaType + ";")) {
+                        return format;
+                    }
+                }
+            }
+        }
+        return HTML;
+    }
+
+    /**
+     * Write addresses, each between a prefix and a suffix, separated by a separator.
+     * Addresses are made of letters, digits, underscores, dashes, periods and @, so they need no escaping
+     * in any of the formats.
+     */
+    private static void writeSeparated(PrintWriter out, Iterator<String> addresses, String separator, String prefix, String suffix) {
+        for (int written = 0; addresses.hasNext(); written++) {
+            if (written > 0) {
+                out.print(separator);
+                if (written == STREAM_BATCH) {
+                    out.flush();
+                }
+            }
+            out.print(prefix);
+            out.print(addresses.next());
+            out.print(suffix);
+        }
+    }
+}
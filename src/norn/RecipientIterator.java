@@ -0,0 +1,166 @@
+package norn;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Iterates over the recipients of an email list, evaluating the list lazily as it goes.
+ *
+ * The addresses of the email list are visited depth first, left to right, with a stack on the heap,
+ * and each address is returned as soon as it is reached, unless it was returned before. An address
+ * under the left operand of an intersection or difference is only returned if it is (or is not) in the
+ * right operand; the recipients of the right operand are evaluated when the first such address is reached.
+ * So the first recipients are found without evaluating the rest of the list, and the only set built is
+ * the set of recipients returned so far.
+ */
+class RecipientIterator implements Iterator<String> {
+    private final Map<String, EmailList> environment;
+    private final Deque<Pending> stack = new ArrayDeque<>();
+    private final Set<Pending> visited = new HashSet<>();
+    private final Set<String> returned = new HashSet<>();
+    private String next = null;
+
+    // Abstraction function
+    //    AF(environment, stack, returned, next) = the recipients of an email list in environment, of which
+    //        returned have been iterated over, next (if not null) is the next one, and the rest are the
+    //        addresses in the subexpressions on stack that pass the filters they are paired with
+    // Rep invariant
+    //    next is null or not in returned
+    // Safety from rep exposure
+    //    all fields are private and final except next, which is a String; nothing but strings is returned
+    // Thread safety argument
+    //    not thread-safe; an iterator must be used by one thread at a time
+
+    /**
+     * A condition on addresses: that they are in (or not in) the recipients of an email list,
+     * and satisfy an outer condition.
+     */
+    private class Filter {
+        private final Filter outer;
+        private final EmailList operand;
+        private final boolean member;
+        private RecipientSet recipients = null;
+
+        /**
+         * @param outer the enclosing condition, or null if there is none
+         * @param operand email list whose recipients are tested
+         * @param member true to accept the addresses in operand, false to accept the ones not in it
+         */
+        private Filter(Filter outer, EmailList operand, boolean member) {
+            this.outer = outer;
+            this.operand = operand;
+            this.member = member;
+        }
+
+        /**
+         * @param address a lowercased email address
+         * @return true iff address satisfies this condition
+         */
+        private boolean accepts(String address) {
+            for (Filter filter = this; filter != null; filter = filter.outer) {
+                if (filter.recipients == null) {
+                    filter.recipients = filter.operand.recipientSet(environment);
+                }
+                if (filter.recipients.contains(address) != filter.member) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A subexpression still to visit, with the condition its addresses must satisfy.
+     */
+    private class Pending {
+        private final EmailList emailList;
+        private final Filter filter;
+
+        private Pending(EmailList emailList, Filter filter) {
+            this.emailList = emailList;
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            // a subexpression visited twice under the same condition yields no new recipients
+            return obj instanceof Pending && ((Pending) obj).emailList == emailList && ((Pending) obj).filter == filter;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(emailList), System.identityHashCode(filter));
+        }
+    }
+
+    /**
+     * Make an iterator over the recipients of an email list.
+     *
+     * @param emailList email list to iterate over
+     * @param environment the environment in which the value of email lists are stored; must not change
+     *                    while the iterator is in use
+     */
+    RecipientIterator(EmailList emailList, Map<String, EmailList> environment) {
+        this.environment = environment;
+        this.stack.push(new Pending(emailList, null));
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            next = advance();
+        }
+        return next != null;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final String result = next;
+        next = null;
+        return result;
+    }
+
+    /**
+     * Visit subexpressions until the next recipient not returned before.
+     * @return the next recipient, or null if there are no more
+     */
+    private String advance() {
+        while (!stack.isEmpty()) {
+            final Pending pending = stack.pop();
+            if (!visited.add(pending)) {
+                continue;
+            }
+            final EmailList emailList = pending.emailList;
+            if (emailList instanceof Single) {
+                final String address = ((Single) emailList).getRecipient();
+                if ((pending.filter == null || pending.filter.accepts(address)) && returned.add(address)) {
+                    return address;
+                }
+            } else if (emailList instanceof Union) {
+                stack.push(new Pending(((Union) emailList).getRight(), pending.filter));
+                stack.push(new Pending(((Union) emailList).getLeft(), pending.filter));
+            } else if (emailList instanceof Intersection) {
+                final Intersection intersection = (Intersection) emailList;
+                stack.push(new Pending(intersection.getLeft(), new Filter(pending.filter, intersection.getRight(), true)));
+            } else if (emailList instanceof Difference) {
+                final Difference difference = (Difference) emailList;
+                stack.push(new Pending(difference.getLeft(), new Filter(pending.filter, difference.getRight(), false)));
+            } else if (emailList instanceof ListName) {
+                final EmailList definition = environment.get(((ListName) emailList).getName());
+                if (definition != null) {
+                    stack.push(new Pending(definition, pending.filter));
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,496 @@
+package norn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.OptionalInt;
+import java.util.Set;
+
+/**
+ * An immutable set of email addresses, stored as a compressed bitmap of their ids in the address dictionary.
+ *
+ * As in Roaring bitmaps, an id is split into its high 16 bits, the key of a container, and its low 16 bits,
+ * stored in that container. A container with at most 4096 members is a sorted array of them; a fuller
+ * container is a 65536-bit bitmap. Union, intersection and difference merge the containers key by key,
+ * and combine two bitmap containers a 64-bit word at a time, so no address string is hashed while
+ * evaluating an email list; addresses are only looked up when the set is converted by addresses().
+ */
+public class RecipientSet {
+    private static final int MAX_ARRAY_SIZE = 4096;
+    private static final int BITMAP_WORDS = 1 << 10;
+    private static final RecipientSet EMPTY = new RecipientSet(new char[0], new Container[0]);
+
+    private final char[] keys;
+    private final Container[] containers;
+    private final int size;
+
+    // Abstraction function
+    //    AF(keys, containers) = the set of addresses whose ids are (keys[i] << 16) | low
+    //                           for each low in containers[i]
+    // Rep invariant
+    //    keys is strictly increasing, keys.length == containers.length
+    //    every container is non-empty
+    //    size is the total cardinality of the containers
+    // Safety from rep exposure
+    //    all fields are private and final; keys, containers and the arrays inside containers are
+    //    never modified after construction, and never returned
+    // Thread safety argument
+    //    immutable
+
+    /**
+     * @param keys keys of the containers, strictly increasing
+     * @param containers non-empty containers, in the order of their keys
+     */
+    private RecipientSet(char[] keys, Container[] containers) {
+        this.keys = keys;
+        this.containers = containers;
+        int total = 0;
+        for (Container container : containers) {
+            total += container.cardinality();
+        }
+        this.size = total;
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert keys.length == containers.length;
+        for (int i = 0; i < keys.length; i++) {
+            assert i == 0 || keys[i - 1] < keys[i];
+            assert containers[i].cardinality() > 0;
+        }
+    }
+
+    /**
+     * @return the empty set of addresses
+     */
+    public static RecipientSet empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @param address a lowercased email address
+     * @return the set containing only address
+     */
+    public static RecipientSet of(String address) {
+        final int id = AddressDictionary.id(address);
+        return new RecipientSet(new char[] { (char) (id >>> 16) },
+                new Container[] { new ArrayContainer(new char[] { (char) id }) });
+    }
+
+    /**
+     * @return the number of addresses in this set
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true iff this set has no addresses
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @param address an email address
+     * @return true iff the lowercased address is in this set
+     */
+    public boolean contains(String address) {
+        final OptionalInt id = AddressDictionary.lookup(address.toLowerCase());
+        if (!id.isPresent()) {
+            return false;
+        }
+        final int i = Arrays.binarySearch(keys, (char) (id.getAsInt() >>> 16));
+        return i >= 0 && containers[i].contains((char) id.getAsInt());
+    }
+
+    /**
+     * @return the addresses of this set, as an unmodifiable set of strings
+     */
+    public Set<String> addresses() {
+        final Set<String> addresses = new HashSet<>();
+        for (int id : ids()) {
+            addresses.add(AddressDictionary.address(id));
+        }
+        return Collections.unmodifiableSet(addresses);
+    }
+
+    /**
+     * @return the ids of the addresses of this set, in increasing order
+     */
+    int[] ids() {
+        final int[] ids = new int[size];
+        int filled = 0;
+        for (int i = 0; i < keys.length; i++) {
+            filled = containers[i].fill(ids, filled, keys[i] << 16);
+        }
+        return ids;
+    }
+
+    /**
+     * @param that another set
+     * @return the set of addresses in this set or in that
+     */
+    public RecipientSet union(RecipientSet that) {
+        if (this.isEmpty()) {
+            return that;
+        }
+        if (that.isEmpty()) {
+            return this;
+        }
+        final char[] resultKeys = new char[this.keys.length + that.keys.length];
+        final Container[] resultContainers = new Container[resultKeys.length];
+        int i = 0, j = 0, n = 0;
+        while (i < this.keys.length || j < that.keys.length) {
+            if (j == that.keys.length || (i < this.keys.length && this.keys[i] < that.keys[j])) {
+                resultKeys[n] = this.keys[i];
+                resultContainers[n++] = this.containers[i++];
+            } else if (i == this.keys.length || that.keys[j] < this.keys[i]) {
+                resultKeys[n] = that.keys[j];
+                resultContainers[n++] = that.containers[j++];
+            } else {
+                resultKeys[n] = this.keys[i];
+                resultContainers[n++] = this.containers[i++].or(that.containers[j++]);
+            }
+        }
+        return new RecipientSet(Arrays.copyOf(resultKeys, n), Arrays.copyOf(resultContainers, n));
+    }
+
+    /**
+     * @param sets sets to combine
+     * @return the set of addresses in any of sets; the sets are combined in pairs, and then the pairs
+     *         in pairs, and so on, so each address is copied a logarithmic number of times
+     */
+    public static RecipientSet unionAll(List<RecipientSet> sets) {
+        List<RecipientSet> level = sets;
+        while (level.size() > 1) {
+            final List<RecipientSet> next = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2) {
+                next.add(i + 1 < level.size() ? level.get(i).union(level.get(i + 1)) : level.get(i));
+            }
+            level = next;
+        }
+        return level.isEmpty() ? EMPTY : level.get(0);
+    }
+
+    /**
+     * @param that another set
+     * @return the set of addresses in both this set and that
+     */
+    public RecipientSet intersection(RecipientSet that) {
+        final int capacity = Math.min(this.keys.length, that.keys.length);
+        final char[] resultKeys = new char[capacity];
+        final Container[] resultContainers = new Container[capacity];
+        int i = 0, j = 0, n = 0;
+        while (i < this.keys.length && j < that.keys.length) {
+            if (this.keys[i] < that.keys[j]) {
+                i++;
+            } else if (that.keys[j] < this.keys[i]) {
+                j++;
+            } else {
+                final Container container = this.containers[i].and(that.containers[j]);
+                if (container != null) {
+                    resultKeys[n] = this.keys[i];
+                    resultContainers[n++] = container;
+                }
+                i++;
+                j++;
+            }
+        }
+        return n == 0 ? EMPTY : new RecipientSet(Arrays.copyOf(resultKeys, n), Arrays.copyOf(resultContainers, n));
+    }
+
+    /**
+     * @param that another set
+     * @return the set of addresses in this set but not in that
+     */
+    public RecipientSet difference(RecipientSet that) {
+        if (this.isEmpty() || that.isEmpty()) {
+            return this;
+        }
+        final char[] resultKeys = new char[this.keys.length];
+        final Container[] resultContainers = new Container[this.keys.length];
+        int j = 0, n = 0;
+        for (int i = 0; i < this.keys.length; i++) {
+            while (j < that.keys.length && that.keys[j] < this.keys[i]) {
+                j++;
+            }
+            final Container container = j < that.keys.length && that.keys[j] == this.keys[i]
+                    ? this.containers[i].andNot(that.containers[j])
+                    : this.containers[i];
+            if (container != null) {
+                resultKeys[n] = this.keys[i];
+                resultContainers[n++] = container;
+            }
+        }
+        return n == 0 ? EMPTY : new RecipientSet(Arrays.copyOf(resultKeys, n), Arrays.copyOf(resultContainers, n));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof RecipientSet)) {
+            return false;
+        }
+        final RecipientSet that = (RecipientSet) obj;
+        return this.size == that.size && Arrays.equals(this.ids(), that.ids());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(ids());
+    }
+
+    @Override
+    public String toString() {
+        return addresses().toString();
+    }
+
+    /**
+     * The low 16 bits of the ids in a set that share their high 16 bits. Immutable.
+     */
+    private static abstract class Container {
+        /**
+         * @return the number of members, at least 1
+         */
+        abstract int cardinality();
+
+        /**
+         * @param low low 16 bits of an id
+         * @return true iff low is a member
+         */
+        abstract boolean contains(char low);
+
+        /**
+         * Write the ids of the members in increasing order.
+         * @param ids array to write to, modified from index offset
+         * @param offset index of ids to write the first id to
+         * @param high high 16 bits of the ids, already shifted into place
+         * @return offset plus the number of ids written
+         */
+        abstract int fill(int[] ids, int offset, int high);
+
+        /**
+         * @return the members as a 65536-bit bitmap, which the caller may modify
+         */
+        abstract long[] toBitmap();
+
+        /**
+         * @param that another container with the same key
+         * @return the container of members of either
+         */
+        Container or(Container that) {
+            if (this instanceof ArrayContainer && that instanceof ArrayContainer
+                    && this.cardinality() + that.cardinality() <= MAX_ARRAY_SIZE) {
+                return ((ArrayContainer) this).merge((ArrayContainer) that);
+            }
+            final long[] words = this.toBitmap();
+            if (that instanceof BitmapContainer) {
+                final long[] thatWords = ((BitmapContainer) that).words;
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    words[w] |= thatWords[w];
+                }
+            } else {
+                for (char low : ((ArrayContainer) that).values) {
+                    words[low >>> 6] |= 1L << low;
+                }
+            }
+            return fromBitmap(words);
+        }
+
+        /**
+         * @param that another container with the same key
+         * @return the container of members of both, or null if there are none
+         */
+        Container and(Container that) {
+            if (this instanceof ArrayContainer) {
+                return ((ArrayContainer) this).filter(that, true);
+            }
+            if (that instanceof ArrayContainer) {
+                return ((ArrayContainer) that).filter(this, true);
+            }
+            final long[] words = this.toBitmap();
+            final long[] thatWords = ((BitmapContainer) that).words;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                words[w] &= thatWords[w];
+            }
+            return fromBitmap(words);
+        }
+
+        /**
+         * @param that another container with the same key
+         * @return the container of members of this but not that, or null if there are none
+         */
+        Container andNot(Container that) {
+            if (this instanceof ArrayContainer) {
+                return ((ArrayContainer) this).filter(that, false);
+            }
+            final long[] words = this.toBitmap();
+            if (that instanceof BitmapContainer) {
+                final long[] thatWords = ((BitmapContainer) that).words;
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    words[w] &= ~thatWords[w];
+                }
+            } else {
+                for (char low : ((ArrayContainer) that).values) {
+                    words[low >>> 6] &= ~(1L << low);
+                }
+            }
+            return fromBitmap(words);
+        }
+
+        /**
+         * @param words a 65536-bit bitmap, not modified by the caller afterwards
+         * @return a container of the members of words, as an array if there are few; null if there are none
+         */
+        static Container fromBitmap(long[] words) {
+            int cardinality = 0;
+            for (long word : words) {
+                cardinality += Long.bitCount(word);
+            }
+            if (cardinality == 0) {
+                return null;
+            }
+            if (cardinality > MAX_ARRAY_SIZE) {
+                return new BitmapContainer(words, cardinality);
+            }
+            final char[] values = new char[cardinality];
+            int n = 0;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                for (long word = words[w]; word != 0; word &= word - 1) {
+                    values[n++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                }
+            }
+            return new ArrayContainer(values);
+        }
+    }
+
+    /**
+     * A container of at most MAX_ARRAY_SIZE members, as a sorted array.
+     */
+    private static class ArrayContainer extends Container {
+        private final char[] values;
+
+        /**
+         * @param values the members, strictly increasing and non-empty
+         */
+        ArrayContainer(char[] values) {
+            this.values = values;
+        }
+
+        @Override
+        int cardinality() {
+            return values.length;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return Arrays.binarySearch(values, low) >= 0;
+        }
+
+        @Override
+        int fill(int[] ids, int offset, int high) {
+            for (char low : values) {
+                ids[offset++] = high | low;
+            }
+            return offset;
+        }
+
+        @Override
+        long[] toBitmap() {
+            final long[] words = new long[BITMAP_WORDS];
+            for (char low : values) {
+                words[low >>> 6] |= 1L << low;
+            }
+            return words;
+        }
+
+        /**
+         * @param that another array container, with at most MAX_ARRAY_SIZE - cardinality() members
+         * @return the container of members of either
+         */
+        ArrayContainer merge(ArrayContainer that) {
+            final char[] merged = new char[this.values.length + that.values.length];
+            int i = 0, j = 0, n = 0;
+            while (i < this.values.length && j < that.values.length) {
+                final char a = this.values[i], b = that.values[j];
+                merged[n++] = a <= b ? a : b;
+                if (a <= b) {
+                    i++;
+                }
+                if (b <= a) {
+                    j++;
+                }
+            }
+            while (i < this.values.length) {
+                merged[n++] = this.values[i++];
+            }
+            while (j < that.values.length) {
+                merged[n++] = that.values[j++];
+            }
+            return new ArrayContainer(n == merged.length ? merged : Arrays.copyOf(merged, n));
+        }
+
+        /**
+         * @param that another container
+         * @param keep true to keep the members that are in that, false to keep the ones that are not
+         * @return the container of the members kept, or null if there are none
+         */
+        Container filter(Container that, boolean keep) {
+            final char[] kept = new char[values.length];
+            int n = 0;
+            for (char low : values) {
+                if (that.contains(low) == keep) {
+                    kept[n++] = low;
+                }
+            }
+            if (n == 0) {
+                return null;
+            }
+            return n == values.length ? this : new ArrayContainer(Arrays.copyOf(kept, n));
+        }
+    }
+
+    /**
+     * A container of more than MAX_ARRAY_SIZE members, as a bitmap of 65536 bits.
+     */
+    private static class BitmapContainer extends Container {
+        private final long[] words;
+        private final int cardinality;
+
+        /**
+         * @param words BITMAP_WORDS words whose bit b of word w is set iff (w << 6) | b is a member
+         * @param cardinality the number of bits set in words
+         */
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        int fill(int[] ids, int offset, int high) {
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                for (long word = words[w]; word != 0; word &= word - 1) {
+                    ids[offset++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+                }
+            }
+            return offset;
+        }
+
+        @Override
+        long[] toBitmap() {
+            return words.clone();
+        }
+    }
+}
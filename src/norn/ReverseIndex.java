@@ -0,0 +1,233 @@
+package norn;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * A mutable, thread-safe index from each address to the names of the lists of one environment
+ * that contain it.
+ *
+ * For every list name the index remembers the definition and the recipients it was last computed
+ * from. When it is queried, only the lists assigned since the last query and the lists that depend on
+ * them are evaluated again (using the cached recipients of RecipientCache). The addresses that a list
+ * gained or lost are then added to or removed from the index, so an assignment costs work proportional
+ * to the recipients it changes, and a query never evaluates the lists that did not change.
+ *
+ * The index of an Environment is told the names of the lists of every commit (see {@link #assigned}),
+ * and is always brought up to date with the latest commit, so a query only evaluates the lists that
+ * changed. Any other map may be modified without going through the parser, so, like DependencyGraph,
+ * its index finds the assigned lists by comparing every definition in the map with the one it indexed.
+ */
+class ReverseIndex {
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<Integer, Set<String>> listsByAddress = new HashMap<>();
+    private final DependencyGraph dependencyGraph;
+    private final Optional<Supplier<Map<String, EmailList>>> latest;
+    private final Set<String> assigned = ConcurrentHashMap.newKeySet();
+    private boolean scanned = false;
+
+    // Abstraction function
+    //    AF(entries, listsByAddress) = the index mapping the address with id i to the list names
+    //                                  listsByAddress.get(i), valid for an environment that maps every
+    //                                  name n in entries to entries.get(n).definition, and no other names;
+    //                                  if latest is present, it is the index of the environment latest.get()
+    //                                  once every list in assigned is indexed again, unless scanned is false
+    // Rep invariant
+    //    for all n, i: n in listsByAddress.get(i) iff i in entries.get(n).recipients.ids()
+    //    no set in listsByAddress is empty
+    // Safety from rep exposure
+    //    all fields are private and final; queries return fresh sets of names
+    // Thread safety argument
+    //    all methods that access entries, listsByAddress and scanned are synchronized on this index,
+    //    and Entry and RecipientSet are immutable. assigned is a concurrent set, so commits record names
+    //    without waiting for a query; a name is added after its commit is published and removed before
+    //    latest.get() is read, so a query that removes a name always indexes the list as committed.
+
+    /**
+     * An immutable definition of a list together with its recipients.
+     */
+    private static class Entry {
+        private final EmailList definition;
+        private final RecipientSet recipients;
+
+        private Entry(EmailList definition, RecipientSet recipients) {
+            this.definition = definition;
+            this.recipients = recipients;
+        }
+    }
+
+    /**
+     * Make an empty index for the lists of a map that may be modified in any way.
+     *
+     * @param dependencyGraph the references between the lists of the environment
+     */
+    ReverseIndex(DependencyGraph dependencyGraph) {
+        this(dependencyGraph, Optional.empty());
+    }
+
+    /**
+     * Make an empty index for the lists of one environment.
+     *
+     * @param dependencyGraph the references between the lists of the environment
+     * @param latest if present, gives a view of the latest committed version of the environment that does
+     *               not change, and every commit to the environment calls assigned() after it is published
+     */
+    ReverseIndex(DependencyGraph dependencyGraph, Optional<Supplier<Map<String, EmailList>>> latest) {
+        this.dependencyGraph = dependencyGraph;
+        this.latest = latest;
+    }
+
+    /**
+     * Record that lists were assigned by a commit, so that the next query indexes them again.
+     * Called by an Environment after it publishes the commit; does not block.
+     *
+     * @param listNames the names of the lists the commit assigned
+     */
+    void assigned(Collection<String> listNames) {
+        assigned.addAll(listNames);
+    }
+
+    /**
+     * Check that the rep invariant is not violated for one list.
+     * @param listName the name of the list to check
+     */
+    private void checkRep(String listName) {
+        final Entry entry = entries.get(listName);
+        if (entry != null) {
+            for (int id : entry.recipients.ids()) {
+                assert listsByAddress.get(id).contains(listName);
+            }
+        }
+    }
+
+    /**
+     * Find the lists of an environment that contain an address, first bringing the index up to date
+     * with the environment.
+     *
+     * @param address an email address, in any case
+     * @param environment the environment in which the value of email lists are stored; ignored if this is
+     *                    the index of an Environment, which is brought up to date with its latest commit
+     * @return the names of the lists in environment whose recipients include address, in alphabetical order
+     */
+    synchronized Set<String> listsContaining(String address, Map<String, EmailList> environment) {
+        update(environment);
+        final OptionalInt id = AddressDictionary.lookup(address.toLowerCase());
+        if (!id.isPresent() || !listsByAddress.containsKey(id.getAsInt())) {
+            return new TreeSet<>();
+        }
+        return new TreeSet<>(listsByAddress.get(id.getAsInt()));
+    }
+
+    /**
+     * Re-index the lists whose definitions changed, and the lists that depend on them.
+     *
+     * @param environment the environment in which the value of email lists are stored, if this is not
+     *                    the index of an Environment
+     */
+    private void update(Map<String, EmailList> environment) {
+        if (!latest.isPresent()) {
+            scan(environment);
+            return;
+        }
+        final Set<String> changed = new HashSet<>();
+        for (Iterator<String> names = assigned.iterator(); names.hasNext(); ) {
+            changed.add(names.next());
+            names.remove();
+        }
+        final Map<String, EmailList> current = latest.get().get();
+        if (!scanned) {
+            // the lists the environment started with were never assigned by a commit
+            scanned = true;
+            scan(current);
+            return;
+        }
+        // bring the edges of every list up to date before following them backwards: the graph is shared
+        // with transactions, which record the edges of their assignments even if they never commit
+        for (String listName : changed) {
+            dependencyGraph.references(listName, current);
+        }
+        for (String listName : entries.keySet()) {
+            dependencyGraph.references(listName, current);
+        }
+        reindexAffected(changed, current);
+    }
+
+    /**
+     * Re-index the lists whose definitions in an environment differ from the ones indexed, and the lists
+     * that depend on them, by comparing every list in the environment with the index.
+     *
+     * @param environment the environment in which the value of email lists are stored
+     */
+    private void scan(Map<String, EmailList> environment) {
+        final Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, EmailList> definition : environment.entrySet()) {
+            // bring the edges of every list up to date before following them backwards from the changed lists
+            dependencyGraph.references(definition.getKey(), environment);
+            final Entry entry = entries.get(definition.getKey());
+            if (entry == null || entry.definition != definition.getValue()) {
+                changed.add(definition.getKey());
+            }
+        }
+        for (String listName : entries.keySet()) {
+            if (!environment.containsKey(listName)) {
+                changed.add(listName);
+            }
+        }
+        reindexAffected(changed, environment);
+    }
+
+    /**
+     * Re-index some lists and the lists that depend on them.
+     *
+     * @param changed names of the lists whose definitions changed
+     * @param environment the environment in which the value of email lists are stored
+     */
+    private void reindexAffected(Set<String> changed, Map<String, EmailList> environment) {
+        if (changed.isEmpty()) {
+            return;
+        }
+        final Set<String> affected = new HashSet<>(changed);
+        for (String listName : changed) {
+            affected.addAll(dependencyGraph.transitiveDependents(listName));
+        }
+        for (String listName : affected) {
+            reindex(listName, environment);
+        }
+    }
+
+    /**
+     * Replace the recipients indexed for one list by its recipients in an environment.
+     *
+     * @param listName the name of the list
+     * @param environment the environment in which the value of email lists are stored
+     */
+    private void reindex(String listName, Map<String, EmailList> environment) {
+        final Entry old = entries.remove(listName);
+        final RecipientSet before = old == null ? RecipientSet.empty() : old.recipients;
+        final EmailList definition = environment.get(listName);
+        final RecipientSet after = definition == null ? RecipientSet.empty() : EmailList.listName(listName).recipientSet(environment);
+        for (int id : before.difference(after).ids()) {
+            final Set<String> lists = listsByAddress.get(id);
+            lists.remove(listName);
+            if (lists.isEmpty()) {
+                listsByAddress.remove(id);
+            }
+        }
+        for (int id : after.difference(before).ids()) {
+            listsByAddress.computeIfAbsent(id, k -> new HashSet<>()).add(listName);
+        }
+        if (definition != null) {
+            entries.put(listName, new Entry(definition, after));
+        }
+        checkRep(listName);
+    }
+}
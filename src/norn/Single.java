@@ -1,6 +1,5 @@
 package norn;
 
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -10,14 +9,19 @@ import java.util.Set;
  */
 public class Single implements EmailList {
     private final String recipient;
+    private volatile RecipientSet recipientSet = null;
     
     // Abstraction function
-    //    AF(recipient) = an email list with email address recipient
+    //    AF(recipient, recipientSet) = an email list with email address recipient
     // Rep invariant
     //    recipient contains a single "@"
     //    recipient is non-empty, and username and domain are non-empty.
+    //    recipientSet is null until the list is first evaluated, then the set containing only recipient
     // Safety from rep exposure
-    //    recipient is private and final, and is a String so it is immutable.
+    //    recipient is private and final, and is a String so it is immutable; recipientSet is immutable.
+    // Thread safety argument
+    //    recipientSet is volatile and set to an immutable set, so every thread sees either null or the
+    //    complete set; threads that evaluate the list at once compute equal sets, and either may be kept.
     
     /** Make a email list with a single recipient. 
      * 
@@ -53,8 +57,15 @@ public class Single implements EmailList {
     }
     
     @Override
-    public Set<String> recipients(Map<String, EmailList> environment) {
-        return Collections.unmodifiableSet(Collections.singleton(this.recipient));
+    public RecipientSet recipientSet(Map<String, EmailList> environment) {
+        // the address is only numbered in the global AddressDictionary when it is first evaluated, so
+        // parsing lists that are never evaluated does not grow the dictionary
+        RecipientSet result = this.recipientSet;
+        if (result == null) {
+            result = RecipientSet.of(this.recipient);
+            this.recipientSet = result;
+        }
+        return result;
     }
 
     @Override
@@ -62,4 +73,21 @@ public class Single implements EmailList {
         Set<String> result = new HashSet<>();
         return result;
     }
+
+    @Override
+    public Set<String> getDirectlyReferencedLists() {
+        return new HashSet<>();
+    }
+
+    /**
+     * @return the lowercased email address of the recipient
+     */
+    public String getRecipient() {
+        return this.recipient;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+        return visitor.on(this);
+    }
 }
@@ -0,0 +1,244 @@
+package norn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates the recipients of an email list as a sorted array of addresses.
+ *
+ * Every node evaluates to a sorted array with no duplicates, so union, intersection and difference
+ * are linear merges of their operands' arrays, and the result is in alphabetical order. When one
+ * operand of an intersection or difference is much smaller than the other, the larger array is
+ * searched by galloping (exponential then binary search) from the last match, so the merge takes
+ * time proportional to the smaller operand times the log of the larger.
+ *
+ * An evaluator is used for one evaluation: it evaluates each list name at most once, however many
+ * times it is referred to. Evaluation is stack-safe (see EmailListTraversal), and merges the operands
+ * of a chain of unions in pairs.
+ */
+public class SortedMergeEvaluator implements EmailListTraversal.Fold<String[]> {
+    private static final String[] EMPTY = new String[0];
+    // operands whose sizes differ by more than this factor are merged by galloping
+    private static final int GALLOP_RATIO = 16;
+
+    private final Map<String, EmailList> environment;
+    private final Map<String, String[]> evaluatedLists = new HashMap<>();
+
+    // Abstraction function
+    //    AF(environment, evaluatedLists) = an evaluation of email lists in environment, which has found
+    //                                      that each list name n in evaluatedLists has recipients evaluatedLists.get(n)
+    // Rep invariant
+    //    every array in evaluatedLists is strictly increasing
+    // Safety from rep exposure
+    //    all fields are private and final; arrays are only returned by the visitor methods, to this
+    //    class's fold, and by recipients(), wrapped in an unmodifiable list
+    // Thread safety argument
+    //    not thread-safe; evaluators are confined to the thread that made them by recipients()
+
+    /**
+     * @param environment the environment in which the value of email lists are stored
+     */
+    private SortedMergeEvaluator(Map<String, EmailList> environment) {
+        this.environment = environment;
+    }
+
+    /**
+     * Get the recipients of an email list in alphabetical order.
+     *
+     * @param emailList email list to evaluate
+     * @param environment the environment in which the value of email lists are stored
+     * @return an unmodifiable list of the lowercased email addresses that emailList contains,
+     *         in increasing order, with no duplicates
+     */
+    public static List<String> recipients(EmailList emailList, Map<String, EmailList> environment) {
+        return Collections.unmodifiableList(Arrays.asList(EmailListTraversal.fold(emailList, new SortedMergeEvaluator(environment))));
+    }
+
+    @Override
+    public String[] empty(Empty empty) {
+        return EMPTY;
+    }
+
+    @Override
+    public String[] single(Single single) {
+        return new String[] { single.getRecipient() };
+    }
+
+    @Override
+    public String[] union(List<String[]> operands) {
+        // merge in pairs, so each address is copied a logarithmic number of times
+        List<String[]> level = operands;
+        while (level.size() > 1) {
+            final List<String[]> next = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2) {
+                next.add(i + 1 < level.size() ? merge(level.get(i), level.get(i + 1)) : level.get(i));
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+
+    @Override
+    public String[] intersection(String[] left, String[] right) {
+        return mergeIntersection(left, right);
+    }
+
+    @Override
+    public String[] difference(String[] left, String[] right) {
+        return mergeDifference(left, right);
+    }
+
+    @Override
+    public boolean isEmpty(String[] left) {
+        // the right operand of an intersection or difference with an empty left operand is never evaluated
+        return left.length == 0;
+    }
+
+    @Override
+    public String[] listName(ListName listName) {
+        final String name = listName.getName();
+        final String[] evaluated = evaluatedLists.get(name);
+        if (evaluated != null) {
+            return evaluated;
+        }
+        final EmailList definition = environment.get(name);
+        final String[] recipients = definition == null ? EMPTY : EmailListTraversal.fold(definition, this);
+        evaluatedLists.put(name, recipients);
+        return recipients;
+    }
+
+    /**
+     * @param a strictly increasing array
+     * @param b strictly increasing array
+     * @return strictly increasing array of the strings in a or b
+     */
+    static String[] merge(String[] a, String[] b) {
+        if (a.length == 0) {
+            return b;
+        }
+        if (b.length == 0) {
+            return a;
+        }
+        final String[] result = new String[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            final int comparison = a[i].compareTo(b[j]);
+            if (comparison <= 0) {
+                result[n++] = a[i++];
+                if (comparison == 0) {
+                    j++;
+                }
+            } else {
+                result[n++] = b[j++];
+            }
+        }
+        while (i < a.length) {
+            result[n++] = a[i++];
+        }
+        while (j < b.length) {
+            result[n++] = b[j++];
+        }
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    /**
+     * @param a strictly increasing array
+     * @param b strictly increasing array
+     * @return strictly increasing array of the strings in both a and b
+     */
+    static String[] mergeIntersection(String[] a, String[] b) {
+        if (a.length > b.length) {
+            return mergeIntersection(b, a);
+        }
+        final String[] result = new String[a.length];
+        int n = 0;
+        if ((long) a.length * GALLOP_RATIO < b.length) {
+            int from = 0;
+            for (String s : a) {
+                from = gallop(b, from, s);
+                if (from < b.length && b[from].equals(s)) {
+                    result[n++] = s;
+                    from++;
+                }
+            }
+        } else {
+            int i = 0, j = 0;
+            while (i < a.length && j < b.length) {
+                final int comparison = a[i].compareTo(b[j]);
+                if (comparison == 0) {
+                    result[n++] = a[i++];
+                    j++;
+                } else if (comparison < 0) {
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+        }
+        return n == 0 ? EMPTY : n == a.length ? a : Arrays.copyOf(result, n);
+    }
+
+    /**
+     * @param a strictly increasing array
+     * @param b strictly increasing array
+     * @return strictly increasing array of the strings in a but not in b
+     */
+    static String[] mergeDifference(String[] a, String[] b) {
+        if (b.length == 0) {
+            return a;
+        }
+        final String[] result = new String[a.length];
+        int n = 0;
+        final boolean galloping = (long) a.length * GALLOP_RATIO < b.length;
+        int j = 0;
+        for (String s : a) {
+            if (galloping) {
+                j = gallop(b, j, s);
+            } else {
+                while (j < b.length && b[j].compareTo(s) < 0) {
+                    j++;
+                }
+            }
+            if (j < b.length && b[j].equals(s)) {
+                j++;
+            } else {
+                result[n++] = s;
+            }
+        }
+        return n == 0 ? EMPTY : n == a.length ? a : Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Find where a string is, or would be inserted, in a sorted array, searching forward from an index.
+     *
+     * @param sorted strictly increasing array
+     * @param from index to start searching from, 0 <= from <= sorted.length
+     * @param key string to search for
+     * @return the least index i >= from such that i == sorted.length or sorted[i] >= key
+     */
+    private static int gallop(String[] sorted, int from, String key) {
+        int low = from;
+        int step = 1;
+        int high = from;
+        // exponential search for a bound, then binary search below it
+        while (high < sorted.length && sorted[high].compareTo(key) < 0) {
+            low = high + 1;
+            high = from + step;
+            step <<= 1;
+        }
+        high = Math.min(high, sorted.length);
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (sorted[middle].compareTo(key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
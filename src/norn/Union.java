@@ -1,7 +1,5 @@
 package norn;
 
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -10,12 +8,13 @@ import java.util.Set;
  */
 public class Union implements EmailList {
     private final EmailList left, right;
+    private final int hash;
     
     private static final int HASH_BASE = 17;
     // Abstraction function
-    //    AF(left, right) = the union of two email lists, left and right.
+    //    AF(left, right, hash) = the union of two email lists, left and right.
     // Rep invariant
-    //    true
+    //    hash == left.hashCode() + HASH_BASE * right.hashCode()
     // Safety from rep exposure
     //    all fields are private and final
     //    left and right are type EmailList so they are immutable as given in the Project Handout.
@@ -29,6 +28,7 @@ public class Union implements EmailList {
     public Union(EmailList left, EmailList right) {
         this.left = left;
         this.right = right;
+        this.hash = left.hashCode() + HASH_BASE * right.hashCode();
         checkRep();
     }
     
@@ -38,42 +38,63 @@ public class Union implements EmailList {
     private void checkRep(){
         assert left != null;
         assert right != null;
+        assert hash == left.hashCode() + HASH_BASE * right.hashCode();
     }
     
     @Override
     public String toString() {
         checkRep();
-        return "(" + this.left.toString() + ") , (" + this.right.toString() + ")";
+        return EmailListTraversal.print(this);
     }
 
     @Override
     public boolean equals(Object obj) {
         checkRep();
-        if (obj instanceof Union){
-            return this.left.equals(((Union) obj).left) && this.right.equals(((Union) obj).right);
+        if (this == obj) {
+            return true;
+        }
+        if (obj instanceof Union && this.hash == obj.hashCode()){
+            return EmailListTraversal.equal(this, (Union) obj);
         }
         return false;
     }
     
     @Override 
     public int hashCode() {
-        checkRep();
-        return this.left.hashCode() + HASH_BASE * this.right.hashCode();
+        return this.hash;
     }
     
     @Override
-    public Set<String> recipients(Map<String, EmailList> environment) {
-        final Set<String> set = new HashSet<>();
-        set.addAll(this.left.recipients(environment));
-        set.addAll(this.right.recipients(environment));
-        return Collections.unmodifiableSet(set);
+    public RecipientSet recipientSet(Map<String, EmailList> environment) {
+        return EmailListTraversal.recipientSet(this, environment);
     }
 
     @Override
     public Set<String> getReferencedLists(Map<String, EmailList> environment) {
-        Set<String> result = new HashSet<>();
-        result.addAll(this.left.getReferencedLists(environment));
-        result.addAll(this.right.getReferencedLists(environment));
-        return result;
+        return EmailListTraversal.referencedLists(this, environment);
+    }
+
+    @Override
+    public Set<String> getDirectlyReferencedLists() {
+        return EmailListTraversal.directlyReferencedLists(this);
+    }
+
+    /**
+     * @return the left email list of the union
+     */
+    public EmailList getLeft() {
+        return this.left;
+    }
+
+    /**
+     * @return the right email list of the union
+     */
+    public EmailList getRight() {
+        return this.right;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+        return visitor.on(this);
     }
 }
@@ -0,0 +1,329 @@
+package norn;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Durable log of the assignments committed to an environment.
+ *
+ * A data directory holds a snapshot of the environment (see EmailListSnapshot) and a log of the
+ * assignments committed since the snapshot was taken. Each commit appends one record to the log,
+ * so durability costs a sequential append rather than rewriting the whole environment:
+ * <pre>
+ *   record ::= length:int crc32:int payload     -- payload is an EmailListSnapshot of the assignments
+ * </pre>
+ * Appends are group committed: records appended while a flush is in progress are written and
+ * forced to disk together by the next flush, so concurrent commits share one fsync.
+ * When the log grows past a threshold it is compacted, by writing a new snapshot of the whole
+ * environment and emptying the log. If a flush fails, none of the records appended since the last
+ * successful flush can be made durable, since the log may now end in a torn record: waiting for any
+ * of them fails with the same error until a compaction rewrites the whole environment.
+ *
+ * On recovery the snapshot is read and the log replayed over it. A torn record at the end of the log,
+ * left by a crash part way through an append, is discarded and truncated away.
+ */
+class WriteAheadLog {
+    /** size of the log, in bytes, past which it is compacted by default */
+    static final long DEFAULT_COMPACTION_THRESHOLD = 8 << 20;
+
+    private static final String SNAPSHOT_FILE = "environment.snapshot";
+    private static final String LOG_FILE = "environment.log";
+    private static final int RECORD_HEADER_BYTES = 8;
+
+    private final Path directory;
+    private final FileChannel channel;
+    private final long compactionThreshold;
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appended = 0;
+    private long durable = 0;
+    private boolean flushing = false;
+    private IOException failure = null;
+    private long size;
+
+    // Abstraction function
+    //    AF(directory, channel, pending, appended, durable, size) = the log of the environment stored in
+    //        directory, whose first `durable` appended records are on disk in channel, and whose records
+    //        appended - durable records after that are encoded in pending (or being written by a flush),
+    //        and can't be made durable by a flush if failure is not null
+    // Rep invariant
+    //    0 <= durable <= appended
+    //    size >= 0 is the length of the log file plus pending
+    // Safety from rep exposure
+    //    all fields are private; pending is never returned
+    // Thread safety argument
+    //    all fields are guarded by this object's lock, except during a flush, which writes a buffer it
+    //    has taken out of pending while holding the lock and is the only writer to channel while
+    //    flushing is true; compaction waits for any flush to finish before touching channel.
+
+    /**
+     * Open the log in a directory for appending.
+     *
+     * @param directory data directory holding the log
+     * @param compactionThreshold size of the log in bytes past which needsCompaction() is true
+     * @throws IOException if the log can't be opened
+     */
+    private WriteAheadLog(Path directory, long compactionThreshold) throws IOException {
+        this.directory = directory;
+        this.channel = FileChannel.open(directory.resolve(LOG_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.compactionThreshold = compactionThreshold;
+        this.size = channel.size();
+        checkRep();
+    }
+
+    private synchronized void checkRep() {
+        assert 0 <= durable && durable <= appended;
+        assert size >= 0;
+    }
+
+    /**
+     * Recover the environment stored in a data directory, and open its log for appending.
+     *
+     * @param directory data directory, created if it does not exist
+     * @param compactionThreshold size of the log in bytes past which needsCompaction() is true
+     * @param recovered modified by assigning every list in the snapshot in directory, then every
+     *                  assignment in its log, in the order they were committed
+     * @return the log of directory, with any torn record at its end removed
+     * @throws IOException if the directory can't be read, or its snapshot is corrupt
+     */
+    static WriteAheadLog recover(Path directory, long compactionThreshold, Map<String, EmailList> recovered) throws IOException {
+        Files.createDirectories(directory);
+        final Path snapshotFile = directory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshotFile)) {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(snapshotFile))) {
+                recovered.putAll(EmailListSnapshot.read(in));
+            }
+        }
+        final Path logFile = directory.resolve(LOG_FILE);
+        if (Files.exists(logFile)) {
+            final long valid = replay(logFile, recovered);
+            if (valid < Files.size(logFile)) {
+                try (FileChannel log = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+                    log.truncate(valid);
+                    log.force(true);
+                }
+            }
+        }
+        return new WriteAheadLog(directory, compactionThreshold);
+    }
+
+    /**
+     * Apply the records of a log, up to its end or its first torn or corrupt record.
+     *
+     * @param logFile the log to read
+     * @param recovered modified by the assignments of every complete record, in order
+     * @return the length of the prefix of logFile made of complete records
+     * @throws IOException if logFile can't be read
+     */
+    private static long replay(Path logFile, Map<String, EmailList> recovered) throws IOException {
+        final long fileSize = Files.size(logFile);
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile)))) {
+            while (true) {
+                final byte[] payload;
+                final int checksum;
+                try {
+                    final int length = in.readInt();
+                    checksum = in.readInt();
+                    if (length < 0 || length > fileSize - valid - RECORD_HEADER_BYTES) {
+                        return valid;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    return valid;
+                }
+                if (checksum != checksum(payload)) {
+                    return valid;
+                }
+                try {
+                    recovered.putAll(EmailListSnapshot.read(new ByteArrayInputStream(payload)));
+                } catch (IOException e) {
+                    return valid;
+                }
+                valid += RECORD_HEADER_BYTES + payload.length;
+            }
+        }
+    }
+
+    /**
+     * Append a record of committed assignments to the log. The record is not durable until
+     * awaitDurable is called with the returned sequence number.
+     *
+     * @param assignments map of list names to the email lists committed to them
+     * @return sequence number of the record
+     */
+    synchronized long append(Map<String, EmailList> assignments) {
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        try {
+            EmailListSnapshot.write(payload, assignments);
+            final DataOutputStream record = new DataOutputStream(pending);
+            record.writeInt(payload.size());
+            record.writeInt(checksum(payload.toByteArray()));
+            payload.writeTo(record);
+        } catch (IOException e) {
+            throw new AssertionError("writing to memory can't fail", e);
+        }
+        size += RECORD_HEADER_BYTES + payload.size();
+        appended++;
+        checkRep();
+        return appended;
+    }
+
+    /**
+     * Wait until a record appended to the log is on disk. If no flush is in progress, the caller
+     * flushes every record appended so far; otherwise it waits for the flush in progress, and for
+     * the next one if that did not include its record.
+     *
+     * @param sequence sequence number of the record, as returned by append
+     * @throws UncheckedIOException if the log can't be written, by this flush or by an earlier one since
+     *                              the last compaction; the record is not durable
+     */
+    void awaitDurable(long sequence) {
+        final ByteArrayOutputStream batch;
+        final long batchEnd;
+        synchronized (this) {
+            while (flushing && durable < sequence) {
+                waitForFlush();
+            }
+            if (durable >= sequence) {
+                return;
+            }
+            if (failure != null) {
+                throw new UncheckedIOException("the log failed to write an earlier record", failure);
+            }
+            flushing = true;
+            batch = pending;
+            batchEnd = appended;
+            pending = new ByteArrayOutputStream();
+        }
+        IOException failed = null;
+        boolean written = false;
+        try {
+            write(batch);
+            written = true;
+        } catch (IOException e) {
+            failed = e;
+        } finally {
+            synchronized (this) {
+                flushing = false;
+                if (written) {
+                    durable = Math.max(durable, batchEnd);
+                } else if (failure == null) {
+                    // the records of batch, and every record after them, can't be made durable
+                    failure = failed != null ? failed : new IOException("flush of the log did not finish");
+                }
+                checkRep();
+                notifyAll();
+            }
+        }
+        if (failed != null) {
+            throw new UncheckedIOException(failed);
+        }
+    }
+
+    /**
+     * @return true iff the log has grown past its compaction threshold
+     */
+    synchronized boolean needsCompaction() {
+        return size > compactionThreshold;
+    }
+
+    /**
+     * Replace the snapshot with a snapshot of an environment, and empty the log.
+     *
+     * Every record appended so far becomes durable, including those of a failed flush.
+     *
+     * @param environment called while holding the lock on this log, once no flush is in progress;
+     *                    returns every list name in the environment mapped to its email list, including
+     *                    every assignment appended to the log. Commits must hold the lock on this log
+     *                    while they append, so that none is made between the call and the end of compaction.
+     * @throws UncheckedIOException if the snapshot or log can't be written
+     */
+    synchronized void compact(Supplier<Map<String, EmailList>> environment) {
+        while (flushing) {
+            waitForFlush();
+        }
+        try {
+            final Path snapshotFile = directory.resolve(SNAPSHOT_FILE);
+            final Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(temporary.toFile())) {
+                EmailListSnapshot.write(out, environment.get());
+                out.getFD().sync();
+            }
+            Files.move(temporary, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel.truncate(0);
+            channel.force(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        pending = new ByteArrayOutputStream();
+        durable = appended;
+        failure = null;
+        size = 0;
+        checkRep();
+    }
+
+    /**
+     * Close the log. Records appended but not yet durable are lost.
+     *
+     * @throws IOException if the log can't be closed
+     */
+    synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Write a batch of records to the end of the log and force them to disk.
+     *
+     * @param batch encoded records to write
+     * @throws IOException if the log can't be written
+     */
+    private void write(ByteArrayOutputStream batch) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Wait for a notification that a flush has finished. Requires holding this object's lock.
+     */
+    private void waitForFlush() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("interrupted waiting for the log"));
+        }
+    }
+
+    /**
+     * @param payload bytes of a record
+     * @return the CRC-32 of payload, as an int
+     */
+    private static int checksum(byte[] payload) {
+        final CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+}
@@ -456,4 +456,32 @@ public class EmailListEvaluateSequenceTest {
         EmailList exp1 = EmailList.evaluate(
                 "a=b;b=c;c=a", environment);   
     }
+    
+    @Test(expected=IllegalArgumentException.class)
+    //covers #expression in sequence > 2, loop closed through a list defined in an earlier sequence
+    public void testEvaluateSequenceLoopThroughEarlierDefinitionDisallowed(){
+        Map<String, EmailList> environment = new HashMap<>();
+        EmailList.evaluate("a=b,c;b=d;d=e", environment);
+        EmailList.evaluate("e=x@mit.edu;c=a", environment);
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    //covers nested assignment, list assigned to itself
+    public void testEvaluateSequenceNestedSelfLoopDisallowed(){
+        Map<String, EmailList> environment = new HashMap<>();
+        EmailList.evaluate("a=(b=a)", environment);
+    }
+    
+    //covers reassignment of a list, lists referring to it see the new value
+    @Test
+    public void testEvaluateSequenceReassignmentUpdatesDependents(){
+        Map<String, EmailList> environment = new HashMap<>();
+        EmailList.evaluate("a=bob@mit.edu;b=a,carl@mit.edu;c=b", environment);
+        assertEquals("expected first value", 2, EmailList.evaluate("c", environment).recipients(environment).size());
+        EmailList exp1 = EmailList.evaluate("a=george@mit.edu;c", environment);
+        Set<String> expected = new HashSet<>();
+        expected.add("george@mit.edu");
+        expected.add("carl@mit.edu");
+        assertEquals("expected reassigned value", expected, exp1.recipients(environment));
+    }
 }
\ No newline at end of file
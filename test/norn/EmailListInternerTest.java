@@ -0,0 +1,65 @@
+package norn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for interning of email lists by the EmailList factories.
+ */
+public class EmailListInternerTest {
+
+    /*
+     * Testing strategy for EmailListInterner.intern(), through the EmailList factories
+     *
+     * Partition the inputs as follows:
+     *     variant: empty, single, listname, union, intersection, difference
+     *     made by: factories, parser, constructors
+     *     case: same case, differing case
+     */
+
+    // covers all variants, made by factories, same case
+    @Test
+    public void testFactoriesShareEqualLists() {
+        final EmailList left = EmailList.union(EmailList.single("a@b"), EmailList.listName("x"));
+        final EmailList right = EmailList.difference(EmailList.empty(), EmailList.single("c@d"));
+        assertSame("expected one union",
+                EmailList.union(EmailList.single("a@b"), EmailList.listName("x")), left);
+        assertSame("expected one intersection",
+                EmailList.intersection(left, right),
+                EmailList.intersection(EmailList.union(EmailList.single("a@b"), EmailList.listName("x")), right));
+        assertSame("expected one empty", EmailList.empty(), EmailList.empty());
+        assertNotEquals("expected different operators distinct",
+                EmailList.union(left, right), EmailList.intersection(left, right));
+    }
+
+    // covers single and listname, differing case
+    @Test
+    public void testFactoriesShareDifferingCase() {
+        assertSame("expected one single", EmailList.single("Bob@MIT.edu"), EmailList.single("bob@mit.edu"));
+        assertSame("expected one listname", EmailList.listName("Staff"), EmailList.listName("staff"));
+    }
+
+    // covers made by parser, union and listname
+    @Test
+    public void testParsedListsShareSubexpressions() {
+        final Map<String, EmailList> environment = new HashMap<>();
+        EmailList.evaluate("a = (x@y, z@w) ! c; b = (x@y, z@w) * d", environment);
+        assertSame("expected shared subexpression",
+                ((Difference) environment.get("a")).getLeft(), ((Intersection) environment.get("b")).getLeft());
+    }
+
+    // covers made by constructors
+    @Test
+    public void testConstructedListsEqualInterned() {
+        final EmailList constructed = new Union(new Single("a@b"), new Empty());
+        final EmailList interned = EmailList.union(EmailList.single("a@b"), EmailList.empty());
+        assertEquals("expected structural equality", interned, constructed);
+        assertEquals("expected equal hash codes", interned.hashCode(), constructed.hashCode());
+    }
+}
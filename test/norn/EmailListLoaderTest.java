@@ -0,0 +1,131 @@
+package norn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for EmailListLoader.
+ */
+public class EmailListLoaderTest {
+
+    /*
+     * Testing strategy for EmailListLoader.load()
+     *
+     * Partition the inputs as follows:
+     *     statement separators: ';', line breaks, both, inside parentheses
+     *     # statements: 0, 1, >1
+     *     validity: all valid, invalid statement, recursive definition across statements
+     *     environment: map, Environment
+     *     concurrent commit to an Environment during the load: none, of a list read by the load,
+     *                                                          of a list not read by the load
+     */
+
+    // covers separators ';' and line breaks, # statements >1, all valid, map
+    @Test
+    public void testLoadSavedFormatAndLines() throws IOException {
+        final Map<String, EmailList> environment = new HashMap<>();
+        final int statements = EmailListLoader.load(
+                new StringReader("a=bob@mit.edu;b=(a) , (carl@mit.edu);\r\nc = b ! a\n\n"), environment);
+        assertEquals("expected 3 statements", 3, statements);
+        assertEquals("expected c evaluated", EmailList.evaluate("carl@mit.edu", environment).recipients(environment),
+                EmailList.evaluate("c", environment).recipients(environment));
+    }
+
+    // covers separators inside parentheses, # statements 1, Environment
+    @Test
+    public void testLoadSequenceInsideParentheses() throws IOException {
+        final Environment environment = new Environment();
+        EmailListLoader.load(new StringReader("a = (b = x@y;\n b, z@w)"), environment);
+        assertEquals("expected b assigned", EmailList.single("x@y"), environment.get("b"));
+        assertEquals("expected a assigned", 2, environment.get("a").recipients(environment).size());
+    }
+
+    // covers # statements 0
+    @Test
+    public void testLoadEmpty() throws IOException {
+        final Environment environment = new Environment();
+        assertEquals("expected no statements", 0, EmailListLoader.load(new StringReader(";\n ;"), environment));
+        assertTrue("expected environment unchanged", environment.isEmpty());
+    }
+
+    // covers invalid statement, Environment
+    @Test
+    public void testLoadInvalidStatementLoadsNothing() throws IOException {
+        final Environment environment = new Environment();
+        try {
+            EmailListLoader.load(new StringReader("a=bob@mit.edu\nb=a @ c\n"), environment);
+            assertTrue("expected invalid statement to be rejected", false);
+        } catch (IllegalArgumentException e) {
+            assertTrue("expected statement number in " + e.getMessage(), e.getMessage().startsWith("statement 2"));
+            assertTrue("expected environment unchanged", environment.isEmpty());
+        }
+    }
+
+    // covers recursive definition across statements, map
+    @Test
+    public void testLoadRecursiveDefinitionLoadsNothing() throws IOException {
+        final Map<String, EmailList> environment = new HashMap<>();
+        environment.put("c", EmailList.single("carl@mit.edu"));
+        try {
+            EmailListLoader.load(new StringReader("a=b;b=c;c=a"), environment);
+            assertTrue("expected recursive definition to be rejected", false);
+        } catch (IllegalArgumentException e) {
+            assertEquals("expected environment unchanged", 1, environment.size());
+            assertEquals("expected c unchanged", EmailList.single("carl@mit.edu"), environment.get("c"));
+        }
+    }
+
+    /**
+     * @return a reader of text that evaluates statement in environment when it reaches the end of text,
+     *         as another transaction would while a load is evaluating text
+     */
+    private static Reader concurrently(String text, String statement, Environment environment) {
+        return new StringReader(text) {
+            private boolean committed = false;
+
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                final int n = super.read(buffer, offset, length);
+                if (n == -1 && !committed) {
+                    committed = true;
+                    EmailList.evaluate(statement, environment);
+                }
+                return n;
+            }
+        };
+    }
+
+    // covers concurrent commit of a list read by the load
+    @Test
+    public void testLoadConcurrentChangeToReadListLoadsNothing() throws IOException {
+        final Environment environment = new Environment();
+        try {
+            EmailListLoader.load(concurrently("a = b, a@x", "b = b@x", environment), environment);
+            assertTrue("expected stale load to be rejected", false);
+        } catch (ConcurrentModificationException e) {
+            assertTrue("expected changed list in " + e.getMessage(), e.getMessage().contains("b"));
+        }
+        assertEquals("expected a not assigned", null, environment.get("a"));
+        assertEquals("expected concurrent b kept", EmailList.single("b@x"), environment.get("b"));
+    }
+
+    // covers concurrent commit of a list not read by the load
+    @Test
+    public void testLoadConcurrentChangeToOtherListCommits() throws IOException {
+        final Environment environment = new Environment();
+        EmailList.evaluate("b = b@x", environment);
+        assertEquals("expected 1 statement", 1,
+                EmailListLoader.load(concurrently("a = b, a@x", "c = c@x", environment), environment));
+        assertEquals("expected a assigned", 2, environment.get("a").recipients(environment).size());
+        assertEquals("expected concurrent c kept", EmailList.single("c@x"), environment.get("c"));
+    }
+}
@@ -0,0 +1,117 @@
+package norn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for EmailListOptimizer.
+ */
+public class EmailListOptimizerTest {
+
+    /*
+     * Testing strategy for EmailListOptimizer.optimize()
+     *
+     * Partition the inputs as follows:
+     *     operation: none, union chain, intersection chain, difference, nested mix
+     *     empty operands: none, in union, in intersection, left or right of difference
+     *     repeated operands: none, repeated in chain, x ! x
+     *     operand sizes: equal, different (reordering)
+     *     recipients of named operands: cached, not cached (must not be evaluated to estimate sizes)
+     * Every optimized list must have the same recipients as the original.
+     */
+
+    /**
+     * Assert that optimizing an expression gives an expected email list with the same recipients.
+     * @param input expression to optimize
+     * @param expected expression of the expected optimized email list
+     * @param environment the environment to evaluate in, modified by assignments in input
+     */
+    private static void assertOptimizes(String input, String expected, Map<String, EmailList> environment) {
+        final EmailList emailList = EmailList.evaluate(input, environment);
+        final EmailList optimized = EmailListOptimizer.optimize(emailList, environment);
+        assertEquals("expected optimized " + input, EmailList.evaluate(expected, environment), optimized);
+        assertEquals("expected same recipients for " + input,
+                emailList.recipients(environment), optimized.recipients(environment));
+    }
+
+    // covers operation none, union chain with empty and repeated operands
+    @Test
+    public void testUnionFlattenedAndBalanced() {
+        final Map<String, EmailList> environment = new HashMap<>();
+        assertOptimizes("a@x", "a@x", environment);
+        final EmailList optimized = EmailListOptimizer.optimize(
+                EmailList.evaluate("a@x, , b@x, a@x, c@x, d@x", environment), environment);
+        assertEquals("expected same union of operands in any order", EmailListOptimizer.optimize(
+                EmailList.evaluate("d@x, (c@x, b@x), a@x", environment), environment), optimized);
+        assertEquals("expected balanced tree", "((a@x) , (b@x)) , ((c@x) , (d@x))".length(), optimized.toString().length());
+        assertOptimizes("(), ()", "", environment);
+    }
+
+    // covers intersection chain with empty operand, different operand sizes
+    @Test
+    public void testIntersectionReorderedSmallestFirst() {
+        final Map<String, EmailList> environment = new HashMap<>();
+        EmailList.evaluate("big = a@x, b@x, c@x; small = b@x", environment);
+        assertOptimizes("big * small * big", "small * big", environment);
+        assertOptimizes("big * () * small", "", environment);
+    }
+
+    // covers intersection chain with empty operand, different operand sizes, not cached, cached
+    @Test
+    public void testUncachedListsNotEvaluated() {
+        final Map<String, EmailList> environment = new HashMap<>();
+        EmailList.evaluate("big = a@x, b@x, c@x; small = big * b@x; huge = big, small, d@x", environment);
+        final RecipientCache cache = EnvironmentState.of(environment).recipientCache();
+        assertEquals(EmailList.empty(), EmailListOptimizer.optimize(EmailList.evaluate("big * ()", environment), environment));
+        assertEquals(EmailList.evaluate("big * huge", environment),
+                EmailListOptimizer.optimize(EmailList.evaluate("huge * big", environment), environment));
+        for (String listName : new String[] { "big", "small", "huge" }) {
+            assertFalse("expected " + listName + " not evaluated", cache.cached(listName, environment).isPresent());
+        }
+
+        cache.recipients("small", environment);
+        assertTrue(cache.cached("small", environment).isPresent());
+        assertOptimizes("big * huge * small", "small * big * huge", environment);
+    }
+
+    // covers difference with empty operands, x ! x, pushed down into an intersection
+    @Test
+    public void testDifferenceRewrites() {
+        final Map<String, EmailList> environment = new HashMap<>();
+        EmailList.evaluate("big = a@x, b@x, c@x; small = b@x, c@x", environment);
+        assertOptimizes("big ! ()", "big", environment);
+        assertOptimizes("() ! big", "", environment);
+        assertOptimizes("(big, small) ! (small, big)", "", environment);
+        assertOptimizes("(big * small) ! c@x", "(small ! c@x) * big", environment);
+    }
+
+    // covers nested mix, compared on recipients only
+    @Test
+    public void testRandomExpressionsKeepRecipients() {
+        final Random random = new Random(6031);
+        final Map<String, EmailList> environment = new HashMap<>();
+        EmailList.evaluate("p = a@x, b@x, c@x, d@x; q = c@x, d@x, e@x; r = ", environment);
+        final String[] leaves = { "p", "q", "r", "a@x", "e@x", "()" };
+        final String[] operators = { ",", "*", "!" };
+        for (int trial = 0; trial < 500; trial++) {
+            String expression = leaves[random.nextInt(leaves.length)];
+            for (int i = random.nextInt(8); i > 0; i--) {
+                final String operand = leaves[random.nextInt(leaves.length)];
+                final String operator = operators[random.nextInt(operators.length)];
+                expression = random.nextBoolean()
+                        ? "(" + expression + ")" + operator + operand
+                        : operand + operator + "(" + expression + ")";
+            }
+            final EmailList emailList = EmailList.evaluate(expression, environment);
+            assertEquals("expected same recipients for " + expression, emailList.recipients(environment),
+                    EmailListOptimizer.optimize(emailList, environment).recipients(environment));
+        }
+    }
+}
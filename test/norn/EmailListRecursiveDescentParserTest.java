@@ -0,0 +1,105 @@
+package norn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import lib6005.parser.UnableToParseException;
+
+/**
+ * Tests that EmailListRecursiveDescentParser agrees with EmailListParser.
+ */
+public class EmailListRecursiveDescentParserTest {
+
+    /*
+     * Testing strategy for EmailListRecursiveDescentParser.parse()
+     *
+     * Partition the inputs as follows:
+     *     input: valid, invalid syntax, valid syntax with recursive definition
+     *     operators: none, union, difference, intersection, mixed
+     *     primitives: email, listname, parenthesized sequence, assignment, empty
+     *     whitespace: none, around operators, inside email
+     *     environment: empty, defines lists in the expression
+     * Each valid input is compared with EmailListParser, on both the result and the environment.
+     */
+
+    /**
+     * Assert that both parsers produce equal email lists and environments for an input.
+     * @param input expression to parse
+     * @param initial environment to start both parsers from, not modified
+     */
+    private static void assertSameAsParserLib(String input, Map<String, EmailList> initial) throws UnableToParseException {
+        final Map<String, EmailList> expectedEnvironment = new HashMap<>(initial);
+        final EmailList expected = EmailListParser.parse(input, expectedEnvironment);
+        final Map<String, EmailList> actualEnvironment = new HashMap<>(initial);
+        final EmailList actual = EmailListRecursiveDescentParser.parse(input, actualEnvironment);
+        assertEquals("expected same email list for " + input, expected, actual);
+        assertEquals("expected same environment for " + input, expectedEnvironment, actualEnvironment);
+    }
+
+    // covers valid, operators none, primitives email and empty, whitespace none, environment empty
+    @Test
+    public void testParseEmailAndEmpty() throws UnableToParseException {
+        assertSameAsParserLib("Bob+Tag@MIT.edu", new HashMap<>());
+        assertSameAsParserLib("", new HashMap<>());
+        assertSameAsParserLib("()", new HashMap<>());
+    }
+
+    // covers valid, operators mixed, primitives email and listname, whitespace around operators
+    @Test
+    public void testParseMixedOperatorsPrecedence() throws UnableToParseException {
+        assertSameAsParserLib(" a@b , c ! d@e * (f , g@h) ! i ", new HashMap<>());
+    }
+
+    // covers valid, primitives assignment and parenthesized sequence, environment defines lists
+    @Test
+    public void testParseAssignmentsExtendingLists() throws UnableToParseException {
+        final Map<String, EmailList> initial = new HashMap<>();
+        initial.put("a", EmailList.single("x@y"));
+        assertSameAsParserLib("a = a, b@c; B = (c = a ! d@e; c), a; ", initial);
+        assertSameAsParserLib("a = b = c@d, e", initial);
+    }
+
+    // covers invalid, whitespace inside email
+    @Test
+    public void testParseInvalidLeavesEnvironment() {
+        final Map<String, EmailList> environment = new HashMap<>();
+        try {
+            EmailListRecursiveDescentParser.parse("a = b@c; d; e @f", environment);
+            assertTrue("expected syntax error", false);
+        } catch (UnableToParseException e) {
+            assertTrue("expected error position in " + e.getMessage(), e.getMessage().contains("column 15"));
+            assertTrue("expected environment unchanged", environment.isEmpty());
+        }
+    }
+
+    // covers invalid, whitespace inside email, through EmailList.evaluate
+    @Test
+    public void testEvaluateInvalidKeepsErrorPosition() {
+        final Map<String, EmailList> environment = new HashMap<>();
+        try {
+            EmailList.evaluate("a = b@c; d; e @f", environment, EmailList.ParserEngine.RECURSIVE_DESCENT);
+            assertTrue("expected syntax error", false);
+        } catch (IllegalArgumentException e) {
+            assertTrue("expected error position in " + e.getMessage(), e.getMessage().contains("column 15"));
+            assertTrue("expected parse exception as cause", e.getCause() instanceof UnableToParseException);
+        }
+    }
+
+    // covers valid syntax with recursive definition
+    @Test
+    public void testParseRecursiveDefinitionKeepsEarlierAssignments() throws UnableToParseException {
+        final Map<String, EmailList> environment = new HashMap<>();
+        try {
+            EmailListRecursiveDescentParser.parse("a = b; b = a", environment);
+            assertTrue("expected recursive definition to be rejected", false);
+        } catch (IllegalArgumentException e) {
+            assertEquals("expected a assigned", EmailList.listName("b"), environment.get("a"));
+            assertEquals("expected b still empty", EmailList.empty(), environment.get("b"));
+        }
+    }
+}
@@ -11,10 +11,13 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.Test;
 
@@ -28,6 +31,13 @@ public class EmailListServerTest {
      * # of expression in sequence: 0, 1, >1
      * # of elements in initial environment: 0, 1, >1
      * changes environment: yes, no
+     * executor mode: fixed, work stealing, virtual
+     * environment: map, Environment
+     * /contains/: address in list, not in list, no address
+     * /lists/: address on some lists, on no list
+     * response encoding: identity, gzip
+     * response format: HTML, JSON by query, CSV by Accept header, unknown
+     * /metrics: after requests to other contexts
      */
     
     @Test(expected=AssertionError.class)
@@ -40,6 +50,8 @@ public class EmailListServerTest {
     // # of expressions in sequence: 1
     // # of elements in initial environment: 0
     // changes environment: no
+    // executor mode: fixed
+    // environment: map
     public void testServerSingleEmail() throws IOException {
         final EmailWebServer server = new EmailWebServer();
         server.startWebServer(Collections.emptyMap());
@@ -126,5 +138,179 @@ public class EmailListServerTest {
         assertTrue("environment is correct", environment.get("d").toString().equals("((a) , (b)) , (c)"));
     }
     
+    @Test
+    // # of emails displayed: 1
+    // # of expressions in sequence: >1
+    // # of elements in initial environment: 0
+    // changes environment: yes
+    // executor mode: work stealing, virtual
+    // environment: Environment
+    public void testServerExecutorModesWithEnvironment() throws IOException {
+        for (EmailWebServer.ExecutorMode mode : new EmailWebServer.ExecutorMode[] {
+                EmailWebServer.ExecutorMode.WORK_STEALING, EmailWebServer.ExecutorMode.VIRTUAL }) {
+            final EmailWebServer server = new EmailWebServer(mode, 2, 16);
+            final Environment environment = new Environment();
+            server.startWebServer(environment);
+
+            final String valid = "http://localhost:" + server.SERVER_PORT + "/eval/a=a@test;a";
+            final URL url = new URL(valid);
+
+            final InputStream input = url.openStream();
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+            String line = reader.readLine();
+            assertEquals("correct emails", "<a href=\"mailto:a@test\">email these recipients</a><br>a@test", line);
+            server.stop();
+            assertEquals("environment is correct", EmailList.single("a@test"), environment.get("a"));
+        }
+    }
+    
+    @Test
+    // /contains/: address in list, not in list, no address
+    // # of elements in initial environment: >1
+    // environment: map
+    public void testServerContains() throws IOException {
+        final EmailWebServer server = new EmailWebServer();
+        Map<String, EmailList> environment = new HashMap<>();
+        environment.put("a", EmailList.evaluate("a@test, b@test, c@test", environment));
+        environment.put("b", EmailList.single("b@test"));
+        server.startWebServer(environment);
+        try {
+            final String base = "http://localhost:" + server.SERVER_PORT + "/contains/";
+            final BufferedReader inList = new BufferedReader(new InputStreamReader(new URL(base + "C@test/a!b").openStream()));
+            assertEquals("member", "true", inList.readLine());
+            final BufferedReader notInList = new BufferedReader(new InputStreamReader(new URL(base + "b@test/a!b").openStream()));
+            assertEquals("not a member", "false", notInList.readLine());
+            try {
+                new URL(base + "a").openStream();
+                assertTrue("expected error for missing address", false);
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            server.stop();
+        }
+    }
+    
+    @Test
+    // /lists/: address on some lists, on no list
+    // environment: Environment
+    public void testServerLists() throws IOException {
+        final EmailWebServer server = new EmailWebServer();
+        final Environment environment = new Environment();
+        EmailList.evaluate("b = x@test; a = b, y@test; c = a ! x@test", environment);
+        server.startWebServer(environment);
+        try {
+            final String base = "http://localhost:" + server.SERVER_PORT + "/lists/";
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(new URL(base + "x@test").openStream()));
+            assertEquals("lists containing x@test", "a,b", reader.readLine());
+            try {
+                new URL(base + "z@test").openStream();
+                assertTrue("expected error for address on no list", false);
+            } catch (FileNotFoundException e) {
+                // expected
+            }
+        } finally {
+            server.stop();
+        }
+    }
+    
+    @Test
+    // /metrics: after requests to other contexts
+    // environment: Environment
+    public void testServerMetrics() throws IOException {
+        final EmailWebServer server = new EmailWebServer();
+        final Environment environment = new Environment();
+        EmailList.evaluate("b = x@test, y@test; a = b, z@test; c = w@test", environment);
+        server.startWebServer(environment);
+        try {
+            final String base = "http://localhost:" + server.SERVER_PORT;
+            new URL(base + "/eval/a").openStream().close();
+            // c has not been evaluated, and is not evaluated by /metrics
+            final HttpURLConnection connection = (HttpURLConnection) new URL(base + "/metrics").openConnection();
+            assertEquals("status", 200, connection.getResponseCode());
+            assertTrue("content type", connection.getContentType().startsWith("text/plain; version=0.0.4"));
+            final BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+            final Map<String, String> samples = new HashMap<>();
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (!line.startsWith("#")) {
+                    samples.put(line.substring(0, line.lastIndexOf(' ')), line.substring(line.lastIndexOf(' ') + 1));
+                }
+            }
+            assertEquals("lists", "3", samples.get("norn_lists"));
+            assertTrue("c not evaluated", !EnvironmentState.of(environment).recipientCache().cached("c", environment).isPresent());
+            assertEquals("distinct addresses", "3", samples.get("norn_distinct_addresses"));
+            assertEquals("largest list", "3", samples.get("norn_largest_list_recipients"));
+            assertTrue("eval request counted",
+                    Long.parseLong(samples.get("norn_requests_total{context=\"/eval/\",status=\"200\"}")) >= 1);
+            assertTrue("evaluation timed",
+                    Long.parseLong(samples.get("norn_stage_seconds_count{stage=\"evaluate\"}")) >= 1);
+            assertTrue("parse timed", samples.containsKey("norn_stage_seconds{stage=\"parse\",quantile=\"0.99\"}"));
+        } finally {
+            server.stop();
+        }
+    }
+    
+    @Test
+    // # of emails displayed: >1
+    // response encoding: identity, gzip
+    // environment: Environment
+    public void testServerGzipResponse() throws IOException {
+        final EmailWebServer server = new EmailWebServer();
+        final Environment environment = new Environment();
+        final StringBuilder expression = new StringBuilder("big = user0@test");
+        for (int i = 1; i < 5000; i++) {
+            expression.append(", user").append(i).append("@test");
+        }
+        EmailList.evaluate(expression.toString(), environment);
+        server.startWebServer(environment);
+        try {
+            final URL url = new URL("http://localhost:" + server.SERVER_PORT + "/eval/big");
+            final HttpURLConnection plain = (HttpURLConnection) url.openConnection();
+            final String expected = new BufferedReader(new InputStreamReader(plain.getInputStream())).readLine();
+            assertEquals("expected no encoding", null, plain.getHeaderField("Content-Encoding"));
+            assertTrue("expected every address", expected.contains("user4999@test") && expected.startsWith("<a href=\"mailto:"));
+
+            final HttpURLConnection compressed = (HttpURLConnection) url.openConnection();
+            compressed.setRequestProperty("Accept-Encoding", "gzip");
+            assertEquals("expected gzip encoding", "gzip", compressed.getHeaderField("Content-Encoding"));
+            final String line = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(compressed.getInputStream()), StandardCharsets.UTF_8)).readLine();
+            assertEquals("expected same body", expected, line);
+        } finally {
+            server.stop();
+        }
+    }
+    
+    @Test
+    // # of emails displayed: 0, >1
+    // response format: JSON by query, CSV by Accept header, unknown
+    // environment: map
+    public void testServerFormats() throws IOException {
+        final EmailWebServer server = new EmailWebServer();
+        final Map<String, EmailList> environment = new HashMap<>();
+        environment.put("a", EmailList.single("a@test"));
+        server.startWebServer(environment);
+        try {
+            final String base = "http://localhost:" + server.SERVER_PORT + "/eval/";
+            final HttpURLConnection json = (HttpURLConnection) new URL(base + "a?format=json").openConnection();
+            assertEquals("[\"a@test\"]", new BufferedReader(new InputStreamReader(json.getInputStream())).readLine());
+            assertTrue("expected JSON content type", json.getContentType().startsWith("application/json"));
+
+            final HttpURLConnection empty = (HttpURLConnection) new URL(base + "a!a@test?format=json").openConnection();
+            assertEquals("expected empty array", "[]", new BufferedReader(new InputStreamReader(empty.getInputStream())).readLine());
 
+            final HttpURLConnection csv = (HttpURLConnection) new URL(base + "a").openConnection();
+            csv.setRequestProperty("Accept", "text/csv");
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(csv.getInputStream()));
+            assertEquals("address", reader.readLine());
+            assertEquals("a@test", reader.readLine());
+
+            final HttpURLConnection unknown = (HttpURLConnection) new URL(base + "a?format=xml").openConnection();
+            assertEquals("expected bad request", 400, unknown.getResponseCode());
+        } finally {
+            server.stop();
+        }
+    }
+    
 }
@@ -0,0 +1,105 @@
+package norn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for EmailListSnapshot.
+ */
+public class EmailListSnapshotTest {
+
+    /*
+     * Testing strategy for EmailListSnapshot
+     *
+     * Partition write() and read() as follows:
+     *     # lists: 0, 1, >1
+     *     variants: empty, single, listname, union, intersection, difference
+     *     sharing: no shared email lists, email list shared between lists
+     * Partition isSnapshot() and read() as follows:
+     *     input: snapshot, text expressions, unknown version, truncated
+     */
+
+    /**
+     * @param emailLists lists to write
+     * @return the bytes of a snapshot of emailLists
+     */
+    private static byte[] snapshot(Map<String, EmailList> emailLists) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        EmailListSnapshot.write(out, emailLists);
+        return out.toByteArray();
+    }
+
+    // covers # lists 0
+    @Test
+    public void testRoundTripEmpty() throws IOException {
+        final Map<String, EmailList> read = EmailListSnapshot.read(new ByteArrayInputStream(snapshot(new HashMap<>())));
+        assertTrue("expected no lists", read.isEmpty());
+    }
+
+    // covers # lists >1, all variants, email list shared between lists
+    @Test
+    public void testRoundTripAllVariantsShared() throws IOException {
+        final EmailList shared = EmailList.union(EmailList.single("a@mit.edu"), EmailList.listName("b"));
+        final Map<String, EmailList> emailLists = new HashMap<>();
+        emailLists.put("a", EmailList.difference(shared, EmailList.empty()));
+        emailLists.put("b", EmailList.intersection(EmailList.single("b@mit.edu"), EmailList.single("a@mit.edu")));
+        emailLists.put("c", shared);
+        final Map<String, EmailList> read = EmailListSnapshot.read(new ByteArrayInputStream(snapshot(emailLists)));
+        assertEquals("expected same lists", emailLists, read);
+        assertSame("expected shared list read once",
+                read.get("c"), ((Difference) read.get("a")).getLeft());
+    }
+
+    // covers # lists 1, single; input snapshot and text expressions
+    @Test
+    public void testIsSnapshot() throws IOException {
+        final byte[] bytes = snapshot(Collections.singletonMap("a", EmailList.single("x@y")));
+        final BufferedInputStream snapshot = new BufferedInputStream(new ByteArrayInputStream(bytes));
+        assertTrue("expected snapshot detected", EmailListSnapshot.isSnapshot(snapshot));
+        assertEquals("expected list read after detection", EmailList.single("x@y"), EmailListSnapshot.read(snapshot).get("a"));
+        final BufferedInputStream text = new BufferedInputStream(new ByteArrayInputStream("a=x@y;".getBytes("UTF-8")));
+        assertFalse("expected text not detected", EmailListSnapshot.isSnapshot(text));
+        assertEquals("expected text left unread", 'a', text.read());
+    }
+
+    // covers unknown version
+    @Test
+    public void testReadUnknownVersion() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(EmailListSnapshot.MAGIC);
+        data.writeInt(EmailListSnapshot.VERSION + 1);
+        try {
+            EmailListSnapshot.read(new ByteArrayInputStream(bytes.toByteArray()));
+            assertTrue("expected unknown version to be rejected", false);
+        } catch (IOException e) {
+            assertTrue("expected version in " + e.getMessage(), e.getMessage().contains("version"));
+        }
+    }
+
+    // covers truncated
+    @Test
+    public void testReadTruncated() {
+        try {
+            final byte[] bytes = snapshot(Collections.singletonMap("a", EmailList.union(EmailList.single("x@y"), EmailList.listName("b"))));
+            EmailListSnapshot.read(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 1)));
+            assertTrue("expected truncated snapshot to be rejected", false);
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package norn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for the stack-safe traversals of EmailListTraversal, through the EmailList operations that use them.
+ */
+public class EmailListTraversalTest {
+
+    /*
+     * Testing strategy for EmailListTraversal
+     *
+     * Partition the inputs as follows:
+     *     depth of the email list: 1, small, 50000 (deeper than the stack allows recursion)
+     *     shape: union chain, difference chain, intersection and difference mixed, shared subexpressions
+     *     operation: recipients, toString, equals, getReferencedLists, getDirectlyReferencedLists, contains
+     *     engine: bitmap, sorted merge, parallel, lazy, recipient cache of a named list
+     */
+
+    private static final int DEPTH = 50000;
+
+    /**
+     * @return the expression "user0@test, user1@test, ..., list0, ..." with DEPTH addresses
+     */
+    private static String longUnion() {
+        final StringBuilder expression = new StringBuilder();
+        for (int i = 0; i < DEPTH; i++) {
+            expression.append(i == 0 ? "" : ", ").append("user").append(i).append("@test");
+        }
+        return expression.append(", list0, list1").toString();
+    }
+
+    // covers depth 50000, union chain, every operation, both engines
+    @Test
+    public void testDeepUnionChain() {
+        final Map<String, EmailList> environment = new HashMap<>();
+        EmailList.evaluate("list0 = user0@test, extra@test; list1 = list0", environment);
+        final String expression = longUnion();
+        final EmailList emailList = EmailList.evaluate(expression, environment);
+        assertEquals("expected every address", DEPTH + 1, emailList.recipients(environment).size());
+        assertEquals("expected every address, sorted", DEPTH + 1,
+                SortedMergeEvaluator.recipients(emailList, environment).size());
+        assertEquals("expected referenced lists", new HashSet<>(Arrays.asList("list0", "list1")),
+                emailList.getReferencedLists(environment));
+        assertEquals("expected directly referenced lists", new HashSet<>(Arrays.asList("list0", "list1")),
+                emailList.getDirectlyReferencedLists());
+
+        final String printed = emailList.toString();
+        assertTrue("expected first addresses printed first", printed.startsWith("((((") && printed.contains("(user0@test) , (user1@test)"));
+        assertTrue("expected last list printed last", printed.endsWith(") , (list1)"));
+
+        EmailList constructed = new Single("user0@test");
+        for (int i = 1; i < DEPTH; i++) {
+            constructed = new Union(constructed, new Single("user" + i + "@test"));
+        }
+        constructed = new Union(new Union(constructed, new ListName("list0")), new ListName("list1"));
+        assertEquals("expected structurally equal to a constructed list", constructed, emailList);
+        assertEquals("expected equal hash codes", constructed.hashCode(), emailList.hashCode());
+    }
+
+    // covers depth 50000, difference chain, recipients, every engine, recipient cache of a named list
+    @Test
+    public void testDeepDifferenceChain() {
+        final Map<String, EmailList> environment = new HashMap<>();
+        EmailList.evaluate("list0 = user0@test, extra@test", environment);
+        final StringBuilder expression = new StringBuilder("list0");
+        for (int i = DEPTH - 1; i >= 0; i--) {
+            expression.append(" ! user").append(i).append("@test");
+        }
+        final EmailList emailList = EmailList.evaluate(expression.toString(), environment);
+        for (EmailList.EvaluationEngine engine : EmailList.EvaluationEngine.values()) {
+            assertEquals("expected the address not subtracted, " + engine, new HashSet<>(Arrays.asList("extra@test")),
+                    new HashSet<>(engine.recipients(emailList, environment)));
+        }
+        EmailList.evaluate("chain = " + expression, environment);
+        assertEquals("expected the cached recipients of a named list", RecipientSet.of("extra@test"),
+                EmailList.listName("chain").recipientSet(environment));
+    }
+
+    // covers depth small, intersection and difference mixed, shared subexpressions, both engines
+    @Test
+    public void testMixedSharedSubexpressions() {
+        final Map<String, EmailList> environment = new HashMap<>();
+        final EmailList emailList = EmailList.evaluate(
+                "s = a@x, b@x, c@x; (s * (s ! b@x)), (s ! (s * a@x)), d@x", environment);
+        assertEquals("expected recipients", new HashSet<>(Arrays.asList("a@x", "b@x", "c@x", "d@x")),
+                emailList.recipients(environment));
+        assertEquals("expected sorted recipients", Arrays.asList("a@x", "b@x", "c@x", "d@x"),
+                SortedMergeEvaluator.recipients(emailList, environment));
+        assertEquals("expected printed form", "(((s) * ((s) ! (b@x))) , ((s) ! ((s) * (a@x)))) , (d@x)",
+                emailList.toString());
+    }
+
+    // covers depth 1
+    @Test
+    public void testLeaves() {
+        final Map<String, EmailList> environment = new HashMap<>();
+        assertEquals("expected single", "a@x", EmailList.single("a@x").toString());
+        assertTrue("expected no references", EmailList.single("a@x").getReferencedLists(environment).isEmpty());
+        assertTrue("expected no recipients", EmailList.empty().recipients(environment).isEmpty());
+    }
+
+    // covers contains: depth 50000, union chain, intersection and difference mixed, shared subexpressions
+    @Test
+    public void testContains() {
+        final Map<String, EmailList> environment = new HashMap<>();
+        EmailList.evaluate("list0 = user0@test, extra@test; list1 = list0", environment);
+        final EmailList chain = EmailList.evaluate(longUnion(), environment);
+        assertTrue("expected first address", chain.contains("user0@test", environment));
+        assertTrue("expected last address, any case", chain.contains("USER" + (DEPTH - 1) + "@test", environment));
+        assertTrue("expected address of named list", chain.contains("extra@test", environment));
+        assertFalse("expected absent address", chain.contains("nobody@test", environment));
+
+        final EmailList mixed = EmailList.evaluate("(list1, a@test, b@test) * (list0 ! user0@test, a@test) ! a@test", environment);
+        for (String address : Arrays.asList("user0@test", "extra@test", "a@test", "b@test", "nobody@test")) {
+            assertEquals("expected same answer as recipients() for " + address,
+                    mixed.recipients(environment).contains(address), mixed.contains(address, environment));
+        }
+        final EmailList shared = EmailList.union(mixed, EmailList.intersection(mixed, chain));
+        assertTrue(shared.contains("extra@test", environment));
+        assertFalse(shared.contains("b@test", environment));
+    }
+}
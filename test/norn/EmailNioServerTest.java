@@ -0,0 +1,190 @@
+package norn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+/**
+ * Tests for EmailNioServer.
+ */
+public class EmailNioServerTest {
+
+    /*
+     * Testing strategy for EmailNioServer
+     *
+     * Partition the requests as follows:
+     *     path: /eval/ with recipients, /eval/ with no recipients, invalid expression, /metrics, unknown
+     *     format: HTML, JSON by query, unknown
+     *     response encoding: identity, gzip
+     *     requests on a connection: one, several kept alive, several pipelined in one write
+     *     connection: closed by Connection: close, HTTP/1.0 without keep-alive, idle kept alive,
+     *                 idle in a partial request head
+     *     method: GET, HEAD
+     *     request head: valid, preceded by empty lines, only empty lines, malformed request line
+     *     environment: map, Environment
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    /**
+     * @return everything read from in until the end of the stream, as ISO-8859-1 text
+     */
+    private static String readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    // covers /eval/ with recipients, with no recipients, invalid expression, unknown path, HTML, JSON by query,
+    //        unknown format, several kept alive, GET, map
+    @Test
+    public void testEvaluation() throws IOException {
+        final EmailNioServer server = new EmailNioServer();
+        final Map<String, EmailList> environment = new HashMap<>();
+        server.startWebServer(environment);
+        try {
+            final String base = "http://localhost:" + server.SERVER_PORT;
+            final HttpURLConnection html = (HttpURLConnection) new URL(base + "/eval/a=x@test,y@test;a*y@test").openConnection();
+            assertEquals(200, html.getResponseCode());
+            assertEquals("text/html; charset=utf-8", html.getContentType());
+            assertEquals("<a href=\"mailto:y@test\">email these recipients</a><br>y@test\n", readAll(html.getInputStream()));
+
+            final HttpURLConnection json = (HttpURLConnection) new URL(base + "/eval/a?format=json").openConnection();
+            assertEquals(200, json.getResponseCode());
+            final String body = readAll(json.getInputStream());
+            assertTrue(body, body.equals("[\"x@test\",\"y@test\"]\n") || body.equals("[\"y@test\",\"x@test\"]\n"));
+
+            final HttpURLConnection empty = (HttpURLConnection) new URL(base + "/eval/a!a").openConnection();
+            assertEquals(404, empty.getResponseCode());
+            assertEquals("the resulting list name is empty: a!a\n", readAll(empty.getErrorStream()));
+
+            assertEquals(400, ((HttpURLConnection) new URL(base + "/eval/(a").openConnection()).getResponseCode());
+            assertEquals(400, ((HttpURLConnection) new URL(base + "/eval/a?format=xml").openConnection()).getResponseCode());
+            assertEquals(404, ((HttpURLConnection) new URL(base + "/other").openConnection()).getResponseCode());
+        } finally {
+            server.stop();
+        }
+    }
+
+    // covers several pipelined in one write, closed by Connection: close, HEAD, gzip, /metrics, Environment
+    @Test
+    public void testPipelining() throws IOException {
+        final EmailNioServer server = new EmailNioServer(2, EmailWebServer.DEFAULT_BACKLOG);
+        final Environment environment = new Environment();
+        EmailList.evaluate("b = b@test; c = c@test", environment);
+        server.startWebServer(environment);
+        try (Socket socket = new Socket("localhost", server.SERVER_PORT)) {
+            final OutputStream out = socket.getOutputStream();
+            out.write(("GET /eval/b?format=csv HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "HEAD /eval/c HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /metrics HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /eval/c HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            final String responses = readAll(socket.getInputStream());
+
+            final String csv = "HTTP/1.1 200 OK\r\nContent-Type: text/csv; charset=utf-8\r\nContent-Length: 17\r\n\r\n"
+                    + "address\r\nb@test\r\n";
+            assertTrue(responses, responses.startsWith(csv));
+            final String head = "HTTP/1.1 200 OK\r\nContent-Type: text/html; charset=utf-8\r\nContent-Length: 61\r\n\r\n";
+            assertTrue(responses, responses.startsWith(csv + head + "HTTP/1.1 200 OK\r\nContent-Type: text/plain; version=0.0.4"));
+            assertTrue(responses, responses.contains("norn_lists 2\n"));
+
+            final int last = responses.lastIndexOf("HTTP/1.1 200 OK\r\n");
+            final String gzip = responses.substring(last);
+            assertTrue(gzip, gzip.contains("Content-Encoding: gzip\r\nConnection: close\r\n\r\n"));
+            final byte[] compressed = gzip.substring(gzip.indexOf("\r\n\r\n") + 4).getBytes(StandardCharsets.ISO_8859_1);
+            assertEquals("<a href=\"mailto:c@test\">email these recipients</a><br>c@test\n",
+                    readAll(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+        } finally {
+            server.stop();
+        }
+    }
+
+    // covers one request, HTTP/1.0 without keep-alive
+    @Test
+    public void testHttp10Closes() throws IOException {
+        final EmailNioServer server = new EmailNioServer();
+        server.startWebServer(new HashMap<>());
+        try (Socket socket = new Socket("localhost", server.SERVER_PORT)) {
+            socket.getOutputStream().write("GET /eval/a@b HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            final String response = readAll(socket.getInputStream());
+            assertTrue(response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+            assertTrue(response, response.contains("Connection: close\r\n"));
+            assertTrue(response, response.endsWith("<br>a@b\n"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    // covers preceded by empty lines, only empty lines, malformed request line
+    @Test
+    public void testMalformedHeads() throws IOException {
+        final EmailNioServer server = new EmailNioServer();
+        server.startWebServer(new HashMap<>());
+        try {
+            try (Socket socket = new Socket("localhost", server.SERVER_PORT)) {
+                socket.getOutputStream().write("\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                socket.shutdownOutput();
+                assertEquals("", readAll(socket.getInputStream()));
+            }
+            try (Socket socket = new Socket("localhost", server.SERVER_PORT)) {
+                socket.getOutputStream().write("GARBAGE\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                final String response = readAll(socket.getInputStream());
+                assertTrue(response, response.startsWith("HTTP/1.1 400 Bad Request\r\n"));
+            }
+            try (Socket socket = new Socket("localhost", server.SERVER_PORT)) {
+                socket.getOutputStream().write("\r\n\r\nGET /eval/a@b HTTP/1.1\r\nConnection: close\r\n\r\n"
+                        .getBytes(StandardCharsets.ISO_8859_1));
+                final String response = readAll(socket.getInputStream());
+                assertTrue(response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+                assertTrue(response, response.endsWith("<br>a@b\n"));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    // covers idle kept alive, idle in a partial request head
+    @Test
+    public void testIdleConnectionsClosed() throws IOException {
+        final EmailNioServer server = new EmailNioServer(1, EmailWebServer.DEFAULT_BACKLOG, 200);
+        server.startWebServer(new HashMap<>());
+        try {
+            try (Socket socket = new Socket("localhost", server.SERVER_PORT)) {
+                socket.setSoTimeout(10_000);
+                socket.getOutputStream().write("GET /eval/a@b HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                final String response = readAll(socket.getInputStream());
+                assertTrue(response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+                assertTrue(response, !response.contains("Connection: close"));
+            }
+            try (Socket socket = new Socket("localhost", server.SERVER_PORT)) {
+                socket.setSoTimeout(10_000);
+                socket.getOutputStream().write("GET /eval/a@b HTTP/1.1\r\nHost:".getBytes(StandardCharsets.ISO_8859_1));
+                assertEquals("", readAll(socket.getInputStream()));
+            }
+        } finally {
+            server.stop();
+        }
+    }
+}
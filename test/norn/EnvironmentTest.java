@@ -0,0 +1,87 @@
+package norn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests for the Environment data type.
+ */
+public class EnvironmentTest {
+
+    /*
+     * Testing strategy for Environment
+     *
+     * Partition the inputs as follows:
+     * transact():
+     *     work: reads only, assigns one list, assigns >1 list, throws
+     *     concurrent commit during work: yes, no
+     * snapshot():
+     *     taken before, after a transaction commits
+     * EmailList.evaluate(String, Environment):
+     *     expression: valid, invalid
+     */
+
+    // covers transact reads only, snapshot after
+    @Test
+    public void testTransactReadOnlyLeavesSnapshot() {
+        final Environment environment = new Environment();
+        EmailList.evaluate("a=bob@mit.edu", environment);
+        final Map<String, EmailList> before = environment.snapshot();
+        final Set<String> recipients = environment.transact(view -> view.get("a").recipients(view));
+        assertEquals("expected recipients of a", Collections.singleton("bob@mit.edu"), recipients);
+        assertTrue("expected same snapshot", before == environment.snapshot());
+    }
+
+    // covers transact assigns >1 list, snapshot before and after
+    @Test
+    public void testTransactSequenceCommittedTogether() {
+        final Environment environment = new Environment();
+        final Map<String, EmailList> before = environment.snapshot();
+        EmailList.evaluate("a=bob@mit.edu;b=a,carl@mit.edu", environment);
+        assertTrue("expected old snapshot unchanged", before.isEmpty());
+        final Map<String, EmailList> expected = new HashMap<>();
+        expected.put("a", EmailList.single("bob@mit.edu"));
+        expected.put("b", EmailList.union(EmailList.listName("a"), EmailList.single("carl@mit.edu")));
+        assertEquals("expected both assignments", expected, environment.snapshot());
+    }
+
+    // covers transact throws, evaluate invalid
+    @Test
+    public void testEvaluateInvalidLeavesEnvironmentUnchanged() {
+        final Environment environment = new Environment();
+        EmailList.evaluate("a=b", environment);
+        try {
+            EmailList.evaluate("c=d@mit.edu;b=a", environment);
+            assertTrue("expected recursive definition to be rejected", false);
+        } catch (IllegalArgumentException e) {
+            assertFalse("expected c not committed", environment.containsKey("c"));
+            assertEquals("expected b unchanged", EmailList.empty(), environment.get("b"));
+        }
+    }
+
+    // covers transact assigns one list, concurrent commit during work
+    @Test
+    public void testTransactRetriedAfterConcurrentCommit() {
+        final Environment environment = new Environment();
+        final AtomicInteger runs = new AtomicInteger();
+        final EmailList result = environment.transact(view -> {
+            if (runs.incrementAndGet() == 1) {
+                EmailList.evaluate("a=bob@mit.edu", environment);
+            }
+            return EmailList.evaluate("b=a", view);
+        });
+        assertEquals("expected work run twice", 2, runs.get());
+        assertEquals("expected result of second run", EmailList.listName("a"), result);
+        assertEquals("expected concurrent commit kept", EmailList.single("bob@mit.edu"), environment.get("a"));
+        assertEquals("expected own commit", EmailList.listName("a"), environment.get("b"));
+    }
+}
@@ -0,0 +1,115 @@
+package norn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for EvaluationProfiler.
+ */
+public class EvaluationProfilerTest {
+
+    /*
+     * Testing strategy for EvaluationProfiler
+     *
+     * Partition profile() as follows:
+     *     nodes of the optimized expression: empty, single, union, intersection, difference, shared subexpression
+     *     list names: undefined, cached, not cached
+     * Lists that are not cached are checked to be profiled before the optimized expression, and cached after.
+     * Partition toString() of a profile as follows:
+     *     single addresses among the operands: none, some
+     * Partition thresholdNanos() as follows:
+     *     property: unset, integer, fraction, negative, not a number
+     * logIfSlow() is checked to log a request slower than any threshold iff profiling is enabled.
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    // covers single, union, intersection, difference, shared subexpression, undefined, cached, not cached,
+    //        some single addresses
+    @Test
+    public void testProfile() {
+        final Map<String, EmailList> environment = new HashMap<>();
+        EmailList.evaluate("staff = alice@corp, bob@corp, carol@corp; managers = alice@corp; all = staff, dave@corp", environment);
+        EmailList.listName("managers").recipientSet(environment);
+        final EmailList expression = EmailList.evaluate("(all ! managers) * (staff ! bob@corp), nobody", environment);
+
+        final EvaluationProfiler.Profile profile = EvaluationProfiler.profile(expression, environment);
+        assertEquals(expression.recipientSet(environment), profile.recipients());
+        assertEquals("expression", profile.label());
+        assertEquals(4, profile.children().size());
+        final EvaluationProfiler.Profile optimized = profile.children().get(3);
+        assertEquals(profile.recipients(), optimized.recipients());
+        assertTrue(profile.totalNanos() >= optimized.totalNanos() + profile.optimizeNanos());
+
+        // the uncached lists the optimizer estimates are profiled first, each through its optimized definition
+        final EvaluationProfiler.Profile all = profile.children().get(0);
+        assertEquals("list name all", all.label());
+        assertEquals("list name staff", all.children().get(0).label());
+        assertEquals(4, all.recipients().size());
+        assertEquals("list name nobody", profile.children().get(1).label());
+        assertEquals("empty", profile.children().get(1).children().get(0).label());
+        assertEquals("list name staff (shared, profiled above)", profile.children().get(2).label());
+        assertEquals("list name ghost (undefined)",
+                EvaluationProfiler.profile(EmailList.listName("ghost"), environment).children().get(0).label());
+
+        final RecipientCache cache = EnvironmentState.of(environment).recipientCache();
+        assertEquals(all.recipients(), cache.cached("all", environment).get());
+        assertTrue("expected staff cached", cache.cached("staff", environment).isPresent());
+
+        final String tree = profile.toString();
+        assertTrue(tree, tree.startsWith("expression: "));
+        assertTrue(tree, tree.contains(", optimizing "));
+        assertTrue(tree, tree.contains("\n  list name all: "));
+        assertTrue(tree, tree.contains("list name all (shared, profiled above)"));
+        assertTrue(tree, tree.contains("list name managers (cached)"));
+        assertTrue(tree, tree.contains("intersection: "));
+        assertTrue(tree, tree.contains("difference: "));
+        assertTrue(tree, tree.contains("3 recipients, 3 single addresses\n"));
+        assertTrue(tree, !tree.contains("alice@corp"));
+    }
+
+    // covers empty, no single addresses
+    @Test
+    public void testProfileEmpty() {
+        final EvaluationProfiler.Profile profile = EvaluationProfiler.profile(EmailList.empty(), new HashMap<>());
+        assertEquals(0, profile.recipients().size());
+        assertTrue(profile.toString(), profile.toString().matches(
+                "expression: [0-9.]+ ms \\(self [0-9.]+ ms(, optimizing [0-9.]+ ms)?\\), 0 recipients\n"
+                + "  empty: [0-9.]+ ms \\(self [0-9.]+ ms\\), 0 recipients\n"));
+    }
+
+    // covers unset, integer, fraction
+    @Test
+    public void testThreshold() {
+        assertEquals(-1, EvaluationProfiler.thresholdNanos(null));
+        assertEquals(250_000_000, EvaluationProfiler.thresholdNanos("250"));
+        assertEquals(500_000, EvaluationProfiler.thresholdNanos("0.5"));
+
+        final ByteArrayOutputStream log = new ByteArrayOutputStream();
+        EvaluationProfiler.logIfSlow("a", EvaluationProfiler.profile(EmailList.empty(), new HashMap<>()),
+                Long.MAX_VALUE, new PrintStream(log));
+        assertEquals(EvaluationProfiler.isEnabled(), log.size() > 0);
+    }
+
+    // covers negative
+    @Test(expected=IllegalArgumentException.class)
+    public void testThresholdNegative() {
+        EvaluationProfiler.thresholdNanos("-1");
+    }
+
+    // covers not a number
+    @Test(expected=IllegalArgumentException.class)
+    public void testThresholdNotANumber() {
+        EvaluationProfiler.thresholdNanos("slow");
+    }
+}
@@ -0,0 +1,68 @@
+package norn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for LatencyHistogram.
+ */
+public class LatencyHistogramTest {
+
+    /*
+     * Testing strategy for LatencyHistogram
+     *
+     * Partition percentile() as follows:
+     *     values recorded: none, below 256 (exact), large, Long.MAX_VALUE
+     *     percentile: 0, 50, 99.9, 100
+     * Partition add() as follows:
+     *     other histogram: empty, nonempty
+     * Large values are checked to be within the relative error of 1/128.
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    // covers none, below 256, percentiles 0, 50, 100
+    @Test
+    public void testExactValues() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(50));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.count());
+        assertEquals(5050, histogram.sum());
+        assertEquals(1, histogram.percentile(0));
+        assertEquals(50, histogram.percentile(50));
+        assertEquals(100, histogram.percentile(100));
+        assertEquals(100, histogram.max());
+    }
+
+    // covers large values, Long.MAX_VALUE, percentile 99.9, add empty and nonempty
+    @Test
+    public void testLargeValuesAndAdd() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1000; value <= 1_000_000_000L; value = value * 11 / 10) {
+            histogram.record(value);
+            final long estimate = histogram.percentile(100);
+            assertTrue("expected " + value + " within 1/128, was " + estimate,
+                    estimate >= value && estimate - value <= value / 128);
+        }
+        final LatencyHistogram other = new LatencyHistogram();
+        histogram.add(other);
+        for (int i = 0; i < 999; i++) {
+            other.record(10);
+        }
+        other.record(Long.MAX_VALUE);
+        final long before = histogram.count();
+        histogram.add(other);
+        assertEquals(before + 1000, histogram.count());
+        assertEquals(Long.MAX_VALUE, histogram.max());
+        assertEquals(10, other.percentile(99.9));
+        assertEquals(Long.MAX_VALUE, other.percentile(100));
+    }
+}
@@ -0,0 +1,99 @@
+package norn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/**
+ * Tests for ParallelEvaluator.
+ */
+public class ParallelEvaluatorTest {
+
+    /*
+     * Testing strategy for ParallelEvaluator
+     *
+     * Partition recipientSet() as follows:
+     *     size of the email list: below the parallel threshold, above it
+     *     shape: union chain, intersection, difference chain, nested mix, shared subexpressions
+     *     named lists: cached, not yet cached
+     *     root: expression, large named list not yet cached
+     * Each result is compared with the sequential EmailList.recipientSet().
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    /**
+     * @return a union chain of the addresses prefix(from)@test ... prefix(to-1)@test
+     */
+    private static EmailList addresses(String prefix, int from, int to) {
+        EmailList result = EmailList.empty();
+        for (int i = from; i < to; i++) {
+            result = EmailList.union(result, EmailList.single(prefix + i + "@test"));
+        }
+        return result;
+    }
+
+    // covers below the threshold, union chain, difference chain, named lists not yet cached
+    @Test
+    public void testSmall() {
+        final Map<String, EmailList> environment = new HashMap<>();
+        EmailList.evaluate("a = x@test, y@test; b = a, z@test", environment);
+        final EmailList emailList = EmailList.evaluate("b ! x@test ! w@test, v@test", environment);
+        assertEquals(emailList.recipientSet(environment), ParallelEvaluator.recipientSet(emailList, environment));
+    }
+
+    // covers above the threshold, every shape, named lists cached and not
+    @Test
+    public void testLarge() {
+        final int n = (int) ParallelEvaluator.PARALLEL_THRESHOLD;
+        final Map<String, EmailList> environment = new HashMap<>();
+        environment.put("big0", addresses("u", 0, 2 * n));
+        environment.put("big1", addresses("u", n, 3 * n));
+        environment.put("big2", addresses("v", 0, n));
+        EmailList.listName("big0").recipientSet(environment);
+        final EmailList shared = EmailList.union(EmailList.listName("big0"), EmailList.listName("big2"));
+        final EmailList emailList = EmailList.union(
+                EmailList.difference(EmailList.difference(shared, addresses("u", 0, 100)), EmailList.listName("big2")),
+                EmailList.union(EmailList.intersection(shared, EmailList.listName("big1")), addresses("w", 0, 1000)));
+        final RecipientSet expected = emailList.recipientSet(environment);
+        assertEquals(expected, ParallelEvaluator.recipientSet(emailList, environment));
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertEquals(expected, ParallelEvaluator.recipientSet(emailList, environment, pool));
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(expected.addresses(), EmailList.EvaluationEngine.PARALLEL.recipients(emailList, environment));
+    }
+
+    // covers above the threshold, root large named list not yet cached
+    @Test
+    public void testLargeNamedRoot() {
+        final int n = (int) ParallelEvaluator.PARALLEL_THRESHOLD;
+        final Map<String, EmailList> environment = new HashMap<>();
+        environment.put("left", addresses("u", 0, 2 * n));
+        environment.put("right", addresses("v", 0, 2 * n));
+        environment.put("all", EmailList.union(EmailList.listName("left"), EmailList.listName("right")));
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        final RecipientSet recipients;
+        try {
+            recipients = ParallelEvaluator.recipientSet(EmailList.listName("all"), environment, pool);
+            assertTrue("expected the definition of a named root evaluated in tasks", pool.getStealCount() > 0);
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(4 * n, recipients.size());
+        final RecipientCache cache = EnvironmentState.of(environment).recipientCache();
+        assertEquals("expected the named root cached", recipients, cache.cached("all", environment).get());
+        assertEquals("expected referenced lists cached", 2 * n, cache.cached("left", environment).get().size());
+        assertEquals(recipients, EmailList.listName("all").recipientSet(environment));
+    }
+}
@@ -0,0 +1,107 @@
+package norn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests for RecipientCache.
+ */
+public class RecipientCacheTest {
+
+    /*
+     * Testing strategy for recipients() and cached()
+     *
+     * Partition the inputs as follows:
+     *     list: no references, references other lists directly, references other lists transitively,
+     *           references a name that was undefined when it was cached
+     *     cached entry: none, current, stale
+     *     change since the list was cached: none, assignment to the list, assignment to a list it depends on,
+     *                                       assignment to an unrelated list, map modified without the parser
+     *     environment: map, Environment
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    private static Set<String> addresses(String... addresses) {
+        return new HashSet<>(Arrays.asList(addresses));
+    }
+
+    // covers no references, no entry, current entry, no change, map
+    @Test
+    public void testUnchangedListServedFromCache() {
+        final Map<String, EmailList> environment = new HashMap<>();
+        EmailList.evaluate("staff = alice@corp, bob@corp", environment);
+        final RecipientCache cache = EnvironmentState.of(environment).recipientCache();
+
+        final RecipientSet first = cache.recipients("staff", environment);
+        assertEquals(addresses("alice@corp", "bob@corp"), first.addresses());
+        assertSame(first, cache.cached("staff", environment).get());
+        assertSame(first, cache.recipients("staff", environment));
+    }
+
+    // covers references other lists directly and transitively, stale entry, assignment to a list it depends on,
+    //        assignment to an unrelated list, Environment
+    @Test
+    public void testReassignmentInvalidatesExactlyDependents() {
+        final Environment environment = new Environment();
+        EmailList.evaluate("base = a@corp; mid = base; top = mid, b@corp; other = c@corp; side = other", environment);
+        final RecipientCache cache = environment.state().recipientCache();
+        final RecipientSet other = cache.recipients("other", environment);
+        final RecipientSet side = cache.recipients("side", environment);
+        for (String listName : Arrays.asList("base", "mid", "top")) {
+            cache.recipients(listName, environment);
+            assertTrue(cache.cached(listName, environment).isPresent());
+        }
+
+        EmailList.evaluate("base = d@corp", environment);
+        assertFalse(cache.cached("base", environment).isPresent());
+        assertFalse(cache.cached("mid", environment).isPresent());
+        assertFalse(cache.cached("top", environment).isPresent());
+        assertSame(other, cache.cached("other", environment).get());
+        assertSame(side, cache.cached("side", environment).get());
+        assertEquals(addresses("b@corp", "d@corp"), cache.recipients("top", environment).addresses());
+    }
+
+    // covers assignment to the list, references a name that was undefined when it was cached, stale entry, map
+    @Test
+    public void testNameDefinedLater() {
+        final Map<String, EmailList> environment = new HashMap<>();
+        EmailList.evaluate("all = staff, alice@corp", environment);
+        final RecipientCache cache = EnvironmentState.of(environment).recipientCache();
+        assertEquals(addresses("alice@corp"), cache.recipients("all", environment).addresses());
+
+        EmailList.evaluate("staff = bob@corp", environment);
+        assertFalse(cache.cached("all", environment).isPresent());
+        assertEquals(addresses("alice@corp", "bob@corp"), cache.recipients("all", environment).addresses());
+
+        EmailList.evaluate("all = carol@corp", environment);
+        assertFalse(cache.cached("all", environment).isPresent());
+        assertEquals(addresses("carol@corp"), cache.recipients("all", environment).addresses());
+    }
+
+    // covers map modified without the parser, references other lists directly, stale entry
+    @Test
+    public void testMapModifiedDirectly() {
+        final Map<String, EmailList> environment = new HashMap<>();
+        EmailList.evaluate("staff = alice@corp; all = staff", environment);
+        final RecipientCache cache = EnvironmentState.of(environment).recipientCache();
+        cache.recipients("all", environment);
+
+        environment.put("staff", EmailList.single("bob@corp"));
+        assertFalse(cache.cached("all", environment).isPresent());
+        assertEquals(addresses("bob@corp"), cache.recipients("all", environment).addresses());
+    }
+}
@@ -0,0 +1,70 @@
+package norn;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * Tests for RecipientFormat.
+ */
+public class RecipientFormatTest {
+
+    /*
+     * Testing strategy for RecipientFormat
+     *
+     * Partition write() as follows:
+     *     format: HTML, JSON, NDJSON, CSV
+     *     number of recipients: 0, 1, >1
+     * Partition negotiate() as follows:
+     *     query: none, format parameter, other parameters, unknown format
+     *     Accept: none, a format's media type, several media types with parameters, only unknown types
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    private static String write(RecipientFormat format, Collection<String> recipients) {
+        final StringWriter written = new StringWriter();
+        final PrintWriter out = new PrintWriter(written);
+        format.write(out, recipients);
+        out.flush();
+        return written.toString().replace(System.lineSeparator(), "\n");
+    }
+
+    // covers every format, 0, 1, >1 recipients
+    @Test
+    public void testWrite() {
+        final Collection<String> two = Arrays.asList("a@b", "c@d");
+        assertEquals("<a href=\"mailto:a@b,c@d\">email these recipients</a><br>a@b,c@d\n", write(RecipientFormat.HTML, two));
+        assertEquals("[\"a@b\",\"c@d\"]\n", write(RecipientFormat.JSON, two));
+        assertEquals("[]\n", write(RecipientFormat.JSON, Collections.emptyList()));
+        assertEquals("\"a@b\"\n\"c@d\"\n", write(RecipientFormat.NDJSON, two));
+        assertEquals("", write(RecipientFormat.NDJSON, Collections.emptyList()));
+        assertEquals("address\r\na@b\r\n", write(RecipientFormat.CSV, Collections.singletonList("a@b")));
+    }
+
+    // covers every query and Accept partition
+    @Test
+    public void testNegotiate() {
+        assertEquals(RecipientFormat.HTML, RecipientFormat.negotiate(null, Collections.emptyList()));
+        assertEquals(RecipientFormat.CSV, RecipientFormat.negotiate("x=1&format=csv", Arrays.asList("application/json")));
+        assertEquals(RecipientFormat.JSON, RecipientFormat.negotiate("x=1", Arrays.asList("application/json")));
+        assertEquals(RecipientFormat.NDJSON, RecipientFormat.negotiate(null,
+                Arrays.asList("image/png;q=0.5, application/x-ndjson;q=0.9, text/csv")));
+        assertEquals(RecipientFormat.HTML, RecipientFormat.negotiate(null, Arrays.asList("*/*")));
+        try {
+            RecipientFormat.negotiate("format=xml", Collections.emptyList());
+            assertEquals("expected IllegalArgumentException", true, false);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
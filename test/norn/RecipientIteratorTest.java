@@ -0,0 +1,109 @@
+package norn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+/**
+ * Tests for the lazy recipient API of EmailList: recipientIterator(), recipientStream(),
+ * countRecipients() and contains(), and the LAZY evaluation engine.
+ */
+public class RecipientIteratorTest {
+
+    /*
+     * Testing strategy
+     *
+     * Partition recipientIterator() and recipientStream() as follows:
+     *     email list: empty, single, union with duplicates, intersection, difference,
+     *                 list name defined / undefined, nested operations
+     *     iteration: complete, stopped after the first recipient
+     * Partition countRecipients() and contains() as follows:
+     *     result: zero, nonzero / true, false
+     *     address case: lowercase, mixed case
+     * Each iteration is compared with recipients() and checked for duplicates and order.
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    /**
+     * @return the recipients iterated over, in order
+     */
+    private static List<String> iterate(EmailList emailList, Map<String, EmailList> environment) {
+        final List<String> result = new ArrayList<>();
+        emailList.recipientIterator(environment).forEachRemaining(result::add);
+        assertEquals("expected same recipients as recipients()", emailList.recipients(environment), new HashSet<>(result));
+        assertEquals("expected no duplicates", result.size(), new HashSet<>(result).size());
+        return result;
+    }
+
+    // covers empty, single, complete iteration
+    @Test
+    public void testEmptyAndSingle() {
+        final Map<String, EmailList> environment = new HashMap<>();
+        final Iterator<String> empty = EmailList.empty().recipientIterator(environment);
+        assertFalse(empty.hasNext());
+        try {
+            empty.next();
+            assertTrue("expected NoSuchElementException", false);
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+        assertEquals(Arrays.asList("a@mit.edu"), iterate(EmailList.single("A@mit.edu"), environment));
+        assertEquals(0, EmailList.empty().countRecipients(environment));
+    }
+
+    // covers union with duplicates, intersection, difference, nested operations, list names defined and undefined
+    @Test
+    public void testOperationsInOrderOfOccurrence() {
+        final Map<String, EmailList> environment = new HashMap<>();
+        EmailList.evaluate("x = c@mit.edu, a@mit.edu, d@mit.edu", environment);
+        final EmailList emailList = EmailList.evaluate(
+                "(b@mit.edu, x, a@mit.edu, undefined) ! d@mit.edu, (x * (a@mit.edu, d@mit.edu))", environment);
+        assertEquals(Arrays.asList("b@mit.edu", "c@mit.edu", "a@mit.edu", "d@mit.edu"), iterate(emailList, environment));
+        assertEquals(Arrays.asList("c@mit.edu", "a@mit.edu", "d@mit.edu"),
+                EmailList.listName("x").recipientStream(environment).collect(Collectors.toList()));
+    }
+
+    // covers iteration stopped after the first recipient, contains true and false, mixed case
+    @Test
+    public void testFirstRecipientAndMembership() {
+        final Map<String, EmailList> environment = new HashMap<>();
+        EmailList chain = EmailList.single("first@mit.edu");
+        for (int i = 0; i < 10000; i++) {
+            chain = EmailList.union(chain, EmailList.single("user" + i + "@mit.edu"));
+        }
+        environment.put("big", chain);
+        final EmailList emailList = EmailList.evaluate("big ! user5@mit.edu", environment);
+        assertEquals("first@mit.edu", emailList.recipientIterator(environment).next());
+        assertEquals(10000, emailList.countRecipients(environment));
+        assertTrue(emailList.contains("USER9999@mit.edu", environment));
+        assertFalse(emailList.contains("user5@mit.edu", environment));
+        assertFalse(emailList.contains("nobody@mit.edu", environment));
+    }
+
+    // covers the LAZY engine
+    @Test
+    public void testLazyEngine() {
+        final Map<String, EmailList> environment = new HashMap<>();
+        final EmailList emailList = EmailList.evaluate("b@mit.edu, a@mit.edu, b@mit.edu", environment);
+        final List<String> recipients = new ArrayList<>(EmailList.EvaluationEngine.LAZY.recipients(emailList, environment));
+        assertEquals(Arrays.asList("b@mit.edu", "a@mit.edu"), recipients);
+        assertEquals(2, EmailList.EvaluationEngine.LAZY.recipients(emailList, environment).size());
+        assertTrue(EmailList.EvaluationEngine.LAZY.recipients(EmailList.empty(), environment).isEmpty());
+    }
+}
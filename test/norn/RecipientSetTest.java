@@ -0,0 +1,134 @@
+package norn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests for RecipientSet.
+ */
+public class RecipientSetTest {
+
+    /*
+     * Testing strategy for RecipientSet
+     *
+     * Partition union(), intersection() and difference() as follows:
+     *     operands: empty, array containers only, bitmap containers, mixed
+     *     result: empty, non-empty
+     *     overlap of operands: none, partial, equal
+     * Partition contains() as follows:
+     *     address: in set, not in set, never seen, differing case
+     * Each result is compared with the same operation on HashSets of strings.
+     * The address of a single-recipient email list is checked to be numbered only once the list is evaluated.
+     */
+
+    /**
+     * @param prefix prefix of the usernames
+     * @param count number of addresses
+     * @param random chooses which addresses are included
+     * @param density fraction of the addresses included
+     * @return a set of addresses chosen from prefix0@test ... prefix(count-1)@test
+     */
+    private static Set<String> addresses(String prefix, int count, Random random, double density) {
+        final Set<String> addresses = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            if (random.nextDouble() < density) {
+                addresses.add(prefix + i + "@test");
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * @param addresses lowercased addresses
+     * @return the recipient set of addresses
+     */
+    private static RecipientSet recipientSet(Set<String> addresses) {
+        RecipientSet set = RecipientSet.empty();
+        for (String address : addresses) {
+            set = set.union(RecipientSet.of(address));
+        }
+        return set;
+    }
+
+    /**
+     * Assert that the set operations on two recipient sets agree with HashSets.
+     * @param a addresses of the first set
+     * @param b addresses of the second set
+     */
+    private static void assertOperationsAgree(Set<String> a, Set<String> b) {
+        final RecipientSet setA = recipientSet(a);
+        final RecipientSet setB = recipientSet(b);
+        final Set<String> union = new HashSet<>(a);
+        union.addAll(b);
+        final Set<String> intersection = new HashSet<>(a);
+        intersection.retainAll(b);
+        final Set<String> difference = new HashSet<>(a);
+        difference.removeAll(b);
+        assertEquals("expected union", union, setA.union(setB).addresses());
+        assertEquals("expected intersection", intersection, setA.intersection(setB).addresses());
+        assertEquals("expected difference", difference, setA.difference(setB).addresses());
+        assertEquals("expected union size", union.size(), setA.union(setB).size());
+    }
+
+    // covers empty operands, empty result
+    @Test
+    public void testEmpty() {
+        final Set<String> some = new HashSet<>();
+        some.add("x@y");
+        assertOperationsAgree(new HashSet<>(), new HashSet<>());
+        assertOperationsAgree(some, new HashSet<>());
+        assertOperationsAgree(new HashSet<>(), some);
+        assertTrue("expected empty", RecipientSet.empty().isEmpty());
+    }
+
+    // covers array containers only, partial and equal overlap
+    @Test
+    public void testArrayContainers() {
+        final Random random = new Random(6031);
+        final Set<String> a = addresses("small", 300, random, 0.5);
+        final Set<String> b = addresses("small", 300, random, 0.5);
+        assertOperationsAgree(a, b);
+        assertOperationsAgree(a, a);
+    }
+
+    // covers bitmap containers and mixed, no overlap
+    @Test
+    public void testBitmapContainers() {
+        final Random random = new Random(6005);
+        final Set<String> dense = addresses("dense", 20000, random, 0.9);
+        final Set<String> sparse = addresses("dense", 20000, random, 0.02);
+        final Set<String> other = addresses("other", 500, random, 1.0);
+        assertOperationsAgree(dense, sparse);
+        assertOperationsAgree(sparse, dense);
+        assertOperationsAgree(dense, addresses("dense", 20000, random, 0.8));
+        assertOperationsAgree(dense, other);
+    }
+
+    // covers contains in set, not in set, never seen, differing case
+    @Test
+    public void testContains() {
+        final RecipientSet set = RecipientSet.of("bob@mit.edu").union(RecipientSet.of("alice@mit.edu"));
+        RecipientSet.of("carol@mit.edu");
+        assertTrue("expected member", set.contains("bob@mit.edu"));
+        assertTrue("expected member in any case", set.contains("Alice@MIT.edu"));
+        assertFalse("expected non-member", set.contains("carol@mit.edu"));
+        assertFalse("expected never seen address", set.contains("nobody-ever@nowhere"));
+    }
+
+    // covers numbering the address of a single-recipient email list
+    @Test
+    public void testSingleNumberedWhenEvaluated() {
+        final EmailList single = EmailList.single("parsed-only@single.test");
+        assertFalse("expected no id before evaluation", AddressDictionary.lookup("parsed-only@single.test").isPresent());
+        assertTrue("expected member", single.recipientSet(new HashMap<>()).contains("parsed-only@single.test"));
+        assertTrue("expected id after evaluation", AddressDictionary.lookup("parsed-only@single.test").isPresent());
+    }
+}
@@ -0,0 +1,117 @@
+package norn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Tests for ReverseIndex, through Environment.listsContaining().
+ */
+public class ReverseIndexTest {
+
+    /*
+     * Testing strategy for listsContaining()
+     *
+     * Partition the inputs as follows:
+     *     address: on no list, on one list, on several lists, never seen, differing case
+     *     how the address is on a list: directly, through a referenced list, through an operation
+     *     environment changes since the last query: none, assignment to a list, assignment to a list
+     *                                               that others depend on, new list
+     *     environment: map, Environment, Environment recovered from a data directory
+     *     how an Environment is changed: put, putAll, transaction, load, transaction that was aborted
+     */
+
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    private static TreeSet<String> names(String... names) {
+        return new TreeSet<>(Arrays.asList(names));
+    }
+
+    // covers on several lists, directly, through a referenced list, through an operation, differing case,
+    //        never seen, no changes, map
+    @Test
+    public void testListsContaining() {
+        final Map<String, EmailList> environment = new HashMap<>();
+        EmailList.evaluate("staff = alice@corp, bob@corp; all = staff, carol@corp; managers = all * (alice@corp, dave@corp)", environment);
+        assertEquals(names("all", "managers", "staff"), Environment.listsContaining("Alice@Corp", environment));
+        assertEquals(names("all"), Environment.listsContaining("carol@corp", environment));
+        assertEquals(names(), Environment.listsContaining("dave@corp", environment));
+        assertEquals(names(), Environment.listsContaining("never.seen@corp", environment));
+        assertEquals(names("all", "staff"), Environment.listsContaining("bob@corp", environment));
+    }
+
+    // covers assignment to a list that others depend on, new list, address moving onto and off lists, Environment
+    @Test
+    public void testIncrementalUpdates() {
+        final Environment environment = new Environment();
+        EmailList.evaluate("staff = alice@corp, bob@corp; all = staff, carol@corp", environment);
+        assertEquals(names("all", "staff"), Environment.listsContaining("bob@corp", environment));
+
+        EmailList.evaluate("staff = alice@corp", environment);
+        assertEquals(names(), Environment.listsContaining("bob@corp", environment));
+        assertEquals(names("all", "staff"), Environment.listsContaining("alice@corp", environment));
+
+        EmailList.evaluate("alumni = bob@corp ! carol@corp; staff = staff, carol@corp", environment);
+        assertEquals(names("alumni"), Environment.listsContaining("bob@corp", environment));
+        assertEquals(names("all", "staff"), Environment.listsContaining("carol@corp", environment));
+        assertTrue(Environment.listsContaining("nobody@corp", environment).isEmpty());
+    }
+
+    // covers Environment recovered from a data directory, put, putAll, transaction, load
+    @Test
+    public void testEnvironmentCommitsIndexed() throws IOException {
+        final Path directory = Files.createTempDirectory("norn-index");
+        final Environment saved = Environment.open(directory);
+        saved.put("staff", EmailList.single("alice@corp"));
+        saved.close();
+
+        final Environment environment = Environment.open(directory);
+        try {
+            assertEquals(names("staff"), Environment.listsContaining("alice@corp", environment));
+            environment.putAll(Collections.singletonMap("all", EmailList.listName("staff")));
+            assertEquals(names("all", "staff"), Environment.listsContaining("alice@corp", environment));
+            EmailList.evaluate("staff = bob@corp", environment);
+            assertEquals(names(), Environment.listsContaining("alice@corp", environment));
+            assertEquals(names("all", "staff"), Environment.listsContaining("bob@corp", environment));
+            EmailListLoader.load(new StringReader("alumni = alice@corp; all = staff, alumni"), environment);
+            assertEquals(names("all", "alumni"), Environment.listsContaining("alice@corp", environment));
+            environment.put("staff", EmailList.empty());
+            assertEquals(names(), Environment.listsContaining("bob@corp", environment));
+        } finally {
+            environment.close();
+        }
+    }
+
+    // covers transaction that was aborted, assignment to a list that others depend on, Environment
+    @Test
+    public void testAbortedTransactionNotIndexed() {
+        final Environment environment = new Environment();
+        EmailList.evaluate("d = x@a; c = d", environment);
+        assertEquals(names("c", "d"), Environment.listsContaining("x@a", environment));
+        try {
+            EmailList.evaluate("c = y@b; (", environment);
+            fail("expected the syntax error to abort the transaction");
+        } catch (IllegalArgumentException e) {
+            // the assignment to c is not committed
+        }
+        EmailList.evaluate("d = z@a", environment);
+        assertEquals(names("c", "d"), Environment.listsContaining("z@a", environment));
+        assertEquals(names(), Environment.listsContaining("x@a", environment));
+        assertEquals(names(), Environment.listsContaining("y@b", environment));
+    }
+}
@@ -0,0 +1,110 @@
+package norn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests for SortedMergeEvaluator.
+ */
+public class SortedMergeEvaluatorTest {
+
+    /*
+     * Testing strategy for SortedMergeEvaluator
+     *
+     * Partition recipients() as follows:
+     *     email list: empty, single, union, intersection, difference, defined and undefined list names
+     *     list name referred to: once, more than once
+     *     left operand of intersection or difference: empty, so the right operand is not evaluated
+     * Partition union(), intersection() and difference() as follows:
+     *     operand sizes: empty, similar, one much smaller (galloping)
+     *     overlap: none, partial, total
+     * Results are compared with recipients() and Collections.sort.
+     */
+
+    /**
+     * @param emailList email list to evaluate
+     * @param environment the environment in which the value of email lists are stored
+     * @return the recipients of emailList, sorted
+     */
+    private static List<String> sortedRecipients(EmailList emailList, Map<String, EmailList> environment) {
+        final List<String> sorted = new ArrayList<>(emailList.recipients(environment));
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    // covers all email list variants, list name referred to more than once
+    @Test
+    public void testRecipientsSortedAndEqual() {
+        final Map<String, EmailList> environment = new HashMap<>();
+        final EmailList emailList = EmailList.evaluate(
+                "a = d@x, b@x, c@x; b = a ! c@x; (a, b, z@x, undefined) * (a, z@x) ! b", environment);
+        assertEquals("expected sorted recipients", Arrays.asList("c@x", "z@x"),
+                SortedMergeEvaluator.recipients(emailList, environment));
+        assertEquals("expected sorted list", Arrays.asList("b@x", "c@x", "d@x"),
+                SortedMergeEvaluator.recipients(EmailList.listName("a"), environment));
+        assertEquals("expected empty", Collections.emptyList(),
+                SortedMergeEvaluator.recipients(EmailList.empty(), environment));
+    }
+
+    // covers operand sizes empty, similar, much smaller; overlap none, partial, total
+    @Test
+    public void testMergesAgreeWithBitmaps() {
+        final Random random = new Random(6031);
+        final Map<String, EmailList> environment = new HashMap<>();
+        for (int[] sizes : new int[][] { { 0, 10 }, { 200, 300 }, { 5, 3000 }, { 3000, 5 } }) {
+            final List<EmailList> sides = new ArrayList<>();
+            for (int size : sizes) {
+                EmailList side = EmailList.empty();
+                for (int i = 0; i < size; i++) {
+                    side = EmailList.union(side, EmailList.single("user" + random.nextInt(4000) + "@test"));
+                }
+                sides.add(side);
+            }
+            for (EmailList emailList : Arrays.asList(
+                    EmailList.union(sides.get(0), sides.get(1)),
+                    EmailList.intersection(sides.get(0), sides.get(1)),
+                    EmailList.difference(sides.get(0), sides.get(1)),
+                    EmailList.difference(sides.get(0), sides.get(0)),
+                    EmailList.intersection(sides.get(1), sides.get(1)))) {
+                assertEquals("expected same recipients", sortedRecipients(emailList, environment),
+                        SortedMergeEvaluator.recipients(emailList, environment));
+            }
+        }
+    }
+
+    // covers left operand empty
+    @Test
+    public void testEmptyLeftOperandSkipsRight() {
+        final Set<Object> read = new HashSet<>();
+        final Map<String, EmailList> environment = new HashMap<String, EmailList>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public EmailList get(Object listName) {
+                read.add(listName);
+                return super.get(listName);
+            }
+        };
+        EmailList.evaluate("none = (); big = x@y, z@w", environment);
+        final EmailList emailList = EmailList.union(
+                EmailList.intersection(EmailList.listName("none"), EmailList.listName("big")),
+                EmailList.difference(EmailList.listName("none"), EmailList.listName("big")));
+        read.clear();
+        assertEquals(Collections.emptyList(), SortedMergeEvaluator.recipients(emailList, environment));
+        assertFalse("expected right operand not evaluated", read.contains("big"));
+        assertEquals(0, EmailListTraversal.recipientSet(emailList, environment).size());
+        assertFalse("expected right operand not evaluated", read.contains("big"));
+    }
+}
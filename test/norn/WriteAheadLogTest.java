@@ -0,0 +1,136 @@
+package norn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for durable environments and WriteAheadLog.
+ */
+public class WriteAheadLogTest {
+
+    /*
+     * Testing strategy for Environment.open() and WriteAheadLog
+     *
+     * Partition the inputs as follows:
+     *     data directory: new, has log only, has snapshot and log
+     *     log: complete records, torn last record
+     *     commits: put, transaction, concurrent
+     *     compaction: not reached, reached
+     *     flush: succeeds, fails
+     */
+
+    /**
+     * @param directory data directory
+     * @return the email lists recovered from directory
+     */
+    private static Map<String, EmailList> recover(Path directory) throws IOException {
+        final Environment environment = Environment.open(directory);
+        try {
+            return new HashMap<>(environment.snapshot());
+        } finally {
+            environment.close();
+        }
+    }
+
+    // covers new directory, then has log only; complete records; put and transaction; not compacted
+    @Test
+    public void testRecoverCommits() throws IOException {
+        final Path directory = Files.createTempDirectory("norn-wal");
+        final Environment environment = Environment.open(directory);
+        assertTrue("expected new environment empty", environment.isEmpty());
+        environment.put("a", EmailList.single("x@y"));
+        EmailList.evaluate("b = a, z@w; a = q@r", environment);
+        environment.close();
+        final Map<String, EmailList> recovered = recover(directory);
+        assertEquals("expected all commits recovered", 2, recovered.size());
+        assertEquals("expected last assignment to a", EmailList.single("q@r"), recovered.get("a"));
+        assertEquals("expected recipients of b", 2, recovered.get("b").recipients(recovered).size());
+    }
+
+    // covers torn last record
+    @Test
+    public void testRecoverDiscardsTornRecord() throws IOException {
+        final Path directory = Files.createTempDirectory("norn-wal");
+        final Environment environment = Environment.open(directory);
+        environment.put("a", EmailList.single("x@y"));
+        environment.put("b", EmailList.single("z@w"));
+        environment.close();
+        final Path log = directory.resolve("environment.log");
+        final long size = Files.size(log);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(size - 3);
+        }
+        final Map<String, EmailList> recovered = recover(directory);
+        assertEquals("expected only complete record recovered", 1, recovered.size());
+        assertEquals("expected a recovered", EmailList.single("x@y"), recovered.get("a"));
+
+        final Environment reopened = Environment.open(directory);
+        reopened.put("c", EmailList.single("c@d"));
+        reopened.close();
+        assertEquals("expected appends after the truncated tail recovered", 2, recover(directory).size());
+    }
+
+    // covers has snapshot and log; compaction reached; concurrent commits
+    @Test
+    public void testCompactionKeepsEveryCommit() throws IOException, InterruptedException {
+        final Path directory = Files.createTempDirectory("norn-wal");
+        final Environment environment = Environment.open(directory, 256);
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 50; i++) {
+                    environment.put("list" + thread + "-" + i, EmailList.single("user" + i + "@thread" + thread));
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        environment.close();
+        assertTrue("expected a snapshot", Files.exists(directory.resolve("environment.snapshot")));
+        assertTrue("expected the log compacted", Files.size(directory.resolve("environment.log")) <= 256 + 64);
+        assertEquals("expected every commit recovered", environment.snapshot(), recover(directory));
+    }
+
+    // covers flush fails
+    @Test
+    public void testFailedFlushIsNotDurable() throws IOException {
+        final Path directory = Files.createTempDirectory("norn-wal");
+        final WriteAheadLog log = WriteAheadLog.recover(directory, WriteAheadLog.DEFAULT_COMPACTION_THRESHOLD, new HashMap<>());
+        final long first = log.append(Collections.singletonMap("a", EmailList.single("x@y")));
+        log.close();
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                log.awaitDurable(first);
+                assertTrue("expected failed flush to be reported", false);
+            } catch (UncheckedIOException e) {
+                // expected, on the flush and on waiting again
+            }
+        }
+        final long second = log.append(Collections.singletonMap("b", EmailList.single("z@w")));
+        try {
+            log.awaitDurable(second);
+            assertTrue("expected record after a failed flush not durable", false);
+        } catch (UncheckedIOException e) {
+            assertTrue("expected the earlier failure as cause", e.getCause() != null);
+        }
+    }
+}